@@ -0,0 +1,182 @@
+package jdbchelper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the health of one backend of a {@link LoadBalancingDataSource}.
+ *
+ * A closed breaker lets requests through and counts failed connection attempts. It opens when
+ * too many attempts fail in a row, or when the failure rate within the current window gets too
+ * high. An open backend receives no requests. Once its backoff has elapsed, the breaker is half
+ * open while a single trial connection is made. If the trial succeeds, the breaker closes and the
+ * backend is used again. If it fails, the breaker opens again and the backoff doubles, up to a maximum.
+ *
+ * @see LoadBalancingDataSource#setCircuitBreaker(int, double, int, long)
+ */
+public final class CircuitBreaker {
+   public enum State {
+      /**
+       * The backend receives requests.
+       */
+      CLOSED,
+      /**
+       * The backend receives no requests until its backoff has elapsed.
+       */
+      OPEN,
+      /**
+       * A trial connection is being made to find out whether the backend has recovered.
+       */
+      HALF_OPEN
+   }
+
+   /**
+    * The thresholds and backoff shared by the breakers of a data source.
+    */
+   static final class Settings {
+      final int consecutiveFailures;
+      final double failureRate;
+      final int minimumRequests;
+      final long windowNanos;
+      final long baseBackoffNanos;
+      final long maxBackoffNanos;
+
+      Settings(int consecutiveFailures, double failureRate, int minimumRequests, long windowMillis,
+               long baseBackoffMillis, long maxBackoffMillis) {
+         this.consecutiveFailures = consecutiveFailures;
+         this.failureRate = failureRate;
+         this.minimumRequests = minimumRequests;
+         this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+         this.baseBackoffNanos = TimeUnit.MILLISECONDS.toNanos(baseBackoffMillis);
+         this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+      }
+   }
+
+   private volatile State state = State.CLOSED;
+   private final AtomicInteger consecutiveFailures = new AtomicInteger();
+   private final AtomicInteger windowRequests = new AtomicInteger();
+   private final AtomicInteger windowFailures = new AtomicInteger();
+   private volatile long windowStart = System.nanoTime();
+   private volatile long openUntil;
+   private int backoffExponent;   // guarded by this, the number of openings since the breaker was last closed
+   private volatile long timesOpened;
+
+   CircuitBreaker() {
+   }
+
+   /**
+    * Records a successful connection attempt.
+    */
+   void recordSuccess() {
+      // Only written when needed, so healthy backends do not share a modified cache line between threads
+      if (consecutiveFailures.get() != 0) consecutiveFailures.set(0);
+      windowRequests.incrementAndGet();
+   }
+
+   /**
+    * Records a failed connection attempt.
+    *
+    * @return true if this failure opened the breaker.
+    */
+   boolean recordFailure(Settings settings) {
+      long now = System.nanoTime();
+      if (now - windowStart > settings.windowNanos) {
+         rollWindow(now, settings);
+      }
+      int requests = windowRequests.incrementAndGet();
+      int failures = windowFailures.incrementAndGet();
+      int consecutive = consecutiveFailures.incrementAndGet();
+      if (consecutive >= settings.consecutiveFailures
+         || (requests >= settings.minimumRequests && failures >= settings.failureRate * requests)) {
+         return trip(now, settings);
+      }
+      return false;
+   }
+
+   private synchronized void rollWindow(long now, Settings settings) {
+      if (now - windowStart > settings.windowNanos) {
+         windowRequests.set(0);
+         windowFailures.set(0);
+         windowStart = now;
+      }
+   }
+
+   private synchronized boolean trip(long now, Settings settings) {
+      if (state != State.CLOSED) return false;
+      open(now, settings);
+      return true;
+   }
+
+   private void open(long now, Settings settings) {
+      long backoff = settings.baseBackoffNanos << Math.min(backoffExponent, 30);
+      if (backoff > settings.maxBackoffNanos || backoff <= 0) backoff = settings.maxBackoffNanos;
+      backoffExponent++;
+      openUntil = now + backoff;
+      timesOpened++;
+      state = State.OPEN;
+   }
+
+   /**
+    * Moves an open breaker whose backoff has elapsed to half open.
+    *
+    * @return true if the caller should make the trial connection.
+    */
+   synchronized boolean tryStartTrial(long now) {
+      if (state != State.OPEN || now - openUntil < 0) return false;
+      state = State.HALF_OPEN;
+      return true;
+   }
+
+   synchronized void trialSucceeded() {
+      backoffExponent = 0;
+      consecutiveFailures.set(0);
+      windowRequests.set(0);
+      windowFailures.set(0);
+      windowStart = System.nanoTime();
+      state = State.CLOSED;
+   }
+
+   synchronized void trialFailed(Settings settings) {
+      open(System.nanoTime(), settings);
+   }
+
+   public State getState() {
+      return state;
+   }
+
+   /**
+    * @return the number of connection attempts that failed since the last successful one.
+    */
+   public int getConsecutiveFailures() {
+      return consecutiveFailures.get();
+   }
+
+   /**
+    * @return the share of failed connection attempts in the current window, between 0 and 1.
+    */
+   public double getFailureRate() {
+      int requests = windowRequests.get();
+      return requests == 0 ? 0 : Math.min(1, (double) windowFailures.get() / requests);
+   }
+
+   /**
+    * @return how many times the breaker has opened, including reopening after a failed trial.
+    */
+   public long getTimesOpened() {
+      return timesOpened;
+   }
+
+   /**
+    * @return the milliseconds until an open breaker allows a trial connection, 0 if it is not open.
+    */
+   public long getRemainingBackoffMillis() {
+      if (state != State.OPEN) return 0;
+      return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openUntil - System.nanoTime()));
+   }
+
+   @Override
+   public String toString() {
+      return state + " consecutiveFailures=" + getConsecutiveFailures() + " failureRate=" + getFailureRate()
+         + " timesOpened=" + timesOpened;
+   }
+}
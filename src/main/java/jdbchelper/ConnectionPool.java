@@ -13,17 +13,38 @@
 
 package jdbchelper;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.sql.ConnectionEvent;
 import javax.sql.ConnectionEventListener;
 import javax.sql.ConnectionPoolDataSource;
 import javax.sql.PooledConnection;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.Queue;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 /**
@@ -49,85 +70,1165 @@ public final class ConnectionPool {
    private int maxConnections;
    private int timeout;
    //private PrintWriter logWriter;
-   private Semaphore semaphore;
-   private Queue<Con> recycledConnections;
-   private int activeConnections;
-   private PoolConnectionEventListener poolConnectionEventListener;
-   private boolean isDisposed;
+   private Engine engine;
+   private AdjustableSemaphore semaphore;
+   private ArrayDeque<Con> recycledConnections;
+   private volatile int recycledCount;   // the size of recycledConnections, readable without the monitor
+   private AtomicReferenceArray<Con> idleSlots;
+   private AtomicInteger activeConnections;
+   private volatile boolean isDisposed;
+   private volatile ValidationPolicy validationPolicy = ValidationPolicy.ALWAYS;
+   private volatile long validationInterval = 5000L;
+   private volatile long lastErrorTime;
+   private final AtomicLong validationsPerformed = new AtomicLong();
+   private final AtomicLong validationsSkipped = new AtomicLong();
+   private ScheduledExecutorService maintenanceExecutor;
+   private volatile int minIdle;
+   private int maxConcurrentCreations = 4;
+   private AdjustableSemaphore creationPermits;
+   private final AtomicInteger pendingFills = new AtomicInteger();
+   private ThreadPoolExecutor fillExecutor;
+   private CountDownLatch warmUpLatch;
+   private long warmUpStarted;
+   private volatile long warmUpTime = -1;
+   private volatile long idleTimeout = 300000L;
+   private volatile long maxLifetime;
+   private volatile long maxLifetimeJitter;
+   private final Random random = new Random();
+   private volatile ReuseOrder reuseOrder;
+   private final AtomicInteger fifoCursor = new AtomicInteger();
+   private static final ThreadLocal<Random> threadRandom = new ThreadLocal<Random>() {
+      @Override
+      protected Random initialValue() {
+         return new Random();
+      }
+   };
+   private ScheduledFuture<?> evictionTask;
+   private volatile int statementCacheSize;
+   private final AtomicLong statementCacheHits = new AtomicLong();
+   private final AtomicLong statementCacheMisses = new AtomicLong();
+   private volatile LaneScheduler laneScheduler;
+   private volatile int maxWaiters;
+   private final AtomicInteger waiters = new AtomicInteger();
+   private volatile long leakThreshold;
+   private volatile int leakSampleRate = 1;
+   private volatile boolean leakReclaim;
+   private volatile LeakListener leakListener;
+   private final Set<Con> trackedConnections = Collections.newSetFromMap(new ConcurrentHashMap<Con, Boolean>());
+   private final AtomicLong leaksDetected = new AtomicLong();
+   private final AtomicLong leaksReclaimed = new AtomicLong();
+   private ScheduledFuture<?> leakTask;
+   private volatile int poolSize;
+   private volatile boolean adaptiveSizing;
+   private int minPoolSize;
+   private long targetWaitMillis;
+   private double latencyBaseline = -1;
+   private ScheduledFuture<?> sizingTask;
+   private long sizingWaitCount;
+   private long sizingWaitNanos;
+   private long sizingHeldCount;
+   private long sizingHeldNanos;
+   private final AtomicInteger sizingPeakActive = new AtomicInteger();
+   private final ArrayDeque<SizingDecision> sizingHistory = new ArrayDeque<SizingDecision>();
+   private static final int SIZING_HISTORY_SIZE = 100;
+   private static final double LATENCY_TOLERANCE = 2.0;
+   private final PoolMetrics metrics = new PoolMetrics(this);
+   private ObjectName mbeanName;
+
+   /**
+    * Receives the connections found by the leak detection.
+    *
+    * @see ConnectionPool#setLeakDetection(long, int, boolean)
+    */
+   public interface LeakListener {
+      /**
+       * Called once for every connection that has been checked out for longer than the leak threshold.
+       *
+       * @param heldMillis   the time in milliseconds since the connection was checked out.
+       * @param checkoutSite an exception whose stack trace shows where the connection was checked out,
+       *                     or null if the stack of this checkout was not sampled.
+       * @param reclaimed    true if the pool has closed the connection and taken back its permit.
+       */
+      void connectionLeaked(long heldMillis, Throwable checkoutSite, boolean reclaimed);
+   }
+
+   /**
+    * The strategy a pool uses for handing out and taking back its idle connections.
+    */
+   public enum Engine {
+      /**
+       * Idle connections are kept in a queue guarded by the pool monitor and callers wait on a fair
+       * semaphore. This is the default engine.
+       */
+      MONITOR,
+
+      /**
+       * Idle connections are kept in a slot array and claimed with compare-and-set, so checking out and
+       * returning a connection never takes a pool wide lock. By default every thread starts scanning from
+       * its own home slot, which usually hands a thread back the connection it returned last.
+       * <p/>
+       * This is the engine to use with virtual threads. Callers wait on <code>java.util.concurrent</code>
+       * primitives only, and no monitor is held while a connection is opened, validated or closed,
+       * so a virtual thread blocked on the database never pins its carrier thread.
+       */
+      CONCURRENT
+   }
+
+   /**
+    * Decides which idle connection is handed out next.
+    */
+   public enum ReuseOrder {
+      /**
+       * The connection that has been idle the longest is reused first, so all connections are used in
+       * turn. This is the default for the monitor engine. The concurrent engine approximates it by
+       * scanning the idle slots round robin.
+       */
+      FIFO,
+
+      /**
+       * The most recently returned connection is reused first. Under low load only a few hot connections
+       * are used and the others stay idle long enough to be closed by the idle timeout. The concurrent
+       * engine fills and claims the lowest free slots first.
+       */
+      LIFO,
+
+      /**
+       * A random idle connection is reused.
+       */
+      RANDOM,
+
+      /**
+       * Each thread prefers the connection it returned last. This is the default for the concurrent engine,
+       * the monitor engine treats it like LIFO.
+       */
+      THREAD_AFFINE
+   }
+
+   /**
+    * Decides when a connection is checked with <code>Connection.isValid()</code> before it is handed out.
+    */
+   public enum ValidationPolicy {
+      /**
+       * Every connection is validated on checkout. This is the default policy.
+       */
+      ALWAYS,
+
+      /**
+       * A reused connection is validated on checkout only if it has been idle for longer than the
+       * validation interval.
+       */
+      IDLE_TIME,
+
+      /**
+       * Connections are not validated on checkout unless a connection error has been reported since they
+       * were returned to the pool. Broken connections are otherwise found by the driver on first use.
+       */
+      ON_ERROR,
+
+      /**
+       * Connections are not validated on checkout. Idle connections are validated by a background thread
+       * every validation interval instead.
+       */
+      BACKGROUND
+   }
+
+   /**
+    * A semaphore whose number of permits can be lowered after construction.
+    */
+   static class AdjustableSemaphore extends Semaphore {
+      private static final long serialVersionUID = 1;
+
+      AdjustableSemaphore(int permits, boolean fair) {
+         super(permits, fair);
+      }
+
+      /**
+       * Adds or removes permits. Removing more permits than are available leaves the semaphore
+       * in debt until enough permits are released.
+       *
+       * @param delta the number of permits to add, negative to remove permits.
+       */
+      void adjust(int delta) {
+         if (delta > 0) {
+            release(delta);
+         } else if (delta < 0) {
+            reducePermits(-delta);
+         }
+      }
+   }
+
+   static class Con {
+      final PooledConnection pooledCon;
+      final long created;
+      final long retireAt;
+      final AtomicBoolean checkedOut = new AtomicBoolean();
+      ConnectionEventListener listener;
+      StatementCache statementCache;
+      Connection handle;
+      long lastRecyle;
+      volatile long checkoutTime;   // 0 if the checkout is not tracked by the leak detection
+      long checkoutNanos;
+      LaneScheduler.Lane lane;
+      Throwable checkoutSite;
+      volatile boolean leakReported;   // set by the leak detection thread, reset on checkout
+
+      Con(PooledConnection pooledCon, long retireAt) {
+         this.pooledCon = pooledCon;
+         this.retireAt = retireAt;
+         created = lastRecyle = System.currentTimeMillis();
+      }
+
+      boolean isRetired(long now) {
+         return retireAt != 0 && retireAt <= now;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (this == o) return true;
+         if (o == null || getClass() != o.getClass()) return false;
+
+         Con con = (Con) o;
+
+         return pooledCon.equals(con.pooledCon);
+      }
+
+      @Override
+      public int hashCode() {
+         return pooledCon.hashCode();
+      }
+   }
+
+   /**
+    * Closes the idle connections that have been idle for longer than the idle timeout or have reached
+    * their maximum lifetime, then tops the pool up to <code>minIdle</code> connections again.
+    */
+   public void freeIdleConnections() {
+      long now = System.currentTimeMillis();
+      List<Con> evicted = new ArrayList<Con>();
+      if (engine == Engine.CONCURRENT) {
+         for (int i = 0; i < idleSlots.length(); i++) {
+            Con c = idleSlots.get(i);
+            if (c != null && isEvictable(c, now) && idleSlots.compareAndSet(i, c, null)) {
+               evicted.add(c);
+            }
+         }
+      } else {
+         synchronized (this) {
+            Iterator<Con> conIterator = recycledConnections.iterator();
+            while (conIterator.hasNext()) {
+               Con c = conIterator.next();
+               if (isEvictable(c, now)) {
+                  conIterator.remove();
+                  evicted.add(c);
+               }
+            }
+            recycledCount = recycledConnections.size();
+         }
+      }
+      for (Con c : evicted) {
+         closeConnectionNoEx(c);
+      }
+      fillIdleConnections(minIdle, null);
+   }
+
+   private boolean isEvictable(Con c, long now) {
+      long idle = idleTimeout;
+      return (idle > 0 && c.lastRecyle + idle < now) || c.isRetired(now);
+   }
+
+   /**
+    * Validates the idle connections of this pool and closes the ones that are no longer valid.
+    * This is called periodically when the validation policy is {@link ValidationPolicy#BACKGROUND}.
+    */
+   public void validateIdleConnections() {
+      // A connection under validation is neither active nor idle, so it borrows a permit to keep
+      // the number of physical connections within maxConnections. A busy pool is not validated.
+      // Validated connections are put back where they were to preserve the reuse order.
+      if (engine == Engine.CONCURRENT) {
+         for (int i = 0; i < idleSlots.length() && !isDisposed; i++) {
+            Con c = idleSlots.get(i);
+            if (c == null) continue;
+            if (!semaphore.tryAcquire()) return;
+            try {
+               if (!idleSlots.compareAndSet(i, c, null)) continue;
+               if (validateIdleConnection(c) && !isDisposed
+                  && (idleSlots.compareAndSet(i, null, c) || offerIdleConnection(c))) {
+                  if (isDisposed) closeIdleConnections();
+               } else {
+                  closeConnectionNoEx(c);
+               }
+            } finally {
+               semaphore.release();
+            }
+         }
+         return;
+      }
+
+      List<Con> snapshot;
+      synchronized (this) {
+         snapshot = new ArrayList<Con>(recycledConnections);
+      }
+      // Walk from the most to the least recently returned connection, putting each one back at the head
+      for (int i = snapshot.size() - 1; i >= 0 && !isDisposed; i--) {
+         Con c = snapshot.get(i);
+         if (!semaphore.tryAcquire()) return;
+         try {
+            synchronized (this) {
+               if (!recycledConnections.remove(c)) continue;
+               recycledCount = recycledConnections.size();
+            }
+            boolean valid = validateIdleConnection(c);
+            synchronized (this) {
+               if (valid && !isDisposed) {
+                  recycledConnections.addFirst(c);
+                  recycledCount = recycledConnections.size();
+                  continue;
+               }
+            }
+            closeConnectionNoEx(c);
+         } finally {
+            semaphore.release();
+         }
+      }
+   }
+
+   private boolean validateIdleConnection(Con c) {
+      boolean valid;
+      try {
+         validationsPerformed.incrementAndGet();
+         if (c.handle != null) {
+            // Opening another logical handle would close the one the statement cache depends on
+            valid = c.handle.isValid(2);
+         } else {
+            Connection conn = c.pooledCon.getConnection();
+            valid = conn.isValid(2);
+            conn.close();
+         }
+      } catch (SQLException e) {
+         valid = false;
+      }
+      if (!valid) metrics.validationFailures.incrementAndGet();
+      return valid;
+   }
+
+   /**
+    * Puts a newly opened connection of the filler back to the idle connections. The caller holds a permit.
+    * Idle connections hold no permits, so the connection is only kept if every permit taken by now can
+    * still end up as an active connection without the pool exceeding its size.
+    *
+    * @return false if the pool has been disposed or the connection could not be parked.
+    */
+   private boolean returnIdleConnection(Con c) {
+      if (engine == Engine.CONCURRENT) {
+         if (isDisposed || getIdleConnections() > semaphore.availablePermits() || !offerIdleConnection(c)) return false;
+         if (isDisposed) closeIdleConnections();
+         return true;
+      }
+
+      synchronized (this) {
+         if (isDisposed || recycledConnections.size() > semaphore.availablePermits()) return false;
+         recycledConnections.add(c);
+         recycledCount = recycledConnections.size();
+         return true;
+      }
+   }
+
+   /**
+    * Thrown in  when no free connection becomes available within <code>timeout</code> seconds.
+    */
+   public static class TimeoutException extends RuntimeException {
+      private static final long serialVersionUID = 1;
+
+      public TimeoutException() {
+         super("Timeout while waiting for a free database connection.");
+      }
+   }
+
+   /**
+    * Thrown in <code>getConnection()</code> without waiting when no connection is free and
+    * <code>maxWaiters</code> threads are already waiting for one.
+    *
+    * @see #setMaxWaiters(int)
+    */
+   public static class RejectedException extends RuntimeException {
+      private static final long serialVersionUID = 1;
+
+      public RejectedException() {
+         super("Too many threads are waiting for a free database connection.");
+      }
+   }
+
+   /**
+    * Constructs a MiniConnectionPoolManager object with a timeout of 60 seconds.
+    *
+    * @param dataSource     the data source for the connections.
+    * @param maxConnections the maximum number of connections.
+    */
+   public ConnectionPool(ConnectionPoolDataSource dataSource, int maxConnections) {
+      this(dataSource, maxConnections, 60);
+   }
+
+   /**
+    * Constructs a ConnectionPool object.
+    *
+    * @param dataSource     the data source for the connections.
+    * @param maxConnections the maximum number of connections.
+    * @param timeout        the maximum time in seconds to wait for a free connection.
+    */
+   public ConnectionPool(ConnectionPoolDataSource dataSource, int maxConnections, int timeout) {
+      this(dataSource, maxConnections, timeout, Engine.MONITOR);
+   }
+
+   /**
+    * Constructs a ConnectionPool object that uses the given engine.
+    *
+    * @param dataSource     the data source for the connections.
+    * @param maxConnections the maximum number of connections.
+    * @param timeout        the maximum time in seconds to wait for a free connection.
+    * @param engine         the engine that manages the idle connections.
+    */
+   public ConnectionPool(ConnectionPoolDataSource dataSource, int maxConnections, int timeout, Engine engine) {
+      this.dataSource = dataSource;
+      this.maxConnections = maxConnections;
+      this.timeout = timeout;
+      this.engine = engine;
+      if (maxConnections < 1) throw new IllegalArgumentException("Invalid maxConnections value.");
+      if (engine == Engine.CONCURRENT) {
+         // A non-fair semaphore lets a returning permit be taken without a hand-off to a parked waiter
+         semaphore = new AdjustableSemaphore(maxConnections, false);
+         idleSlots = new AtomicReferenceArray<Con>(maxConnections);
+      } else {
+         semaphore = new AdjustableSemaphore(maxConnections, true);
+         recycledConnections = new ArrayDeque<Con>();
+      }
+      reuseOrder = engine == Engine.CONCURRENT ? ReuseOrder.THREAD_AFFINE : ReuseOrder.FIFO;
+      activeConnections = new AtomicInteger();
+      poolSize = maxConnections;
+      creationPermits = new AdjustableSemaphore(maxConcurrentCreations, false);
+   }
+
+   /**
+    * @return the engine this pool was constructed with.
+    */
+   public Engine getEngine() {
+      return engine;
+   }
+
+   /**
+    * Sets the policy that decides when connections are validated, keeping the current validation interval.
+    *
+    * @param policy the validation policy.
+    */
+   public void setValidationPolicy(ValidationPolicy policy) {
+      setValidationPolicy(policy, validationInterval);
+   }
+
+   /**
+    * Sets the policy that decides when connections are validated.
+    *
+    * @param policy           the validation policy.
+    * @param intervalMillis   the idle time after which {@link ValidationPolicy#IDLE_TIME} validates a connection,
+    *                         and the period of the background validation of {@link ValidationPolicy#BACKGROUND}.
+    */
+   public synchronized void setValidationPolicy(ValidationPolicy policy, long intervalMillis) {
+      if (intervalMillis < 1) throw new IllegalArgumentException("Invalid validation interval.");
+      validationPolicy = policy;
+      validationInterval = intervalMillis;
+      if (policy == ValidationPolicy.BACKGROUND && !isDisposed) {
+         if (maintenanceExecutor == null) {
+            getMaintenanceExecutor().scheduleWithFixedDelay(new Runnable() {
+               public void run() {
+                  if (validationPolicy == ValidationPolicy.BACKGROUND) {
+                     validateIdleConnections();
+                  }
+               }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+         }
+      }
+   }
+
+   private synchronized ScheduledExecutorService getMaintenanceExecutor() {
+      if (maintenanceExecutor == null) {
+         maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("ConnectionPool maintenance"));
+      }
+      return maintenanceExecutor;
+   }
+
+   /**
+    * Sets how long a connection may stay idle before it is closed by {@link #freeIdleConnections()}.
+    *
+    * @param idleTimeout the idle timeout in milliseconds, 0 to keep idle connections open.
+    */
+   public void setIdleTimeout(long idleTimeout) {
+      if (idleTimeout < 0) throw new IllegalArgumentException("Invalid idleTimeout value.");
+      this.idleTimeout = idleTimeout;
+   }
+
+   public long getIdleTimeout() {
+      return idleTimeout;
+   }
+
+   /**
+    * Sets the maximum lifetime of a physical connection. Each connection is retired up to
+    * <code>jitter</code> milliseconds before its maximum lifetime, picked at random when it is opened,
+    * so the connections of a pool are not all reopened at the same moment. A connection is retired when
+    * it is returned to the pool or by {@link #freeIdleConnections()}, never while it is being checked out.
+    * The lifetime applies to connections opened after this call.
+    *
+    * @param maxLifetime the maximum lifetime in milliseconds, 0 for unlimited.
+    * @param jitter      the maximum number of milliseconds a connection may be retired early.
+    */
+   public void setMaxLifetime(long maxLifetime, long jitter) {
+      if (maxLifetime < 0 || jitter < 0 || (maxLifetime > 0 && jitter >= maxLifetime))
+         throw new IllegalArgumentException("Invalid maxLifetime value.");
+      this.maxLifetime = maxLifetime;
+      this.maxLifetimeJitter = jitter;
+   }
+
+   public long getMaxLifetime() {
+      return maxLifetime;
+   }
+
+   /**
+    * Runs {@link #freeIdleConnections()} periodically on a daemon thread owned by this pool.
+    *
+    * @param intervalMillis the time between two runs in milliseconds, 0 to stop the periodic maintenance.
+    */
+   public synchronized void setMaintenanceInterval(long intervalMillis) {
+      if (intervalMillis < 0) throw new IllegalArgumentException("Invalid maintenance interval.");
+      if (evictionTask != null) {
+         evictionTask.cancel(false);
+         evictionTask = null;
+      }
+      if (intervalMillis > 0 && !isDisposed) {
+         evictionTask = getMaintenanceExecutor().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+               freeIdleConnections();
+            }
+         }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   /**
+    * Enables the detection of connections that are not returned to the pool. Every checkout records its
+    * time, and one in <code>sampleRate</code> checkouts also records the stack of the calling thread.
+    * Connections held for longer than <code>thresholdMillis</code> are reported to the {@link LeakListener}
+    * and, if <code>reclaim</code> is true, closed so that their permits are not lost for good.
+    * Checkouts made before this call are not tracked.
+    *
+    * @param thresholdMillis the time in milliseconds after which a checked out connection counts as leaked,
+    *                        0 to disable the leak detection.
+    * @param sampleRate      record the checkout stack for one in <code>sampleRate</code> checkouts,
+    *                        1 for every checkout, 0 to never record it.
+    * @param reclaim         true to close leaked connections.
+    */
+   public synchronized void setLeakDetection(long thresholdMillis, int sampleRate, boolean reclaim) {
+      if (thresholdMillis < 0) throw new IllegalArgumentException("Invalid leak threshold.");
+      if (sampleRate < 0) throw new IllegalArgumentException("Invalid sample rate.");
+      leakSampleRate = sampleRate;
+      leakReclaim = reclaim;
+      leakThreshold = thresholdMillis;
+      if (leakTask != null) {
+         leakTask.cancel(false);
+         leakTask = null;
+      }
+      if (thresholdMillis > 0 && !isDisposed) {
+         long period = Math.max(thresholdMillis / 4, 10);
+         leakTask = getMaintenanceExecutor().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+               detectLeakedConnections();
+            }
+         }, period, period, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   public long getLeakThreshold() {
+      return leakThreshold;
+   }
+
+   public void setLeakListener(LeakListener leakListener) {
+      this.leakListener = leakListener;
+   }
+
+   /**
+    * @return the number of connections that have been reported as leaked.
+    */
+   public long getLeaksDetected() {
+      return leaksDetected.get();
+   }
+
+   /**
+    * @return the number of leaked connections that have been closed by the pool.
+    */
+   public long getLeaksReclaimed() {
+      return leaksReclaimed.get();
+   }
+
+   /**
+    * A resize decision of the adaptive pool sizing, together with the observations it was based on.
+    */
+   public static final class SizingDecision {
+      private final long time;
+      private final int previousSize;
+      private final int newSize;
+      private final double averageWaitMillis;
+      private final double utilization;
+      private final double latencyMillis;
+      private final String reason;
+
+      SizingDecision(long time, int previousSize, int newSize, double averageWaitMillis, double utilization,
+                     double latencyMillis, String reason) {
+         this.time = time;
+         this.previousSize = previousSize;
+         this.newSize = newSize;
+         this.averageWaitMillis = averageWaitMillis;
+         this.utilization = utilization;
+         this.latencyMillis = latencyMillis;
+         this.reason = reason;
+      }
+
+      /**
+       * @return the time of the decision in milliseconds since the epoch.
+       */
+      public long getTime() {
+         return time;
+      }
+
+      public int getPreviousSize() {
+         return previousSize;
+      }
+
+      public int getNewSize() {
+         return newSize;
+      }
+
+      /**
+       * @return the average time callers waited for a permit during the last interval.
+       */
+      public double getAverageWaitMillis() {
+         return averageWaitMillis;
+      }
+
+      /**
+       * @return the peak number of active connections during the last interval divided by the pool size.
+       */
+      public double getUtilization() {
+         return utilization;
+      }
+
+      /**
+       * @return the average time a connection was held during the last interval, -1 if none was returned.
+       */
+      public double getLatencyMillis() {
+         return latencyMillis;
+      }
+
+      public String getReason() {
+         return reason;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%d -> %d (%s, wait %.2fms, utilization %.2f, latency %.2fms)",
+            previousSize, newSize, reason, averageWaitMillis, utilization, latencyMillis);
+      }
+   }
+
+   /**
+    * Lets the pool grow and shrink the number of connections it hands out between
+    * <code>minConnections</code> and the <code>maxConnections</code> it was constructed with.
+    * Every <code>intervalMillis</code> the pool looks at what happened since the last decision:
+    * <ul>
+    * <li>If the time connections are held, which is mostly the database response time, has risen
+    * to more than twice its baseline, the database is taken to be saturated and the pool shrinks.</li>
+    * <li>Otherwise, if callers waited longer than <code>targetWaitMillis</code> on average or are still
+    * waiting, the pool grows by a quarter.</li>
+    * <li>Otherwise, if less than half of the connections were in use at the peak, the pool shrinks
+    * halfway towards the peak.</li>
+    * </ul>
+    * The decisions are kept in {@link #getSizingHistory()}. The pool starts at its current size.
+    *
+    * @param minConnections   the smallest size the pool may shrink to.
+    * @param intervalMillis   the time between two decisions in milliseconds, 0 to disable the adaptive
+    *                         sizing and return to <code>maxConnections</code>.
+    * @param targetWaitMillis the average wait for a connection above which the pool grows.
+    */
+   public void setAdaptiveSizing(int minConnections, long intervalMillis, long targetWaitMillis) {
+      if (minConnections < 1 || minConnections > maxConnections)
+         throw new IllegalArgumentException("Invalid minConnections value.");
+      if (intervalMillis < 0) throw new IllegalArgumentException("Invalid sizing interval.");
+      if (targetWaitMillis < 0) throw new IllegalArgumentException("Invalid targetWaitMillis value.");
+      List<Con> excess;
+      synchronized (this) {
+         excess = configureAdaptiveSizing(minConnections, intervalMillis, targetWaitMillis);
+      }
+      closeConnectionsNoEx(excess);
+   }
+
+   private List<Con> configureAdaptiveSizing(int minConnections, long intervalMillis, long targetWaitMillis) {
+      if (sizingTask != null) {
+         sizingTask.cancel(false);
+         sizingTask = null;
+      }
+      minPoolSize = minConnections;
+      this.targetWaitMillis = targetWaitMillis;
+      if (intervalMillis == 0) {
+         adaptiveSizing = false;
+         return resize(maxConnections);
+      }
+      List<Con> excess = resize(Math.max(poolSize, minConnections));
+      latencyBaseline = -1;
+      sizingWaitCount = metrics.waitTime.getCount();
+      sizingWaitNanos = metrics.waitTime.getTotalNanos();
+      sizingHeldCount = metrics.heldTime.getCount();
+      sizingHeldNanos = metrics.heldTime.getTotalNanos();
+      sizingPeakActive.set(activeConnections.get());
+      adaptiveSizing = true;
+      if (!isDisposed) {
+         sizingTask = getMaintenanceExecutor().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+               adjustPoolSize();
+            }
+         }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+      }
+      return excess;
+   }
+
+   /**
+    * Makes one decision of the adaptive pool sizing. This is called periodically while the adaptive
+    * sizing is enabled.
+    *
+    * @return the decision, or null if the adaptive sizing is disabled.
+    */
+   public SizingDecision adjustPoolSize() {
+      List<Con> excess = new ArrayList<Con>();
+      SizingDecision decision;
+      synchronized (this) {
+         decision = decidePoolSize(excess);
+      }
+      closeConnectionsNoEx(excess);
+      return decision;
+   }
+
+   private SizingDecision decidePoolSize(List<Con> excess) {
+      if (!adaptiveSizing || isDisposed) return null;
+      // The histograms are read one counter at a time, so the deltas may be slightly off under load
+      long acquires = metrics.waitTime.getCount() - sizingWaitCount;
+      long waitNanos = metrics.waitTime.getTotalNanos() - sizingWaitNanos;
+      long returns = metrics.heldTime.getCount() - sizingHeldCount;
+      long heldNanos = metrics.heldTime.getTotalNanos() - sizingHeldNanos;
+      sizingWaitCount += acquires;
+      sizingWaitNanos += waitNanos;
+      sizingHeldCount += returns;
+      sizingHeldNanos += heldNanos;
+      int peak = sizingPeakActive.getAndSet(activeConnections.get());
+      boolean waiting = semaphore.hasQueuedThreads();
+
+      int size = poolSize;
+      double averageWait = acquires == 0 ? 0 : waitNanos / 1e6 / acquires;
+      double utilization = (double) peak / size;
+      double latency = returns == 0 ? -1 : heldNanos / 1e6 / returns;
+      boolean degraded = false;
+      if (latency >= 0) {
+         // The baseline follows falling latencies at once and rising ones slowly
+         degraded = latencyBaseline > 0 && latency > latencyBaseline * LATENCY_TOLERANCE;
+         latencyBaseline = latencyBaseline < 0 || latency < latencyBaseline
+            ? latency : latencyBaseline + (latency - latencyBaseline) * 0.05;
+      }
+
+      int newSize = size;
+      String reason;
+      if (degraded && size > minPoolSize) {
+         newSize = Math.max(minPoolSize, size - Math.max(1, size / 4));
+         reason = "latency";
+      } else if ((averageWait > targetWaitMillis || waiting) && !degraded && size < maxConnections) {
+         newSize = Math.min(maxConnections, size + Math.max(1, size / 4));
+         reason = "wait";
+      } else if (utilization < 0.5 && size > minPoolSize) {
+         newSize = Math.max(minPoolSize, size - Math.max(1, (size - peak) / 2));
+         reason = "utilization";
+      } else {
+         reason = "hold";
+      }
+      excess.addAll(resize(newSize));
+
+      SizingDecision decision = new SizingDecision(System.currentTimeMillis(), size, newSize, averageWait,
+         utilization, latency, reason);
+      if (sizingHistory.size() == SIZING_HISTORY_SIZE) sizingHistory.removeFirst();
+      sizingHistory.addLast(decision);
+      return decision;
+   }
+
+   /**
+    * Changes the number of permits and takes out the idle connections the new size has no room for.
+    * The caller must hold the pool monitor and close the returned connections after releasing it.
+    */
+   private List<Con> resize(int newSize) {
+      int delta = newSize - poolSize;
+      poolSize = newSize;
+      semaphore.adjust(delta);
+      if (laneScheduler != null) laneScheduler.setCapacity(newSize);
+      List<Con> excess = new ArrayList<Con>();
+      while (activeConnections.get() + getIdleConnections() > newSize) {
+         Con c = pollIdleConnection();
+         if (c == null) break;
+         excess.add(c);
+      }
+      return excess;
+   }
+
+   private void closeConnectionsNoEx(List<Con> connections) {
+      for (Con c : connections) {
+         closeConnectionNoEx(c);
+      }
+   }
+
+   /**
+    * @return the number of connections the pool currently hands out at most. This is
+    * <code>maxConnections</code> unless the adaptive sizing is enabled.
+    */
+   public int getPoolSize() {
+      return poolSize;
+   }
+
+   /**
+    * @return the most recent decisions of the adaptive sizing, oldest first.
+    */
+   public synchronized List<SizingDecision> getSizingHistory() {
+      return new ArrayList<SizingDecision>(sizingHistory);
+   }
+
+   private Con openConnection() throws SQLException {
+      long start = System.nanoTime();
+      try {
+         return newCon(dataSource.getPooledConnection());
+      } finally {
+         metrics.creationTime.record(System.nanoTime() - start);
+      }
+   }
+
+   /**
+    * Adds a lane, or changes an existing one. Once a pool has lanes, every caller is admitted through
+    * the lane declared with {@link PoolLane} before it competes for a permit, and callers that declare
+    * no lane use the {@link PoolLane#DEFAULT_LANE}. A lane can always use its reserved permits, which
+    * no other lane may take, and may borrow up to <code>burst</code> permits from the shared ones that
+    * no lane reserves. When a connection is returned, waiting callers are served by descending lane
+    * priority. A lane that is not configured causes an IllegalArgumentException on checkout.
+    *
+    * @param name     the lane name.
+    * @param reserved the number of permits reserved for the lane.
+    * @param burst    the maximum number of shared permits the lane may use at the same time.
+    * @param priority the priority of the waiters of the lane, higher is served first.
+    */
+   public synchronized void addLane(String name, int reserved, int burst, int priority) {
+      if (name == null) throw new IllegalArgumentException("Invalid lane name.");
+      if (reserved < 0 || burst < 0) throw new IllegalArgumentException("Invalid lane permits.");
+      if (laneScheduler == null) {
+         LaneScheduler scheduler = new LaneScheduler(poolSize);
+         scheduler.configure(name, reserved, burst, priority);
+         laneScheduler = scheduler;
+      } else {
+         laneScheduler.configure(name, reserved, burst, priority);
+      }
+   }
+
+   /**
+    * @param name the lane name.
+    * @return the number of connections checked out in the lane, -1 if there is no such lane.
+    */
+   public int getLaneActiveConnections(String name) {
+      LaneScheduler scheduler = laneScheduler;
+      return scheduler == null ? -1 : scheduler.getInUse(name);
+   }
+
+   /**
+    * @param name the lane name.
+    * @return the number of callers waiting to be admitted in the lane, -1 if there is no such lane.
+    */
+   public int getLaneWaiters(String name) {
+      LaneScheduler scheduler = laneScheduler;
+      return scheduler == null ? -1 : scheduler.getWaiting(name);
+   }
+
+   private void releaseLane(Con c) {
+      LaneScheduler.Lane lane = c.lane;
+      if (lane != null) {
+         c.lane = null;
+         laneScheduler.release(lane);
+      }
+   }
+
+   /**
+    * Wraps a newly opened physical connection.
+    */
+   private Con newCon(PooledConnection pconn) {
+      long retireAt = 0;
+      long lifetime = maxLifetime;
+      if (lifetime > 0) {
+         long jitter = maxLifetimeJitter;
+         retireAt = System.currentTimeMillis() + lifetime;
+         if (jitter > 0) {
+            retireAt -= (long) (random.nextDouble() * jitter);
+         }
+      }
+      metrics.created.incrementAndGet();
+      Con c = new Con(pconn, retireAt);
+      c.listener = new PoolConnectionEventListener(c);
+      int cacheSize = statementCacheSize;
+      if (cacheSize > 0) {
+         c.statementCache = new StatementCache(cacheSize, statementCacheHits, statementCacheMisses);
+      }
+      return c;
+   }
+
+   /**
+    * Sets the number of prepared statements cached per physical connection. With a cache, calling
+    * <code>prepareStatement(String)</code> on a pooled connection reuses a statement prepared earlier
+    * on the same physical connection for the same sql, and closing the statement puts it back to the
+    * cache. The size applies to connections opened after this call.
+    *
+    * @param statementCacheSize the maximum number of cached statements per connection, 0 to disable the cache.
+    */
+   public void setStatementCacheSize(int statementCacheSize) {
+      if (statementCacheSize < 0) throw new IllegalArgumentException("Invalid statementCacheSize value.");
+      this.statementCacheSize = statementCacheSize;
+   }
+
+   public int getStatementCacheSize() {
+      return statementCacheSize;
+   }
+
+   /**
+    * @return the number of prepared statements that were served from a statement cache.
+    */
+   public long getStatementCacheHits() {
+      return statementCacheHits.get();
+   }
+
+   /**
+    * @return the number of prepared statements that had to be prepared while a statement cache was in use.
+    */
+   public long getStatementCacheMisses() {
+      return statementCacheMisses.get();
+   }
+
+   static ThreadFactory daemonThreadFactory(final String name) {
+      return new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+         }
+      };
+   }
+
+   /**
+    * Sets the number of idle connections the pool tries to keep open. Missing connections are opened
+    * in the background when the pool closes a connection and by {@link #freeIdleConnections()}, so that
+    * a checkout rarely has to wait for a new physical connection.
+    *
+    * @param minIdle the minimum number of idle connections, at most <code>maxConnections</code>.
+    */
+   public void setMinIdle(int minIdle) {
+      if (minIdle < 0 || minIdle > maxConnections) throw new IllegalArgumentException("Invalid minIdle value.");
+      this.minIdle = minIdle;
+      fillIdleConnections(minIdle, null);
+   }
+
+   public int getMinIdle() {
+      return minIdle;
+   }
+
+   /**
+    * Sets how many physical connections the pool may open in parallel.
+    *
+    * @param maxConcurrentCreations the maximum number of connections being opened at the same time.
+    */
+   public synchronized void setMaxConcurrentCreations(int maxConcurrentCreations) {
+      if (maxConcurrentCreations < 1) throw new IllegalArgumentException("Invalid maxConcurrentCreations value.");
+      creationPermits.adjust(maxConcurrentCreations - this.maxConcurrentCreations);
+      this.maxConcurrentCreations = maxConcurrentCreations;
+      if (fillExecutor != null) {
+         if (maxConcurrentCreations > fillExecutor.getMaximumPoolSize()) {
+            fillExecutor.setMaximumPoolSize(maxConcurrentCreations);
+            fillExecutor.setCorePoolSize(maxConcurrentCreations);
+         } else {
+            fillExecutor.setCorePoolSize(maxConcurrentCreations);
+            fillExecutor.setMaximumPoolSize(maxConcurrentCreations);
+         }
+      }
+   }
+
+   public synchronized int getMaxConcurrentCreations() {
+      return maxConcurrentCreations;
+   }
+
+   /**
+    * Opens <code>initialSize</code> connections in the background, using up to
+    * <code>maxConcurrentCreations</code> threads. The time it takes to open them is reported by
+    * {@link #getWarmUpTime()}.
+    *
+    * @param initialSize the number of connections to open, at most <code>maxConnections</code>.
+    */
+   public void setInitialSize(int initialSize) {
+      if (initialSize < 0 || initialSize > maxConnections) throw new IllegalArgumentException("Invalid initialSize value.");
+      CountDownLatch latch;
+      synchronized (this) {
+         if (warmUpLatch != null) throw new IllegalStateException("The pool has already been warmed up.");
+         latch = new CountDownLatch(Math.max(0, initialSize - getIdleConnections()));
+         warmUpLatch = latch;
+         warmUpStarted = System.nanoTime();
+      }
+      if (latch.getCount() == 0) {
+         warmUpTime = 0;
+      } else {
+         fillIdleConnections(initialSize, latch);
+      }
+   }
 
-   static class Con {
-      final PooledConnection pooledCon;
-      long lastRecyle;
+   /**
+    * Returns the time it took to open the connections requested by {@link #setInitialSize(int)}.
+    *
+    * @return the warm-up time in milliseconds, or -1 if the warm-up has not finished yet.
+    */
+   public long getWarmUpTime() {
+      return warmUpTime;
+   }
 
-      Con(PooledConnection pooledCon) {
-         this.pooledCon = pooledCon;
-         lastRecyle = System.currentTimeMillis();
+   /**
+    * Waits until the connections requested by {@link #setInitialSize(int)} have been opened.
+    *
+    * @param timeout the maximum time to wait.
+    * @param unit    the unit of the timeout argument.
+    * @return true if the warm-up has finished, false if the timeout elapsed first.
+    * @throws InterruptedException if the current thread is interrupted while waiting.
+    */
+   public boolean awaitWarmUp(long timeout, TimeUnit unit) throws InterruptedException {
+      CountDownLatch latch;
+      synchronized (this) {
+         latch = warmUpLatch;
       }
+      return latch == null || latch.await(timeout, unit);
+   }
 
-      @Override
-      public boolean equals(Object o) {
-         if (this == o) return true;
-         if (o == null || getClass() != o.getClass()) return false;
-
-         Con con = (Con) o;
+   /**
+    * Submits background tasks that open connections until <code>target</code> connections are idle.
+    *
+    * @param target the number of idle connections to reach.
+    * @param latch  counted down by every submitted task, may be null.
+    */
+   private void fillIdleConnections(int target, final CountDownLatch latch) {
+      if (isDisposed) return;
+      int missing;
+      if (latch != null) {
+         missing = (int) latch.getCount();
+         pendingFills.addAndGet(missing);
+      } else {
+         // Reserve the missing connections atomically, so that concurrent callers do not overfill
+         int pending;
+         do {
+            pending = pendingFills.get();
+            missing = target - getIdleConnections() - pending;
+            if (missing <= 0) return;
+         } while (!pendingFills.compareAndSet(pending, pending + missing));
+      }
 
-         return pooledCon.equals(con.pooledCon);
+      ThreadPoolExecutor executor;
+      synchronized (this) {
+         if (isDisposed) {
+            pendingFills.addAndGet(-missing);
+            return;
+         }
+         if (fillExecutor == null) {
+            fillExecutor = new ThreadPoolExecutor(maxConcurrentCreations, maxConcurrentCreations, 30, TimeUnit.SECONDS,
+               new LinkedBlockingQueue<Runnable>(), daemonThreadFactory("ConnectionPool filler"));
+            fillExecutor.allowCoreThreadTimeOut(true);
+         }
+         executor = fillExecutor;
       }
 
-      @Override
-      public int hashCode() {
-         return pooledCon.hashCode();
+      for (int i = 0; i < missing; i++) {
+         Runnable fill = new Runnable() {
+            public void run() {
+               try {
+                  openIdleConnection();
+               } finally {
+                  pendingFills.decrementAndGet();
+                  if (latch != null) {
+                     // The time is set before the last count down, so it is known once awaitWarmUp() returns
+                     synchronized (latch) {
+                        if (latch.getCount() == 1) warmUpTime = (System.nanoTime() - warmUpStarted) / 1000000L;
+                        latch.countDown();
+                     }
+                  }
+               }
+            }
+         };
+         try {
+            executor.execute(fill);
+         } catch (RejectedExecutionException e) {
+            // The pool has been disposed in the meantime, finish the task without opening a connection
+            fill.run();
+         }
       }
    }
 
-   public synchronized void freeIdleConnections() {
-      Iterator<Con> conIterator = recycledConnections.iterator();
-      long now = System.currentTimeMillis();
-      while (conIterator.hasNext()) {
-         Con c = conIterator.next();
-         if (c.lastRecyle + (300000L) < now) {
-            conIterator.remove();
-            closeConnectionNoEx(c.pooledCon);
+   private void openIdleConnection() {
+      // The new connection holds a permit while it is opened, so a busy pool is not overfilled.
+      if (isDisposed || !semaphore.tryAcquire()) return;
+      try {
+         creationPermits.acquire();
+         try {
+            Con c = openConnection();
+            if (!returnIdleConnection(c)) {
+               closeConnectionNoEx(c);
+            }
+         } finally {
+            creationPermits.release();
          }
+      } catch (SQLException e) {
+         // The next checkout or fill will try again
+      } catch (InterruptedException e) {
+         // The pool is being disposed
+      } finally {
+         semaphore.release();
       }
    }
 
    /**
-    * Thrown in  when no free connection becomes available within <code>timeout</code> seconds.
+    * Sets the order in which idle connections are reused.
+    *
+    * @param reuseOrder the reuse order.
     */
-   public static class TimeoutException extends RuntimeException {
-      private static final long serialVersionUID = 1;
+   public void setReuseOrder(ReuseOrder reuseOrder) {
+      if (reuseOrder == null) throw new IllegalArgumentException("Invalid reuseOrder value.");
+      this.reuseOrder = reuseOrder;
+   }
 
-      public TimeoutException() {
-         super("Timeout while waiting for a free database connection.");
-      }
+   public ReuseOrder getReuseOrder() {
+      return reuseOrder;
+   }
+
+   public ValidationPolicy getValidationPolicy() {
+      return validationPolicy;
+   }
+
+   public long getValidationInterval() {
+      return validationInterval;
    }
 
    /**
-    * Constructs a MiniConnectionPoolManager object with a timeout of 60 seconds.
-    *
-    * @param dataSource     the data source for the connections.
-    * @param maxConnections the maximum number of connections.
+    * @return the number of <code>Connection.isValid()</code> calls made by this pool.
     */
-   public ConnectionPool(ConnectionPoolDataSource dataSource, int maxConnections) {
-      this(dataSource, maxConnections, 60);
+   public long getValidationsPerformed() {
+      return validationsPerformed.get();
    }
 
    /**
-    * Constructs a ConnectionPool object.
-    *
-    * @param dataSource     the data source for the connections.
-    * @param maxConnections the maximum number of connections.
-    * @param timeout        the maximum time in seconds to wait for a free connection.
+    * @return the number of checkouts that handed out a connection without validating it.
     */
-   public ConnectionPool(ConnectionPoolDataSource dataSource, int maxConnections, int timeout) {
-      this.dataSource = dataSource;
-      this.maxConnections = maxConnections;
-      this.timeout = timeout;
-      if (maxConnections < 1) throw new IllegalArgumentException("Invalid maxConnections value.");
-      semaphore = new Semaphore(maxConnections, true);
-      recycledConnections = new ArrayDeque<Con>();
-      poolConnectionEventListener = new PoolConnectionEventListener();
+   public long getValidationsSkipped() {
+      return validationsSkipped.get();
    }
 
    /**
@@ -135,13 +1236,31 @@ public final class ConnectionPool {
     *
     * @throws java.sql.SQLException //
     */
-   public synchronized void dispose() throws SQLException {
-      if (isDisposed) return;
-      isDisposed = true;
+   public void dispose() throws SQLException {
+      List<Con> idle = new ArrayList<Con>();
+      synchronized (this) {
+         if (isDisposed) return;
+         isDisposed = true;
+         if (maintenanceExecutor != null) {
+            maintenanceExecutor.shutdownNow();
+         }
+         unregisterMBean();
+         if (fillExecutor != null) {
+            fillExecutor.shutdownNow();
+         }
+         Con c;
+         while ((c = pollIdleConnection()) != null) {
+            idle.add(c);
+         }
+      }
+      // The connections are closed outside of the monitor, closing may block on the network
       SQLException e = null;
-      while (!recycledConnections.isEmpty()) {
-         Con c = recycledConnections.remove();
+      for (Con c : idle) {
          PooledConnection pconn = c.pooledCon;
+         metrics.destroyed.incrementAndGet();
+         if (c.statementCache != null) {
+            c.statementCache.close();
+         }
          try {
             pconn.close();
          }
@@ -161,77 +1280,471 @@ public final class ConnectionPool {
     *
     * @return a new Connection object.
     * @throws TimeoutException      when no connection becomes available within <code>timeout</code> seconds.
+    * @throws RejectedException     when no connection is free and <code>maxWaiters</code> threads are waiting.
     * @throws java.sql.SQLException //
     */
    public Connection getConnection() throws SQLException {
+      return getConnection(TimeUnit.SECONDS.toNanos(timeout));
+   }
+
+   /**
+    * Retrieves a connection from the connection pool, waiting at most for the given time.
+    * Callers with a request deadline should pass the time they have left, so that they
+    * give up when the result is no longer useful instead of after the pool timeout. A zero
+    * or negative time only takes a connection that is free right away.
+    *
+    * @param timeout the maximum time to wait.
+    * @param unit    the unit of the timeout.
+    * @return a new Connection object.
+    * @throws TimeoutException      when no connection becomes available within the given time.
+    * @throws RejectedException     when no connection is free and <code>maxWaiters</code> threads are waiting.
+    * @throws java.sql.SQLException //
+    */
+   public Connection getConnection(long timeout, TimeUnit unit) throws SQLException {
+      return getConnection(unit.toNanos(timeout));
+   }
+
+   private Connection getConnection(long timeoutNanos) throws SQLException {
       // This routine is unsynchronized, because semaphore.tryAcquire() may block.
-      synchronized (this) {
-         if (isDisposed) throw new IllegalStateException("Connection pool has been disposed.");
+      if (isDisposed) throw new IllegalStateException("Connection pool has been disposed.");
+      LaneScheduler.Lane lane = acquirePermit(timeoutNanos);
+      boolean ok = false;
+      try {
+         Connection conn = engine == Engine.CONCURRENT ? getConcurrentConnection(lane) : getConnection2(lane);
+         ok = true;
+         return conn;
+      }
+      finally {
+         if (!ok) {
+            semaphore.release();
+            if (lane != null) laneScheduler.release(lane);
+         }
       }
+   }
+
+   /**
+    * Takes a pool permit, after being admitted by the lane of the caller if lanes are configured.
+    *
+    * @param timeoutNanos the maximum time to wait.
+    * @return the lane the permit was taken in, or null if there are no lanes.
+    */
+   private LaneScheduler.Lane acquirePermit(long timeoutNanos) {
+      LaneScheduler scheduler = laneScheduler;
+      LaneScheduler.Lane lane = null;
+      boolean acquired = false;
       try {
-         if (!semaphore.tryAcquire(timeout, TimeUnit.SECONDS))
+         // Free permits are taken without reading the clock or counting as a waiter.
+         // A zero timeout still respects a fair semaphore.
+         if (scheduler != null) lane = scheduler.tryAcquire(PoolLane.current());
+         if ((scheduler == null || lane != null) && semaphore.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+            metrics.waitTime.record(0);
+            acquired = true;
+            return lane;
+         }
+         int max = maxWaiters;
+         if (waiters.incrementAndGet() > max && max > 0) {
+            waiters.decrementAndGet();
+            metrics.rejections.incrementAndGet();
+            throw new RejectedException();
+         }
+         long waitStart = System.nanoTime();
+         try {
+            if (scheduler != null && lane == null) {
+               lane = scheduler.acquire(PoolLane.current(), timeoutNanos);
+            }
+            if (scheduler == null || lane != null) {
+               long remaining = timeoutNanos - (System.nanoTime() - waitStart);
+               acquired = semaphore.tryAcquire(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+            }
+         } finally {
+            waiters.decrementAndGet();
+         }
+         metrics.waitTime.record(System.nanoTime() - waitStart);
+         if (!acquired) {
+            metrics.timeouts.incrementAndGet();
             throw new TimeoutException();
+         }
+         return lane;
       }
       catch (InterruptedException e) {
          throw new RuntimeException("Interrupted while waiting for a database connection.", e);
       }
-      boolean ok = false;
-      try {
-         Connection conn = getConnection2();
-         ok = true;
-         return conn;
-      }
       finally {
-         if (!ok) semaphore.release();
+         if (!acquired && lane != null) scheduler.release(lane);
       }
    }
 
-   private synchronized Connection getConnection2() throws SQLException {
-      if (isDisposed) throw new IllegalStateException("Connection pool has been disposed.");   // test again with lock
+   private Connection getConnection2(LaneScheduler.Lane lane) throws SQLException {
+      // The monitor only guards the recycled connections queue. Opening and validating a connection
+      // happens outside of it, so a slow database never blocks threads that return connections.
+      for (int i = 0; i < 3; i++) {
+         Con c;
+         boolean reused;
+         do {
+            synchronized (this) {
+               if (isDisposed) throw new IllegalStateException("Connection pool has been disposed.");   // test again with lock
+               c = pollRecycledConnection();
+            }
+            reused = c != null;
+            if (!reused) c = createConnection();
+         } while (c == null);
+
+         Connection conn = checkOut(c, reused, lane);
+         if (conn != null) return conn;
+      }
+
+      throw new SQLException("Could not get a valid connection in 3 trials");
+   }
 
+   private Connection getConcurrentConnection(LaneScheduler.Lane lane) throws SQLException {
       for (int i = 0; i < 3; i++) {
-         PooledConnection pconn;
-         if (!recycledConnections.isEmpty()) {
-            pconn = recycledConnections.remove().pooledCon;
+         Con c;
+         boolean reused;
+         do {
+            c = claimIdleConnection();
+            reused = c != null;
+            if (!reused) c = createConnection();
+         } while (c == null);
+
+         Connection conn = checkOut(c, reused, lane);
+         if (conn != null) return conn;
+      }
+
+      throw new SQLException("Could not get a valid connection in 3 trials");
+   }
+
+   /**
+    * Validates a connection taken for a checkout and registers it as active.
+    *
+    * @param c      the pool entry of the connection.
+    * @param reused false if the connection has just been opened.
+    * @param lane   the lane the permit was taken in, null if there are no lanes.
+    * @return the connection to hand out, or null if it was not valid and has been closed.
+    * @throws SQLException //
+    */
+   private Connection checkOut(Con c, boolean reused, LaneScheduler.Lane lane) throws SQLException {
+      Connection conn;
+      try {
+         if (c.statementCache != null) {
+            // The statement cache depends on a logical handle that stays open between checkouts
+            if (c.handle == null || c.handle.isClosed()) {
+               c.statementCache.close();
+               c.handle = c.pooledCon.getConnection();
+            }
+            conn = c.handle;
          } else {
-            pconn = dataSource.getPooledConnection();
+            conn = c.pooledCon.getConnection();
          }
+         if (!isValid(conn, c, reused)) {
+            closeConnectionNoEx(c);
+            return null;
+         }
+      } catch (SQLException e) {
+         closeConnectionNoEx(c);
+         throw e;
+      }
 
-         Connection conn = pconn.getConnection();
-         if (conn.isValid(2)) {
-            activeConnections++;
-            pconn.addConnectionEventListener(poolConnectionEventListener);
+      if (engine == Engine.CONCURRENT) {
+         activeConnections.incrementAndGet();
+      } else {
+         synchronized (this) {
+            activeConnections.incrementAndGet();
             assertInnerState();
-            return conn;
          }
       }
+      c.checkoutNanos = System.nanoTime();
+      c.lane = lane;
+      if (adaptiveSizing) {
+         int active = activeConnections.get();
+         int peak;
+         while (active > (peak = sizingPeakActive.get()) && !sizingPeakActive.compareAndSet(peak, active)) {
+            // retry
+         }
+      }
+      if (leakThreshold > 0) {
+         synchronized (c) {
+            trackCheckout(c);
+            c.checkedOut.set(true);
+         }
+      } else {
+         c.checkedOut.set(true);
+      }
+      c.pooledCon.addConnectionEventListener(c.listener);
+      return c.statementCache != null ? c.statementCache.wrap(conn, c.pooledCon, c.listener) : conn;
+   }
 
-      throw new SQLException("Could not get a valid connection in 3 trials");
+   private void trackCheckout(Con c) {
+      int rate = leakSampleRate;
+      Throwable site = null;
+      if (rate > 0 && threadRandom.get().nextInt(rate) == 0) {
+         // Drop the frames of the pool itself so the trace starts at the caller of getConnection()
+         site = new Throwable("Connection checked out here");
+         StackTraceElement[] trace = site.getStackTrace();
+         int i = 0;
+         while (i < trace.length - 1 && trace[i].getClassName().equals(ConnectionPool.class.getName())) i++;
+         site.setStackTrace(Arrays.copyOfRange(trace, i, trace.length));
+      }
+      c.checkoutSite = site;
+      c.leakReported = false;
+      c.checkoutTime = System.currentTimeMillis();
+      trackedConnections.add(c);
    }
 
-   private synchronized void recycleConnection(PooledConnection pconn) {
-      if (isDisposed) {
-         disposeConnection(pconn);
+   /**
+    * Takes a leaked connection away from the application, unless it has been returned in the meantime.
+    * The lock keeps a new checkout of the same connection from being taken for the leaked one.
+    */
+   private boolean claimLeakedConnection(Con c, long checkoutTime) {
+      synchronized (c) {
+         if (c.checkoutTime != checkoutTime || !c.checkedOut.compareAndSet(true, false)) return false;
+         untrackCheckout(c);
+         return true;
+      }
+   }
+
+   private void untrackCheckout(Con c) {
+      if (c.checkoutTime != 0) {
+         c.checkoutTime = 0;
+         c.checkoutSite = null;
+         trackedConnections.remove(c);
+      }
+   }
+
+   /**
+    * Opens a new physical connection for a checkout. At most <code>maxConcurrentCreations</code>
+    * connections are opened at the same time. While a caller waits for its turn it keeps looking
+    * at the idle connections, because a connection returned in the meantime is cheaper than a new one.
+    *
+    * @return the new connection, or null if an idle connection became available while waiting.
+    * @throws SQLException //
+    */
+   private Con createConnection() throws SQLException {
+      try {
+         while (!creationPermits.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+            if (hasIdleConnection()) return null;
+         }
+      }
+      catch (InterruptedException e) {
+         throw new RuntimeException("Interrupted while waiting for a database connection.", e);
+      }
+      try {
+         return openConnection();
+      }
+      finally {
+         creationPermits.release();
+      }
+   }
+
+   private boolean hasIdleConnection() {
+      if (engine == Engine.CONCURRENT) {
+         for (int i = 0; i < idleSlots.length(); i++) {
+            if (idleSlots.get(i) != null) return true;
+         }
+         return false;
+      }
+
+      synchronized (this) {
+         return !recycledConnections.isEmpty();
+      }
+   }
+
+   /**
+    * Validates a connection on checkout if the validation policy asks for it.
+    *
+    * @param conn   the connection to be handed out.
+    * @param c      the pool entry of the connection.
+    * @param reused false if the connection has just been opened.
+    * @return true if the connection may be handed out.
+    * @throws SQLException //
+    */
+   private boolean isValid(Connection conn, Con c, boolean reused) throws SQLException {
+      boolean validate;
+      switch (validationPolicy) {
+         case ALWAYS:
+            validate = true;
+            break;
+         case IDLE_TIME:
+            validate = reused && System.currentTimeMillis() - c.lastRecyle > validationInterval;
+            break;
+         case ON_ERROR:
+            validate = reused && c.lastRecyle <= lastErrorTime;
+            break;
+         default:
+            validate = false;
+      }
+
+      if (!validate) {
+         validationsSkipped.incrementAndGet();
+         return true;
+      }
+      validationsPerformed.incrementAndGet();
+      if (conn.isValid(2)) return true;
+      metrics.validationFailures.incrementAndGet();
+      return false;
+   }
+
+   /**
+    * Removes an idle connection from the pool. With the monitor engine the caller must hold the pool monitor.
+    *
+    * @return an idle connection or null if there is none.
+    */
+   private Con pollIdleConnection() {
+      if (engine == Engine.CONCURRENT) return claimIdleConnection();
+      Con c = recycledConnections.poll();
+      recycledCount = recycledConnections.size();
+      return c;
+   }
+
+   /**
+    * Takes the next connection from the recycled queue according to the reuse order. The queue is
+    * always ordered from the least to the most recently returned connection.
+    * The caller must hold the pool monitor.
+    */
+   private Con pollRecycledConnection() {
+      Con c;
+      switch (reuseOrder) {
+         case LIFO:
+         case THREAD_AFFINE:
+            c = recycledConnections.pollLast();
+            break;
+         case RANDOM:
+            int n = recycledConnections.size();
+            if (n > 1) {
+               Iterator<Con> it = recycledConnections.iterator();
+               c = it.next();
+               for (int skip = random.nextInt(n); skip > 0; skip--) {
+                  c = it.next();
+               }
+               it.remove();
+            } else {
+               c = recycledConnections.poll();
+            }
+            break;
+         default:
+            c = recycledConnections.poll();
+      }
+      recycledCount = recycledConnections.size();
+      return c;
+   }
+
+   private Con claimIdleConnection() {
+      int n = idleSlots.length();
+      int start;
+      switch (reuseOrder) {
+         case FIFO:
+            start = (fifoCursor.getAndIncrement() & Integer.MAX_VALUE) % n;
+            break;
+         case LIFO:
+            start = 0;
+            break;
+         case RANDOM:
+            start = threadRandom.get().nextInt(n);
+            break;
+         default:
+            start = homeSlot();
+      }
+      for (int i = 0; i < n; i++) {
+         int slot = (start + i) % n;
+         Con c = idleSlots.get(slot);
+         if (c != null && idleSlots.compareAndSet(slot, c, null)) return c;
+      }
+      return null;
+   }
+
+   private boolean offerIdleConnection(Con c) {
+      // Idle plus active connections never exceed the slot count, so a free slot exists. Slots may be
+      // claimed and released while we scan, hence the second pass before giving up.
+      int n = idleSlots.length();
+      int start = reuseOrder == ReuseOrder.LIFO ? 0 : homeSlot();
+      for (int i = 0; i < 2 * n; i++) {
+         int slot = (start + i) % n;
+         if (idleSlots.get(slot) == null && idleSlots.compareAndSet(slot, null, c)) return true;
+      }
+      return false;
+   }
+
+   private int homeSlot() {
+      return (int) (Thread.currentThread().getId() % idleSlots.length());
+   }
+
+   private void recycleConnection(Con c) {
+      long now = System.currentTimeMillis();
+      if (!c.isRetired(now)) {
+         synchronized (this) {
+            if (!isDisposed) {
+               if (activeConnections.get() <= 0) throw new AssertionError();
+               activeConnections.decrementAndGet();
+               semaphore.release();
+               c.lastRecyle = now;
+               recycledConnections.add(c);
+               recycledCount = recycledConnections.size();
+               assertInnerState();
+               return;
+            }
+         }
+      }
+      disposeConnection(c);
+   }
+
+   private void disposeConnection(Con c) {
+      synchronized (this) {
+         if (activeConnections.get() <= 0) throw new AssertionError();
+         activeConnections.decrementAndGet();
+         semaphore.release();
+         assertInnerState();
+      }
+      closeConnectionNoEx(c);
+      topUpIdleConnections();
+   }
+
+   private void recycleConcurrentConnection(Con c) {
+      if (activeConnections.decrementAndGet() < 0) throw new AssertionError();
+      long now = System.currentTimeMillis();
+      c.lastRecyle = now;
+      if (isDisposed || c.isRetired(now) || !offerIdleConnection(c)) {
+         closeConnectionNoEx(c);
+         semaphore.release();
+         topUpIdleConnections();
          return;
       }
-      if (activeConnections <= 0) throw new AssertionError();
-      activeConnections--;
+      if (isDisposed) {
+         // dispose() may have drained the slots before our connection was parked
+         closeIdleConnections();
+      }
       semaphore.release();
-      recycledConnections.add(new Con(pconn));
-      assertInnerState();
    }
 
-   private synchronized void disposeConnection(PooledConnection pconn) {
-      if (activeConnections <= 0) throw new AssertionError();
-      activeConnections--;
+   private void closeIdleConnections() {
+      Con c;
+      while ((c = claimIdleConnection()) != null) {
+         closeConnectionNoEx(c);
+      }
+   }
+
+   private void disposeConcurrentConnection(Con c) {
+      if (activeConnections.decrementAndGet() < 0) throw new AssertionError();
+      closeConnectionNoEx(c);
       semaphore.release();
-      closeConnectionNoEx(pconn);
-      assertInnerState();
+      topUpIdleConnections();
+   }
+
+   /**
+    * Replaces a connection the pool has closed, if fewer than <code>minIdle</code> connections are idle.
+    * This is not done on checkout, which would scan the idle connections on every call; the maintenance
+    * job tops the pool up as well.
+    */
+   private void topUpIdleConnections() {
+      int min = minIdle;
+      if (min > 0 && pendingFills.get() < min) fillIdleConnections(min, null);
    }
 
-   private void closeConnectionNoEx(PooledConnection pconn) {
+   private void closeConnectionNoEx(Con c) {
+      metrics.destroyed.incrementAndGet();
+      if (c.statementCache != null) {
+         c.statementCache.close();
+      }
       try {
-         pconn.close();
+         c.pooledCon.close();
       }
       catch (SQLException e) {
          //
@@ -239,22 +1752,82 @@ public final class ConnectionPool {
    }
 
    private void assertInnerState() {
-      if (activeConnections < 0) throw new AssertionError();
-      if (activeConnections + recycledConnections.size() > maxConnections) throw new AssertionError();
-      if (activeConnections + semaphore.availablePermits() > maxConnections) throw new AssertionError();
+      int active = activeConnections.get();
+      if (active < 0) throw new AssertionError();
+      if (active + recycledConnections.size() > maxConnections) throw new AssertionError();
+      if (active + semaphore.availablePermits() > maxConnections) throw new AssertionError();
+      if (poolSize > maxConnections) throw new AssertionError();
    }
 
    private class PoolConnectionEventListener implements ConnectionEventListener {
+      private final Con con;
+
+      PoolConnectionEventListener(Con con) {
+         this.con = con;
+      }
+
       public void connectionClosed(ConnectionEvent event) {
          PooledConnection pconn = (PooledConnection) event.getSource();
          pconn.removeConnectionEventListener(this);
-         recycleConnection(pconn);
+         if (!con.checkedOut.compareAndSet(true, false)) return;   // already returned or disposed
+         untrackCheckout(con);
+         metrics.heldTime.record(System.nanoTime() - con.checkoutNanos);
+         if (engine == Engine.CONCURRENT) {
+            recycleConcurrentConnection(con);
+         } else {
+            recycleConnection(con);
+         }
+         releaseLane(con);
       }
 
       public void connectionErrorOccurred(ConnectionEvent event) {
          PooledConnection pconn = (PooledConnection) event.getSource();
+         lastErrorTime = System.currentTimeMillis();
          pconn.removeConnectionEventListener(this);
-         disposeConnection(pconn);
+         if (!con.checkedOut.compareAndSet(true, false)) return;   // already returned or disposed
+         untrackCheckout(con);
+         metrics.heldTime.record(System.nanoTime() - con.checkoutNanos);
+         if (engine == Engine.CONCURRENT) {
+            disposeConcurrentConnection(con);
+         } else {
+            disposeConnection(con);
+         }
+         releaseLane(con);
+      }
+   }
+
+   /**
+    * Reports the checked out connections that have been held for longer than the leak threshold, and
+    * reclaims them if the leak detection was configured to do so. A reclaimed connection is closed, so the
+    * application holding it gets an exception on its next use, and its permit is given to the next caller.
+    * This is called periodically while the leak detection is enabled.
+    */
+   public void detectLeakedConnections() {
+      long threshold = leakThreshold;
+      if (threshold <= 0) return;
+      long now = System.currentTimeMillis();
+      for (Con c : trackedConnections) {
+         long checkoutTime = c.checkoutTime;
+         if (checkoutTime == 0 || now - checkoutTime < threshold || c.leakReported) continue;
+         c.leakReported = true;
+         Throwable site = c.checkoutSite;
+         boolean reclaimed = false;
+         if (leakReclaim && claimLeakedConnection(c, checkoutTime)) {
+            c.pooledCon.removeConnectionEventListener(c.listener);
+            if (engine == Engine.CONCURRENT) {
+               disposeConcurrentConnection(c);
+            } else {
+               disposeConnection(c);
+            }
+            releaseLane(c);
+            leaksReclaimed.incrementAndGet();
+            reclaimed = true;
+         }
+         leaksDetected.incrementAndGet();
+         LeakListener listener = leakListener;
+         if (listener != null) {
+            listener.connectionLeaked(now - checkoutTime, site, reclaimed);
+         }
       }
    }
 
@@ -266,7 +1839,83 @@ public final class ConnectionPool {
     *
     * @return the number of active connections.
     */
-   public synchronized int getActiveConnections() {
-      return activeConnections;
+   public int getActiveConnections() {
+      return activeConnections.get();
+   }
+
+   /**
+    * Returns the number of idle connections that are kept open by this pool.
+    *
+    * @return the number of idle connections.
+    */
+   public int getIdleConnections() {
+      if (engine == Engine.CONCURRENT) {
+         int idle = 0;
+         for (int i = 0; i < idleSlots.length(); i++) {
+            if (idleSlots.get(i) != null) idle++;
+         }
+         return idle;
+      }
+
+      return recycledCount;
+   }
+
+   /**
+    * @return the number of threads waiting for a free connection.
+    */
+   public int getPendingWaiters() {
+      return waiters.get();
+   }
+
+   /**
+    * Limits the number of threads that may wait for a free connection. When the limit is reached,
+    * <code>getConnection()</code> throws a {@link RejectedException} right away instead of queueing
+    * another thread, so an overloaded database sheds load instead of tying up request threads
+    * until they time out. Callers that find a free connection are never rejected.
+    *
+    * @param maxWaiters the maximum number of waiting threads, 0 for no limit.
+    */
+   public void setMaxWaiters(int maxWaiters) {
+      if (maxWaiters < 0) throw new IllegalArgumentException("Invalid maxWaiters value.");
+      this.maxWaiters = maxWaiters;
+   }
+
+   /**
+    * @return the maximum number of waiting threads, 0 for no limit.
+    */
+   public int getMaxWaiters() {
+      return maxWaiters;
+   }
+
+   /**
+    * @return the metrics of this pool.
+    */
+   public PoolMetrics getMetrics() {
+      return metrics;
+   }
+
+   /**
+    * Exports the metrics of this pool as a JMX MBean on the platform MBean server. The MBean is
+    * unregistered when the pool is disposed.
+    *
+    * @param objectName the JMX object name, for example <code>jdbchelper:type=ConnectionPool,name=orders</code>.
+    * @throws JMException if the MBean could not be registered.
+    */
+   public synchronized void registerMBean(String objectName) throws JMException {
+      if (isDisposed) throw new IllegalStateException("Connection pool has been disposed.");
+      if (mbeanName != null) throw new IllegalStateException("The pool is already registered as " + mbeanName);
+      ObjectName name = new ObjectName(objectName);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+      mbeanName = name;
+   }
+
+   private void unregisterMBean() {
+      if (mbeanName == null) return;
+      try {
+         ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (JMException e) {
+         // Unregistered by someone else
+      }
+      mbeanName = null;
    }
 }
@@ -0,0 +1,37 @@
+package jdbchelper;
+
+/**
+ * The management interface a {@link ConnectionPool} exports through JMX when
+ * {@link ConnectionPool#registerMBean(String)} is called. Durations are in milliseconds.
+ */
+public interface ConnectionPoolMXBean {
+   int getActiveConnections();
+
+   int getIdleConnections();
+
+   int getPendingWaiters();
+
+   int getPoolSize();
+
+   long getConnectionsCreated();
+
+   long getConnectionsDestroyed();
+
+   long getValidationFailures();
+
+   long getTimeouts();
+
+   long getRejections();
+
+   double getWaitTimeMeanMillis();
+
+   double getWaitTime99thPercentileMillis();
+
+   double getHeldTimeMeanMillis();
+
+   double getHeldTime99thPercentileMillis();
+
+   double getCreationTimeMeanMillis();
+
+   double getCreationTimeMaxMillis();
+}
@@ -0,0 +1,226 @@
+package jdbchelper;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A Sharded DataSource that maps shard keys to shards with consistent hashing.
+ *
+ * Every shard is placed on a hash ring at a number of pseudo random points, its virtual nodes.
+ * A key belongs to the shard of the first point at or after the hash of the key. Adding a shard
+ * therefore only moves the keys that fall before its points, about 1/N of all keys for N shards,
+ * and removing a shard only moves its own keys. Shards can be added and removed at runtime.
+ *
+ * The ring is kept as a sorted array of the point hashes, so a lookup is one binary search
+ * without locking or boxing. Every change builds a new ring that is published at once.
+ *
+ * <p>Example:</p>
+ * <pre>
+ * ConsistentHashShardedDataSource shards = new ConsistentHashShardedDataSource();
+ * shards.addShard("users-1", users1);
+ * shards.addShard("users-2", users2);
+ * JdbcHelper jdbc = new JdbcHelper(shards.getDataSource(userId));
+ * </pre>
+ */
+public class ConsistentHashShardedDataSource implements ShardedDataSource {
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private final int virtualNodes;
+   private volatile Ring ring = new Ring(new String[0], new LoadBalancingDataSource[0], 0);
+
+   /**
+    * Creates an empty sharded data source with 160 virtual nodes per shard.
+    */
+   public ConsistentHashShardedDataSource() {
+      this(160);
+   }
+
+   /**
+    * @param virtualNodes The number of points of every shard on the ring. More points spread the keys more
+    * evenly over the shards, at the cost of a larger ring
+    */
+   public ConsistentHashShardedDataSource(int virtualNodes) {
+      if (virtualNodes < 1) throw new IllegalArgumentException("Invalid virtualNodes value.");
+      this.virtualNodes = virtualNodes;
+   }
+
+   /**
+    * Adds a shard. The name places the shard on the ring, so a shard that is added again under
+    * the same name gets the same keys back.
+    * @param name The name of the shard
+    * @param dataSource The data source of the shard
+    */
+   public synchronized void addShard(String name, LoadBalancingDataSource dataSource) {
+      if (name == null) throw new IllegalArgumentException("Invalid name value.");
+      if (dataSource == null) throw new IllegalArgumentException("Invalid dataSource value.");
+      Ring r = ring;
+      if (r.indexOf(name) >= 0) throw new IllegalArgumentException("Invalid name value.");
+      String[] names = Arrays.copyOf(r.names, r.names.length + 1);
+      LoadBalancingDataSource[] dataSources = Arrays.copyOf(r.dataSources, r.dataSources.length + 1);
+      names[names.length - 1] = name;
+      dataSources[dataSources.length - 1] = dataSource;
+      ring = new Ring(names, dataSources, virtualNodes);
+   }
+
+   /**
+    * Removes a shard. Its keys move to the following shards on the ring, and the shards added
+    * after it move down by one shard number.
+    * @param name The name of the shard
+    * @return Returns the data source of the removed shard, or null if there is no such shard
+    */
+   public synchronized LoadBalancingDataSource removeShard(String name) {
+      Ring r = ring;
+      int index = r.indexOf(name);
+      if (index < 0) return null;
+      List<String> names = new ArrayList<String>(Arrays.asList(r.names));
+      List<LoadBalancingDataSource> dataSources = new ArrayList<LoadBalancingDataSource>(Arrays.asList(r.dataSources));
+      names.remove(index);
+      LoadBalancingDataSource removed = dataSources.remove(index);
+      ring = new Ring(names.toArray(new String[names.size()]),
+         dataSources.toArray(new LoadBalancingDataSource[dataSources.size()]), virtualNodes);
+      return removed;
+   }
+
+   /**
+    * @param shardNo The shard number, in the order the shards were added
+    * @return Returns the data source of the shard, or null if there is no such shard
+    */
+   public LoadBalancingDataSource getDataSource(int shardNo) {
+      Ring r = ring;
+      return shardNo >= 0 && shardNo < r.dataSources.length ? r.dataSources[shardNo] : null;
+   }
+
+   /**
+    * @param key A shard key
+    * @return Returns the data source of the shard the key belongs to
+    */
+   public LoadBalancingDataSource getDataSource(long key) {
+      Ring r = ring;
+      return r.dataSources[r.shardOf(mix(key))];
+   }
+
+   /**
+    * @param key A shard key
+    * @return Returns the data source of the shard the key belongs to
+    */
+   public LoadBalancingDataSource getDataSource(String key) {
+      Ring r = ring;
+      return r.dataSources[r.shardOf(hash(key))];
+   }
+
+   /**
+    * @param key A shard key
+    * @return Returns the number of the shard the key belongs to
+    */
+   public int getShard(long key) {
+      return ring.shardOf(mix(key));
+   }
+
+   /**
+    * @param key A shard key
+    * @return Returns the number of the shard the key belongs to
+    */
+   public int getShard(String key) {
+      return ring.shardOf(hash(key));
+   }
+
+   /**
+    * @param shardNo The shard number
+    * @return Returns the name of the shard
+    */
+   public String getShardName(int shardNo) {
+      return ring.names[shardNo];
+   }
+
+   public int getShardCount() {
+      return ring.names.length;
+   }
+
+   public int getVirtualNodes() {
+      return virtualNodes;
+   }
+
+   public void runMaintenanceJob() {
+      for (LoadBalancingDataSource dataSource : ring.dataSources) {
+         dataSource.getMaintenanceJob().run();
+      }
+   }
+
+   /**
+    * The finalizer of MurmurHash3, which spreads nearby keys over the whole ring.
+    */
+   static long mix(long h) {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }
+
+   /**
+    * The 64 bit FNV-1a hash of the UTF-8 bytes of the key, mixed like a long key.
+    */
+   static long hash(String key) {
+      if (key == null) throw new IllegalArgumentException("Invalid key value.");
+      long h = 0xcbf29ce484222325L;
+      for (byte b : key.getBytes(UTF8)) {
+         h ^= b & 0xff;
+         h *= 0x100000001b3L;
+      }
+      return mix(h);
+   }
+
+   /**
+    * An immutable ring. The points are sorted by hash, and owners holds the shard number of every point.
+    */
+   private static final class Ring {
+      final String[] names;
+      final LoadBalancingDataSource[] dataSources;
+      final long[] points;
+      final int[] owners;
+
+      Ring(String[] names, LoadBalancingDataSource[] dataSources, int virtualNodes) {
+         this.names = names;
+         this.dataSources = dataSources;
+         int n = names.length * virtualNodes;
+         long[][] sorted = new long[n][];
+         for (int shard = 0; shard < names.length; shard++) {
+            for (int v = 0; v < virtualNodes; v++) {
+               sorted[shard * virtualNodes + v] = new long[]{hash(names[shard] + "#" + v), shard};
+            }
+         }
+         // Points of equal hash are ordered by shard name, so the ring does not depend on the order of adding
+         Arrays.sort(sorted, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+               if (a[0] != b[0]) return a[0] < b[0] ? -1 : 1;
+               return Ring.this.names[(int) a[1]].compareTo(Ring.this.names[(int) b[1]]);
+            }
+         });
+         points = new long[n];
+         owners = new int[n];
+         for (int i = 0; i < n; i++) {
+            points[i] = sorted[i][0];
+            owners[i] = (int) sorted[i][1];
+         }
+      }
+
+      int indexOf(String name) {
+         for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+         }
+         return -1;
+      }
+
+      int shardOf(long hash) {
+         if (points.length == 0) throw new IllegalStateException("No shards");
+         int i = Arrays.binarySearch(points, hash);
+         if (i < 0) i = -i - 1;
+         if (i == points.length) i = 0;
+         return owners[i];
+      }
+   }
+}
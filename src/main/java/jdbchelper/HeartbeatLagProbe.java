@@ -0,0 +1,40 @@
+package jdbchelper;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A {@link LagProbe} that runs a query returning the replication lag in milliseconds, typically by
+ * comparing a timestamp the primary writes into a heartbeat table with the current time.
+ *
+ * <p>Example for MySQL, with the primary updating <code>heartbeat.ts</code> every second:</p>
+ * <pre>
+ * new HeartbeatLagProbe("select timestampdiff(microsecond, ts, now(6)) div 1000 from heartbeat");
+ * </pre>
+ */
+public class HeartbeatLagProbe implements LagProbe {
+   private final String sql;
+
+   /**
+    * @param sql A query returning a single number, the lag in milliseconds
+    */
+   public HeartbeatLagProbe(String sql) {
+      if (sql == null) throw new IllegalArgumentException("Invalid sql value.");
+      this.sql = sql;
+   }
+
+   public long getLagMillis(Connection con) throws SQLException {
+      Statement stmt = null;
+      ResultSet result = null;
+      try {
+         stmt = con.createStatement();
+         result = stmt.executeQuery(sql);
+         if (!result.next()) throw new SQLException("The heartbeat query returned no row: " + sql);
+         return Math.max(0, result.getLong(1));
+      } finally {
+         JdbcUtil.close(stmt, result);
+      }
+   }
+}
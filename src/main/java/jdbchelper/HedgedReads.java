@@ -0,0 +1,303 @@
+package jdbchelper;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the single row reads of a {@link JdbcHelper} as hedged requests over a {@link LoadBalancingDataSource}.
+ *
+ * The read is started on one backend. If it has not finished after the configured percentile of the
+ * recent read latencies, the same read is started on a second backend. The first attempt that succeeds
+ * wins, and the statement of the other one is cancelled with <code>Statement.cancel()</code>. The share
+ * of reads that may be hedged is limited by a token bucket, so a backend that is slow for everyone does
+ * not double the load on the others.
+ *
+ * @see JdbcHelper#setHedgedReads(double, double)
+ */
+final class HedgedReads {
+   /**
+    * The hedging delay is derived again after this many reads.
+    */
+   static final int DELAY_UPDATE = 100;
+
+   /**
+    * The latencies are collected afresh after this many reads, so the delay follows the recent ones.
+    */
+   static final int WINDOW = 1000;
+
+   /**
+    * The number of hedges that may be fired in a burst, once the budget has been saved up.
+    */
+   static final int BURST = 10;
+
+   private static final long TOKEN = 1000;
+
+   /**
+    * Runs a read on a connection. The statement must be registered with the attempt before it is
+    * executed, so that it can be cancelled.
+    */
+   interface Read<T> {
+      T run(Connection con, Attempt<T> attempt) throws SQLException;
+   }
+
+   private final double percentile;
+   private final long deposit;
+   private final AtomicLong tokens = new AtomicLong();
+   private final AtomicLong reads = new AtomicLong();
+   private volatile LatencyHistogram latency = new LatencyHistogram();
+   private volatile long delayNanos = -1;
+   private final AtomicLong hedgesFired;
+   private final AtomicLong hedgesWon;
+   private final ScheduledThreadPoolExecutor timer;
+   private final ThreadPoolExecutor executor;
+
+   /**
+    * @param percentile the latency percentile after which a read is hedged.
+    * @param budget     the maximum share of reads that are hedged.
+    * @param maxThreads the maximum number of hedges running at the same time.
+    * @param fired      counts the hedges that were started.
+    * @param won        counts the hedges that answered before the first attempt.
+    */
+   HedgedReads(double percentile, double budget, int maxThreads, AtomicLong fired, AtomicLong won) {
+      this.percentile = percentile;
+      this.deposit = Math.round(budget * TOKEN);
+      this.hedgesFired = fired;
+      this.hedgesWon = won;
+      timer = new ScheduledThreadPoolExecutor(1, ConnectionPool.daemonThreadFactory("JdbcHelper hedge timer"));
+      executor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+         ConnectionPool.daemonThreadFactory("JdbcHelper hedged read"));
+   }
+
+   void shutdown() {
+      timer.shutdownNow();
+      executor.shutdown();
+   }
+
+   /**
+    * @return the current hedging delay in milliseconds, or -1 while too few reads have been seen.
+    */
+   double getDelayMillis() {
+      long delay = delayNanos;
+      return delay < 0 ? -1 : delay / 1000000d;
+   }
+
+   /**
+    * Runs the read, hedging it on a second backend if it is slow.
+    *
+    * @return the result of the winning attempt.
+    * @throws NoResultException if the winning attempt found no row.
+    * @throws SQLException      the error of the first attempt, if no attempt succeeded.
+    */
+   <T> T read(final LoadBalancingDataSource replicas, Read<T> read) throws SQLException {
+      long start = System.nanoTime();
+      long tokens = this.tokens.addAndGet(deposit);
+      if (tokens > BURST * TOKEN) this.tokens.compareAndSet(tokens, BURST * TOKEN);
+
+      final Race<T> race = new Race<T>(replicas, read, LoadBalancingDataSource.getRequiredMaxLag(), PoolLane.current());
+      Attempt<T> first = new Attempt<T>(race, null);
+      race.first = first;
+      long delay = delayNanos;
+      Attempt<T> outcome;
+      if (delay < 0) {
+         // Too few reads to know when to hedge, so there is nothing to wait for besides the read itself
+         first.run();
+         outcome = first;
+      } else {
+         // Both attempts run on the executor, so the caller returns as soon as one of them has answered,
+         // even if the other one is still waiting for a connection
+         ScheduledFuture<?> hedge = timer.schedule(new Runnable() {
+            public void run() {
+               fireHedge(race);
+            }
+         }, delay, TimeUnit.NANOSECONDS);
+         try {
+            executor.execute(first);
+         } catch (RejectedExecutionException e) {
+            first.run();
+         }
+         outcome = race.awaitOutcome();
+         hedge.cancel(false);
+      }
+
+      record(System.nanoTime() - start);
+      if (outcome.error instanceof SQLException) throw (SQLException) outcome.error;
+      if (outcome.error instanceof RuntimeException) throw (RuntimeException) outcome.error;
+      if (outcome.error != null) throw new RuntimeException(outcome.error);
+      if (outcome.noResult) throw new NoResultException();
+      return outcome.result;
+   }
+
+   private <T> void fireHedge(Race<T> race) {
+      Attempt<T> second;
+      synchronized (race) {
+         // The first attempt chooses its backend right after it starts, the hedge must go elsewhere
+         while (race.first.backend == null && !race.first.finished) {
+            try {
+               race.wait();
+            } catch (InterruptedException e) {
+               return;
+            }
+         }
+         if (race.first.finished || !takeToken()) return;
+         second = new Attempt<T>(race, race.first.backend);
+         race.second = second;
+      }
+      hedgesFired.incrementAndGet();
+      try {
+         executor.execute(second);
+      } catch (RejectedExecutionException e) {
+         second.error = e;
+         race.finished(second);
+      }
+   }
+
+   private boolean takeToken() {
+      while (true) {
+         long available = tokens.get();
+         if (available < TOKEN) return false;
+         if (tokens.compareAndSet(available, available - TOKEN)) return true;
+      }
+   }
+
+   private void record(long nanos) {
+      LatencyHistogram h = latency;
+      h.record(nanos);
+      long n = reads.incrementAndGet();
+      if (n % DELAY_UPDATE == 0) {
+         delayNanos = Math.round(h.getPercentileMillis(percentile) * 1000000);
+         if (n % WINDOW == 0) latency = new LatencyHistogram();
+         // The hedges that were not needed are cancelled, remove them from the timer queue
+         timer.purge();
+      }
+   }
+
+   /**
+    * The attempts of one read. The first attempt that succeeds wins and cancels the other one.
+    */
+   final class Race<T> {
+      final LoadBalancingDataSource replicas;
+      final Read<T> read;
+      final long maxLag;
+      final String lane;
+      Attempt<T> first;
+      Attempt<T> second;   // guarded by this
+      Attempt<T> winner;   // guarded by this
+
+      Race(LoadBalancingDataSource replicas, Read<T> read, long maxLag, String lane) {
+         this.replicas = replicas;
+         this.read = read;
+         this.maxLag = maxLag;
+         this.lane = lane;
+      }
+
+      void finished(Attempt<T> attempt) {
+         synchronized (this) {
+            attempt.finished = true;
+            if (winner == null && attempt.error == null) {
+               winner = attempt;
+               if (attempt == second) hedgesWon.incrementAndGet();
+               Attempt<T> loser = attempt == first ? second : first;
+               // The statement is cancelled under the lock. The loser clears it under the same lock before
+               // closing it, so a statement that went back to a statement cache is never cancelled.
+               if (loser != null && !loser.finished && loser.statement != null) {
+                  try {
+                     loser.statement.cancel();
+                  } catch (SQLException e) {
+                     // the loser runs to its end
+                  }
+               }
+            }
+            notifyAll();
+         }
+      }
+
+      /**
+       * Waits until an attempt has succeeded, or every attempt has failed.
+       */
+      synchronized Attempt<T> awaitOutcome() {
+         boolean interrupted = false;
+         while (winner == null && !(first.finished && (second == null || second.finished))) {
+            try {
+               wait();
+            } catch (InterruptedException e) {
+               interrupted = true;
+            }
+         }
+         if (interrupted) Thread.currentThread().interrupt();
+         return winner != null ? winner : first;
+      }
+   }
+
+   /**
+    * One execution of the read on one backend.
+    */
+   static final class Attempt<T> implements Runnable, LoadBalancingDataSource.BackendListener {
+      final Race<T> race;
+      final LoadBalancingDataSource.Pool excluded;
+      LoadBalancingDataSource.Pool backend;   // guarded by race
+      Statement statement;   // guarded by race
+      boolean finished;   // guarded by race
+      T result;
+      boolean noResult;
+      Throwable error;
+
+      Attempt(Race<T> race, LoadBalancingDataSource.Pool excluded) {
+         this.race = race;
+         this.excluded = excluded;
+      }
+
+      public void selected(LoadBalancingDataSource.Pool backend) {
+         synchronized (race) {
+            this.backend = backend;
+            race.notifyAll();
+         }
+      }
+
+      /**
+       * Registers the statement of the attempt before it is executed.
+       *
+       * @throws SQLException if the other attempt has already won.
+       */
+      void started(Statement stmt) throws SQLException {
+         synchronized (race) {
+            if (race.winner != null) throw new SQLException("Hedged read already answered.");
+            statement = stmt;
+         }
+      }
+
+      /**
+       * Called before the statement is closed, after which it may no longer be cancelled.
+       */
+      void released() {
+         synchronized (race) {
+            statement = null;
+         }
+      }
+
+      public void run() {
+         String lane = race.lane;
+         String previousLane = lane != null ? PoolLane.enter(lane) : null;
+         Connection con = null;
+         try {
+            con = race.replicas.getConnection(race.maxLag, excluded, this);
+            result = race.read.run(con, this);
+         } catch (NoResultException e) {
+            noResult = true;
+         } catch (Throwable e) {
+            error = e;
+         } finally {
+            JdbcUtil.close(con);
+            if (lane != null) PoolLane.exit(previousLane);
+         }
+         race.finished(this);
+      }
+   }
+}
@@ -6,6 +6,8 @@ import java.io.Reader;
 import java.math.BigDecimal;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * JdbcHelper is a wrapper around JDBC API for performing common tasks such as insert, or
@@ -32,6 +34,12 @@ public class JdbcHelper {
 
    DataSource dataSource;
 
+   private volatile String lane;
+
+   private volatile HedgedReads hedging;
+   private final AtomicLong hedgesFired = new AtomicLong();
+   private final AtomicLong hedgesWon = new AtomicLong();
+
    /**
     * Creates a new JdbcHelper instance for the provided data source
     * @param dataSource The data source that this instance of JdbcHelper will use
@@ -49,6 +57,90 @@ public class JdbcHelper {
        this.logger = logger;
    }
 
+   /**
+    * Sets the {@link ConnectionPool} lane of the connections this instance checks out. A lane
+    * declared with {@link PoolLane} for the current thread takes precedence.
+    * @param lane The lane name, or null to use the lane of the current thread
+    * @see ConnectionPool#addLane(String, int, int, int)
+    */
+   public void setLane(String lane) {
+      this.lane = lane;
+   }
+
+   /**
+    * @return Returns the lane set with {@link #setLane(String)}, or null
+    */
+   public String getLane() {
+      return lane;
+   }
+
+   /**
+    * Hedges the single row reads, such as {@link #queryForInt(String, Object...)} or
+    * {@link #queryForObject(String, BeanCreator, Object...)}, when the data source is a
+    * {@link LoadBalancingDataSource} or a {@link ReadWriteDataSource} with at least two backends.
+    * A read that has not answered after the given percentile of the recent read latencies is sent
+    * to a second backend as well. The first answer is returned and the other statement is cancelled.
+    * Reads within a transaction and reads of lists or maps are never hedged.
+    * @param percentile The latency percentile after which a read is hedged, e.g. 95. Zero disables hedging
+    * @param budget The maximum share of the reads that may be hedged, e.g. 0.05 for 5% extra load
+    */
+   public synchronized void setHedgedReads(double percentile, double budget) {
+      if (percentile < 0 || percentile >= 100) {
+         throw new IllegalArgumentException("Invalid percentile value.");
+      }
+      if (percentile > 0 && (budget <= 0 || budget > 1)) {
+         throw new IllegalArgumentException("Invalid budget value.");
+      }
+      HedgedReads previous = hedging;
+      hedging = percentile == 0 ? null : new HedgedReads(percentile, budget, 16, hedgesFired, hedgesWon);
+      if (previous != null) {
+         previous.shutdown();
+      }
+   }
+
+   /**
+    * @return Returns the number of reads that were sent to a second backend
+    */
+   public long getHedgesFired() {
+      return hedgesFired.get();
+   }
+
+   /**
+    * @return Returns the number of hedged reads where the second backend answered first
+    */
+   public long getHedgesWon() {
+      return hedgesWon.get();
+   }
+
+   /**
+    * @return Returns the current delay after which a read is hedged in milliseconds, or -1 if
+    * hedging is disabled or too few reads have been made yet
+    */
+   public double getHedgeDelayMillis() {
+      HedgedReads hedging = this.hedging;
+      return hedging == null ? -1 : hedging.getDelayMillis();
+   }
+
+   private Connection openConnection(boolean read) throws SQLException {
+      String lane = this.lane;
+      if (lane == null || PoolLane.current() != null) {
+         return connect(read);
+      }
+      String previous = PoolLane.enter(lane);
+      try {
+         return connect(read);
+      } finally {
+         PoolLane.exit(previous);
+      }
+   }
+
+   private Connection connect(boolean read) throws SQLException {
+      if (read && dataSource instanceof ReadWriteDataSource) {
+         return ((ReadWriteDataSource) dataSource).getReadConnection();
+      }
+      return dataSource.getConnection();
+   }
+
    /**
     * If the supplied connection is bound to the current thread, this binding is removed
     * and the connection is closed.
@@ -73,10 +165,24 @@ public class JdbcHelper {
     * @see #freeConnection(java.sql.Connection)
     */
    public Connection getConnection() throws SQLException {
-      Transaction transaction = currentTransaction.get();
+      Transaction transaction = currentTransaction();
 
       if (transaction == null) {
-         return dataSource.getConnection();
+         return openConnection(false);
+      } else {
+         return transaction.connection;
+      }
+   }
+
+   /**
+    * Like {@link #getConnection()}, for statements that only read. Outside of a transaction, a
+    * {@link ReadWriteDataSource} hands out a replica connection here.
+    */
+   Connection getReadConnection() throws SQLException {
+      Transaction transaction = currentTransaction();
+
+      if (transaction == null) {
+         return openConnection(true);
       } else {
          return transaction.connection;
       }
@@ -100,6 +206,24 @@ public class JdbcHelper {
       public int getTimeout() {
          return 0;
       }
+
+      /**
+       * @return true if the callback may process rows of several executions of the same query,
+       *         which allows a read to be hedged.
+       */
+      public boolean isIdempotent() {
+         return false;
+      }
+   }
+
+   /**
+    * A callback that only maps the first row to the returned value and keeps no state.
+    */
+   abstract class SingleRowCallback<T> extends QueryCallback<T> {
+      @Override
+      public boolean isIdempotent() {
+         return true;
+      }
    }
 
    abstract class ParameteredQueryCallback<T> extends QueryCallback<T> {
@@ -127,6 +251,27 @@ public class JdbcHelper {
 
    private ThreadLocal<Transaction> currentTransaction;
 
+   /**
+    * The number of threads that currently have a connection bound. While it is zero the ThreadLocal is
+    * not looked up, so a short lived thread that never holds a connection, such as a virtual thread per
+    * request, does not get a ThreadLocal map just for finding out that it has no transaction.
+    */
+   private final AtomicInteger boundTransactions = new AtomicInteger();
+
+   private Transaction currentTransaction() {
+      return boundTransactions.get() == 0 ? null : currentTransaction.get();
+   }
+
+   private void bindTransaction(Transaction transaction) {
+      boundTransactions.incrementAndGet();
+      currentTransaction.set(transaction);
+   }
+
+   private void unbindTransaction() {
+      currentTransaction.remove();
+      boundTransactions.decrementAndGet();
+   }
+
    private static class Transaction {
       Connection connection;
       boolean autoCommit;
@@ -146,7 +291,7 @@ public class JdbcHelper {
     * @return Returns true if a connection is bound to the current thread
     */
    public boolean isConnectionHeld() {
-      return currentTransaction.get() != null;
+      return currentTransaction() != null;
    }
 
    /**
@@ -156,7 +301,7 @@ public class JdbcHelper {
     * @see #isConnectionHeld()
     */
    public boolean isInTransaction() {
-      Transaction transaction = currentTransaction.get();
+      Transaction transaction = currentTransaction();
       return transaction != null && !transaction.autoCommit;
    }
 
@@ -174,19 +319,24 @@ public class JdbcHelper {
     * @see #releaseConnection()
     */
    public void beginTransaction() {
-      Transaction transaction = currentTransaction.get();
+      Transaction transaction = currentTransaction();
 
       try {
          if (transaction == null) {
-            transaction = new Transaction(dataSource.getConnection(), false);
+            transaction = new Transaction(openConnection(false), false);
+            try {
+               transaction.connection.setAutoCommit(false);
+            } catch (SQLException e) {
+               JdbcUtil.close(transaction.connection);
+               throw e;
+            }
+            bindTransaction(transaction);
          } else {
             transaction.autoCommit = false;
+            transaction.connection.setAutoCommit(false);
          }
-         transaction.connection.setAutoCommit(false);
 
          transaction.hold++;
-
-         currentTransaction.set(transaction);
       } catch (SQLException e) {
          if (logger != null) {
              logger.log(e);
@@ -207,16 +357,15 @@ public class JdbcHelper {
     * @see #releaseConnection()
     */
    public void holdConnection() {
-      Transaction transaction = currentTransaction.get();
+      Transaction transaction = currentTransaction();
 
       try {
          if (transaction == null) {
-            transaction = new Transaction(dataSource.getConnection(), true);
+            transaction = new Transaction(openConnection(false), true);
+            bindTransaction(transaction);
          }
 
          transaction.hold++;
-
-         currentTransaction.set(transaction);
       } catch (SQLException e) {
          if (logger != null) {
              logger.log(e);
@@ -229,7 +378,7 @@ public class JdbcHelper {
     * Removes the binding between the current thread and the underlying connection.
     */
    public void releaseConnection() {
-      Transaction transaction = currentTransaction.get();
+      Transaction transaction = currentTransaction();
       if (transaction == null) {
          throw new RuntimeException("There isn't a current connection to release");
       }
@@ -248,11 +397,11 @@ public class JdbcHelper {
                throw new JdbcException(e);
             } finally {
                JdbcUtil.close(transaction.connection);
-               currentTransaction.remove();
+               unbindTransaction();
             }
          } else {
             JdbcUtil.close(transaction.connection);
-            currentTransaction.remove();
+            unbindTransaction();
          }
       }
    }
@@ -262,7 +411,7 @@ public class JdbcHelper {
     * connection
     */
    public void commitTransaction() {
-      Transaction transaction = currentTransaction.get();
+      Transaction transaction = currentTransaction();
 
       if (transaction == null || transaction.autoCommit) {
          throw new RuntimeException("There isn't a current transaction to comit");
@@ -277,7 +426,7 @@ public class JdbcHelper {
             throw new JdbcException(e);
          } finally {
             JdbcUtil.close(transaction.connection);
-            currentTransaction.remove();
+            unbindTransaction();
          }
       }
    }
@@ -288,7 +437,7 @@ public class JdbcHelper {
     * connection
     */
    public void rollbackTransaction() {
-      Transaction transaction = currentTransaction.get();
+      Transaction transaction = currentTransaction();
 
       if (transaction == null || transaction.autoCommit) {
          throw new RuntimeException("There isn't a current transaction to rollback");
@@ -303,7 +452,52 @@ public class JdbcHelper {
             throw new JdbcException(e);
          } finally {
             JdbcUtil.close(transaction.connection);
-            currentTransaction.remove();
+            unbindTransaction();
+         }
+      }
+   }
+
+   /**
+    * Runs the supplied callback in a transaction. The connection is bound to the current thread only
+    * while the callback runs. The transaction is committed if the callback returns normally and rolled
+    * back if it throws, and in both cases the connection is released before this method returns, so a
+    * binding can never outlive the callback.
+    *
+    * <p>If the current thread is already in a transaction, the callback joins it. The transaction is then
+    * committed or rolled back by whoever started it.</p>
+    *
+    * <p>Example:</p>
+    * <pre>
+    * long id = jdbc.inTransaction(new TransactionCallback&lt;Long&gt;() {
+    *    public Long doInTransaction(JdbcHelper jdbc) {
+    *       jdbc.execute("insert into t (name) values (?)", "test");
+    *       return jdbc.getLastInsertId();
+    *    }
+    * });
+    * </pre>
+    *
+    * @param callback The work to be done in the transaction
+    * @return Returns the value returned by the callback
+    */
+   public <T> T inTransaction(TransactionCallback<T> callback) {
+      beginTransaction();
+      boolean ok = false;
+      try {
+         T result = callback.doInTransaction(this);
+         ok = true;
+         return result;
+      } finally {
+         Transaction transaction = currentTransaction();
+         if (transaction == null) {
+            // The callback has already committed or rolled back the transaction
+         } else if (ok || transaction.hold > 1) {
+            releaseConnection();
+         } else {
+            try {
+               rollbackTransaction();
+            } catch (JdbcException e) {
+               // The exception thrown by the callback is more interesting, the rollback error has been logged
+            }
          }
       }
    }
@@ -325,7 +519,7 @@ public class JdbcHelper {
     * @return Returns the auto_increment key for last inserted row from a mysql database server.
     */
    public long getLastInsertId() {
-      Transaction transaction = currentTransaction.get();
+      Transaction transaction = currentTransaction();
 
       if (transaction == null) {
          throw new RuntimeException("There isn't a current transaction");
@@ -334,14 +528,109 @@ public class JdbcHelper {
       }
    }
 
+   private LoadBalancingDataSource hedgedReplicas(QueryCallback<?> callback) {
+      if (hedging == null || !callback.isIdempotent() || currentTransaction() != null) {
+         return null;
+      }
+      LoadBalancingDataSource replicas = null;
+      if (dataSource instanceof LoadBalancingDataSource) {
+         replicas = (LoadBalancingDataSource) dataSource;
+      } else if (dataSource instanceof ReadWriteDataSource) {
+         replicas = ((ReadWriteDataSource) dataSource).getReadReplicas();
+      }
+      return replicas != null && replicas.getRoutedBackends() > 1 ? replicas : null;
+   }
+
+   private <T> T hedgedQuery(LoadBalancingDataSource replicas, final String sql, final QueryCallback<T> callback,
+                             final Object[] params, final StatementPopulator populator) throws NoResultException {
+      HedgedReads hedging = this.hedging;
+      String lane = this.lane;
+      boolean enterLane = lane != null && PoolLane.current() == null;
+      if (enterLane) {
+         PoolLane.enter(lane);
+      }
+      try {
+         return hedging.read(replicas, new HedgedReads.Read<T>() {
+            public T run(Connection con, HedgedReads.Attempt<T> attempt) throws SQLException {
+               return runRead(con, sql, callback, params, populator, attempt);
+            }
+         });
+      } catch (SQLException e) {
+         if (logger != null) {
+             logger.log(e, sql);
+         }
+         throw new JdbcException("Error running query:\n" + sql + "\n\nError: " + e.getMessage(), e);
+      } finally {
+         if (enterLane) {
+            PoolLane.exit(null);
+         }
+      }
+   }
+
+   private <T> T runRead(Connection con, String sql, QueryCallback<T> callback, Object[] params,
+                         StatementPopulator populator, HedgedReads.Attempt<T> attempt) throws SQLException {
+      Statement stmt = null;
+      ResultSet result = null;
+
+      try {
+         if (populator == null && (params == null || params.length == 0)) {
+            stmt = con.createStatement();
+         } else if (populator == null) {
+            stmt = fillStatement(con.prepareStatement(sql), params);
+         } else {
+            stmt = con.prepareStatement(sql);
+            populator.populateStatement((PreparedStatement) stmt);
+         }
+
+         if (callback.getFetchSize() != 0) {
+            stmt.setFetchSize(callback.getFetchSize());
+         }
+
+         if (callback.getMaxRows() != 0) {
+            stmt.setMaxRows(callback.getMaxRows());
+         }
+
+         if (callback.getTimeout() != 0) {
+            stmt.setQueryTimeout(callback.getTimeout());
+         }
+
+         attempt.started(stmt);
+         if (stmt instanceof PreparedStatement) {
+            result = ((PreparedStatement) stmt).executeQuery();
+         } else {
+            result = stmt.executeQuery(sql);
+         }
+
+         if (!result.next()) {
+            throw new NoResultException();
+         }
+
+         do {
+            T t = callback.process(result);
+            if (t != null) {
+               return t;
+            }
+         } while (result.next());
+         return null;
+      } finally {
+         attempt.released();
+         JdbcUtil.close(stmt, result);
+      }
+   }
+
    protected <T> T genericQuery(String sql, QueryCallback<T> callback, Object... params) throws NoResultException {
+      LoadBalancingDataSource replicas = hedgedReplicas(callback);
+      if (replicas != null) {
+         return hedgedQuery(replicas, sql, callback, params, null);
+      }
+
       Connection con = null;
       Statement stmt = null;
       ResultSet result = null;
       boolean rollBack = false;
 
       try {
-         con = getConnection();
+         con = getReadConnection();
 
          if (params.length == 0) {
             stmt = con.createStatement();
@@ -412,13 +701,18 @@ public class JdbcHelper {
    }
 
    protected <T> T genericQuery(String sql, QueryCallback<T> callback, StatementPopulator populator) throws NoResultException {
+      LoadBalancingDataSource replicas = hedgedReplicas(callback);
+      if (replicas != null) {
+         return hedgedQuery(replicas, sql, callback, null, populator);
+      }
+
       Connection con = null;
       Statement stmt = null;
       ResultSet result = null;
       boolean rollBack = false;
 
       try {
-         con = getConnection();
+         con = getReadConnection();
 
          if (populator == null) {
             stmt = con.createStatement();
@@ -1049,7 +1343,7 @@ public class JdbcHelper {
     */
    public <T> T queryForObject(String sql, final BeanCreator<T> beanCreator, Object... params) {
       try {
-         return genericQuery(sql, new QueryCallback<T>() {
+         return genericQuery(sql, new SingleRowCallback<T>() {
             public T process(ResultSet rs) throws SQLException {
                T t = beanCreator.createBean(rs);
                if(t instanceof JdbcAware) {
@@ -1065,7 +1359,7 @@ public class JdbcHelper {
 
    public <T> T queryForObject(String sql, final BeanCreator<T> beanCreator, final StatementPopulator populator) {
       try {
-         return genericQuery(sql, new QueryCallback<T>() {
+         return genericQuery(sql, new SingleRowCallback<T>() {
             public T process(ResultSet rs) throws SQLException {
                T t = beanCreator.createBean(rs);
                if(t instanceof JdbcAware) {
@@ -1084,7 +1378,7 @@ public class JdbcHelper {
                                            final BeanCreator<Y> yCreator,
                                            Object... params) {
       try {
-         return genericQuery(sql, new QueryCallback<Tuple<X, Y>>() {
+         return genericQuery(sql, new SingleRowCallback<Tuple<X, Y>>() {
             public Tuple<X, Y> process(ResultSet rs) throws SQLException {
                X x = xCreator.createBean(rs);
                Y y = yCreator.createBean(rs);
@@ -1107,7 +1401,7 @@ public class JdbcHelper {
                                            final BeanCreator<Y> yCreator,
                                            final StatementPopulator populator) {
       try {
-         return genericQuery(sql, new QueryCallback<Tuple<X, Y>>() {
+         return genericQuery(sql, new SingleRowCallback<Tuple<X, Y>>() {
             public Tuple<X, Y> process(ResultSet rs) throws SQLException {
                X x = xCreator.createBean(rs);
                Y y = yCreator.createBean(rs);
@@ -1131,7 +1425,7 @@ public class JdbcHelper {
                                            final BeanCreator<Z> zCreator,
                                            Object... params) {
       try {
-         return genericQuery(sql, new QueryCallback<Triple<X, Y, Z>>() {
+         return genericQuery(sql, new SingleRowCallback<Triple<X, Y, Z>>() {
             public Triple<X, Y, Z> process(ResultSet rs) throws SQLException {
                X x = xCreator.createBean(rs);
                Y y = yCreator.createBean(rs);
@@ -1160,7 +1454,7 @@ public class JdbcHelper {
                                            final BeanCreator<Z> zCreator,
                                            final StatementPopulator populator) {
       try {
-         return genericQuery(sql, new QueryCallback<Triple<X, Y, Z>>() {
+         return genericQuery(sql, new SingleRowCallback<Triple<X, Y, Z>>() {
             public Triple<X, Y, Z> process(ResultSet rs) throws SQLException {
                X x = xCreator.createBean(rs);
                Y y = yCreator.createBean(rs);
@@ -1190,7 +1484,7 @@ public class JdbcHelper {
                                            final BeanCreator<W> wCreator,
                                            Object... params) {
       try {
-         return genericQuery(sql, new QueryCallback<Quadruple<X, Y, Z, W>>() {
+         return genericQuery(sql, new SingleRowCallback<Quadruple<X, Y, Z, W>>() {
             public Quadruple<X, Y, Z, W> process(ResultSet rs) throws SQLException {
                X x = xCreator.createBean(rs);
                Y y = yCreator.createBean(rs);
@@ -1224,7 +1518,7 @@ public class JdbcHelper {
                                            final BeanCreator<W> wCreator,
                                            final StatementPopulator populator) {
       try {
-         return genericQuery(sql, new QueryCallback<Quadruple<X, Y, Z, W>>() {
+         return genericQuery(sql, new SingleRowCallback<Quadruple<X, Y, Z, W>>() {
             public Quadruple<X, Y, Z, W> process(ResultSet rs) throws SQLException {
                X x = xCreator.createBean(rs);
                Y y = yCreator.createBean(rs);
@@ -1259,7 +1553,7 @@ public class JdbcHelper {
                                            final BeanCreator<Q> qCreator,
                                            Object... params) {
       try {
-         return genericQuery(sql, new QueryCallback<Pentuple<X, Y, Z, W, Q>>() {
+         return genericQuery(sql, new SingleRowCallback<Pentuple<X, Y, Z, W, Q>>() {
             public Pentuple<X, Y, Z, W, Q> process(ResultSet rs) throws SQLException {
                X x = xCreator.createBean(rs);
                Y y = yCreator.createBean(rs);
@@ -1298,7 +1592,7 @@ public class JdbcHelper {
                                            final BeanCreator<Q> qCreator,
                                            final StatementPopulator populator) {
       try {
-         return genericQuery(sql, new QueryCallback<Pentuple<X, Y, Z, W, Q>>() {
+         return genericQuery(sql, new SingleRowCallback<Pentuple<X, Y, Z, W, Q>>() {
             public Pentuple<X, Y, Z, W, Q> process(ResultSet rs) throws SQLException {
                X x = xCreator.createBean(rs);
                Y y = yCreator.createBean(rs);
@@ -1347,7 +1641,7 @@ public class JdbcHelper {
     * @throws NoResultException Thrown if the result set is empty
     */
    public int queryForInt(String sql, Object... params) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<Integer>() {
+      return genericQuery(sql, new SingleRowCallback<Integer>() {
          public Integer process(ResultSet rs) throws SQLException {
             return rs.getInt(1);
          }
@@ -1356,7 +1650,7 @@ public class JdbcHelper {
 
 
    public int queryForInt(String sql, final StatementPopulator populator) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<Integer>() {
+      return genericQuery(sql, new SingleRowCallback<Integer>() {
          public Integer process(ResultSet rs) throws SQLException {
             return rs.getInt(1);
          }
@@ -1382,7 +1676,7 @@ public class JdbcHelper {
     * @throws NoResultException Thrown if the result set is empty
     */
    public String queryForString(String sql, Object... params) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<String>() {
+      return genericQuery(sql, new SingleRowCallback<String>() {
          public String process(ResultSet rs) throws SQLException {
             return rs.getString(1);
          }
@@ -1390,7 +1684,7 @@ public class JdbcHelper {
    }
 
    public String queryForString(String sql, final StatementPopulator populator) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<String>() {
+      return genericQuery(sql, new SingleRowCallback<String>() {
          public String process(ResultSet rs) throws SQLException {
             return rs.getString(1);
          }
@@ -1416,7 +1710,7 @@ public class JdbcHelper {
     * @throws NoResultException Thrown if the result set is empty
     */
    public long queryForLong(String sql, Object... params) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<Long>() {
+      return genericQuery(sql, new SingleRowCallback<Long>() {
          public Long process(ResultSet rs) throws SQLException {
             return rs.getLong(1);
          }
@@ -1424,7 +1718,7 @@ public class JdbcHelper {
    }
 
    public long queryForLong(String sql, final StatementPopulator populator) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<Long>() {
+      return genericQuery(sql, new SingleRowCallback<Long>() {
          public Long process(ResultSet rs) throws SQLException {
             return rs.getLong(1);
          }
@@ -1450,7 +1744,7 @@ public class JdbcHelper {
     * @throws NoResultException Thrown if the result set is empty
     */
    public double queryForDouble(String sql, Object... params) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<Double>() {
+      return genericQuery(sql, new SingleRowCallback<Double>() {
          public Double process(ResultSet rs) throws SQLException {
             return rs.getDouble(1);
          }
@@ -1458,7 +1752,7 @@ public class JdbcHelper {
    }
 
    public double queryForDouble(String sql, final StatementPopulator populator) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<Double>() {
+      return genericQuery(sql, new SingleRowCallback<Double>() {
          public Double process(ResultSet rs) throws SQLException {
             return rs.getDouble(1);
          }
@@ -1484,7 +1778,7 @@ public class JdbcHelper {
     * @throws NoResultException Thrown if the result set is empty
     */
    public float queryForFloat(String sql, Object... params) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<Float>() {
+      return genericQuery(sql, new SingleRowCallback<Float>() {
          public Float process(ResultSet rs) throws SQLException {
             return rs.getFloat(1);
          }
@@ -1492,7 +1786,7 @@ public class JdbcHelper {
    }
 
    public float queryForFloat(String sql, final StatementPopulator populator) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<Float>() {
+      return genericQuery(sql, new SingleRowCallback<Float>() {
          public Float process(ResultSet rs) throws SQLException {
             return rs.getFloat(1);
          }
@@ -1517,7 +1811,7 @@ public class JdbcHelper {
     * @throws NoResultException Thrown if the result set is empty
     */
    public Timestamp queryForTimestamp(String sql, Object... params) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<Timestamp>() {
+      return genericQuery(sql, new SingleRowCallback<Timestamp>() {
          public Timestamp process(ResultSet rs) throws SQLException {
             return rs.getTimestamp(1);
          }
@@ -1525,7 +1819,7 @@ public class JdbcHelper {
    }
 
    public Timestamp queryForTimestamp(String sql, final StatementPopulator populator) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<Timestamp>() {
+      return genericQuery(sql, new SingleRowCallback<Timestamp>() {
          public Timestamp process(ResultSet rs) throws SQLException {
             return rs.getTimestamp(1);
          }
@@ -1546,7 +1840,7 @@ public class JdbcHelper {
     * @throws NoResultException Thrown if the result set is empty
     */
    public BigDecimal queryForBigDecimal(String sql, Object... params) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<BigDecimal>() {
+      return genericQuery(sql, new SingleRowCallback<BigDecimal>() {
          public BigDecimal process(ResultSet rs) throws SQLException {
             return rs.getBigDecimal(1);
          }
@@ -1554,7 +1848,7 @@ public class JdbcHelper {
    }
 
    public BigDecimal queryForBigDecimal(String sql, final StatementPopulator populator) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<BigDecimal>() {
+      return genericQuery(sql, new SingleRowCallback<BigDecimal>() {
          public BigDecimal process(ResultSet rs) throws SQLException {
             return rs.getBigDecimal(1);
          }
@@ -1575,7 +1869,7 @@ public class JdbcHelper {
     * @throws NoResultException Thrown if the result set is empty
     */
    public byte[] queryForBytes(String sql, Object... params) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<byte[]>() {
+      return genericQuery(sql, new SingleRowCallback<byte[]>() {
          public byte[] process(ResultSet rs) throws SQLException {
             return rs.getBytes(1);
          }
@@ -1583,7 +1877,7 @@ public class JdbcHelper {
    }
 
    public byte[] queryForBytes(String sql, final StatementPopulator populator) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<byte[]>() {
+      return genericQuery(sql, new SingleRowCallback<byte[]>() {
          public byte[] process(ResultSet rs) throws SQLException {
             return rs.getBytes(1);
          }
@@ -1608,7 +1902,7 @@ public class JdbcHelper {
     * @throws NoResultException Thrown if the result set is empty
     */
    public boolean queryForBoolean(String sql, Object... params) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<Boolean>() {
+      return genericQuery(sql, new SingleRowCallback<Boolean>() {
          public Boolean process(ResultSet rs) throws SQLException {
             return rs.getBoolean(1);
          }
@@ -1616,7 +1910,7 @@ public class JdbcHelper {
    }
 
    public boolean queryForBoolean(String sql, final StatementPopulator populator) throws NoResultException {
-      return genericQuery(sql, new QueryCallback<Boolean>() {
+      return genericQuery(sql, new SingleRowCallback<Boolean>() {
          public Boolean process(ResultSet rs) throws SQLException {
             return rs.getBoolean(1);
          }
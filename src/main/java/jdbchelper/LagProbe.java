@@ -0,0 +1,20 @@
+package jdbchelper;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Measures how far a replica is behind its primary. A {@link LoadBalancingDataSource} samples the lag
+ * of every backend periodically and avoids the backends that are too far behind.
+ *
+ * @see LoadBalancingDataSource#setLagProbe(LagProbe, long, long)
+ * @see HeartbeatLagProbe
+ */
+public interface LagProbe {
+   /**
+    * @param con A connection to the backend
+    * @return Returns the replication lag of the backend in milliseconds
+    * @throws SQLException If the lag could not be measured, the backend is then considered stale
+    */
+   long getLagMillis(Connection con) throws SQLException;
+}
@@ -0,0 +1,248 @@
+package jdbchelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits the callers of a {@link ConnectionPool} through named lanes before they compete for the pool
+ * permits. Every lane owns a number of reserved permits that no other lane may use, and may borrow up to
+ * <code>burst</code> permits from the shared ones, which are the pool permits not reserved by any lane.
+ * When a permit is returned, the waiters are served by descending lane priority, then in arrival order.
+ * <p/>
+ * The state is guarded by a ReentrantLock rather than a monitor, so waiting callers never pin the carrier
+ * thread of a virtual thread.
+ */
+final class LaneScheduler {
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+   private final TreeSet<Waiter> waiters = new TreeSet<Waiter>();
+   private int capacity;
+   private int reservedTotal;
+   private int sharedInUse;
+   private long sequence;
+
+   static final class Lane {
+      final String name;
+      int reserved;
+      int burst;
+      int priority;
+      int reservedInUse;
+      int sharedInUse;
+      int waiting;
+
+      Lane(String name) {
+         this.name = name;
+      }
+   }
+
+   private static final class Waiter implements Comparable<Waiter> {
+      final Lane lane;
+      final long sequence;
+      final Condition condition;
+      boolean granted;
+
+      Waiter(Lane lane, long sequence, Condition condition) {
+         this.lane = lane;
+         this.sequence = sequence;
+         this.condition = condition;
+      }
+
+      public int compareTo(Waiter o) {
+         if (lane.priority != o.lane.priority) return lane.priority > o.lane.priority ? -1 : 1;
+         return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+      }
+   }
+
+   LaneScheduler(int capacity) {
+      this.capacity = capacity;
+      Lane lane = new Lane(PoolLane.DEFAULT_LANE);
+      lane.burst = Integer.MAX_VALUE;
+      lanes.put(lane.name, lane);
+   }
+
+   /**
+    * Adds a lane or changes the settings of an existing one.
+    */
+   void configure(String name, int reserved, int burst, int priority) {
+      lock.lock();
+      try {
+         Lane lane = lanes.get(name);
+         int oldReserved = lane == null ? 0 : lane.reserved;
+         if (reservedTotal - oldReserved + reserved > capacity)
+            throw new IllegalArgumentException("The lanes reserve more permits than the pool has.");
+         if (lane == null) {
+            lane = new Lane(name);
+            lanes.put(name, lane);
+         }
+         reservedTotal += reserved - oldReserved;
+         lane.reserved = reserved;
+         lane.burst = burst;
+         if (lane.priority != priority) {
+            // The waiters are ordered by priority, so the ones of the lane are taken out while it changes
+            List<Waiter> moved = new ArrayList<Waiter>();
+            Iterator<Waiter> it = waiters.iterator();
+            while (it.hasNext()) {
+               Waiter waiter = it.next();
+               if (waiter.lane == lane) {
+                  it.remove();
+                  moved.add(waiter);
+               }
+            }
+            lane.priority = priority;
+            waiters.addAll(moved);
+         }
+         dispatch();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Changes the number of permits of the pool.
+    */
+   void setCapacity(int capacity) {
+      lock.lock();
+      try {
+         this.capacity = capacity;
+         dispatch();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Waits until the lane may take a permit.
+    *
+    * @param name         the lane name, null for the default lane.
+    * @param timeoutNanos the maximum time to wait.
+    * @return the lane, to be passed to {@link #release(Lane)} later, or null if the timeout elapsed.
+    * @throws InterruptedException if the thread was interrupted while waiting.
+    */
+   Lane acquire(String name, long timeoutNanos) throws InterruptedException {
+      lock.lock();
+      try {
+         Lane lane = lane(name);
+         // Every release serves all the waiters it can, so a caller that fits now takes nothing a waiter could use
+         if (tryGrant(lane)) return lane;
+
+         Waiter waiter = new Waiter(lane, sequence++, lock.newCondition());
+         waiters.add(waiter);
+         lane.waiting++;
+         try {
+            long remaining = timeoutNanos;
+            while (!waiter.granted) {
+               if (remaining <= 0) return null;
+               remaining = waiter.condition.awaitNanos(remaining);
+            }
+            return lane;
+         } catch (InterruptedException e) {
+            if (waiter.granted) release(lane);
+            throw e;
+         } finally {
+            if (!waiter.granted) waiters.remove(waiter);
+            lane.waiting--;
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Takes a permit for the lane if one is free right now, without waiting.
+    *
+    * @param name the lane name, null for the default lane.
+    * @return the lane, to be passed to {@link #release(Lane)} later, or null if the lane is full.
+    */
+   Lane tryAcquire(String name) {
+      lock.lock();
+      try {
+         Lane lane = lane(name);
+         return tryGrant(lane) ? lane : null;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   private Lane lane(String name) {
+      Lane lane = lanes.get(name == null ? PoolLane.DEFAULT_LANE : name);
+      if (lane == null) throw new IllegalArgumentException("Unknown connection pool lane: " + name);
+      return lane;
+   }
+
+   /**
+    * Returns a permit taken by {@link #acquire(String, long)} or {@link #tryAcquire(String)}.
+    */
+   void release(Lane lane) {
+      lock.lock();
+      try {
+         // Shared permits are given back first, they can be used by every lane
+         if (lane.sharedInUse > 0) {
+            lane.sharedInUse--;
+            sharedInUse--;
+         } else {
+            lane.reservedInUse--;
+         }
+         dispatch();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   private boolean tryGrant(Lane lane) {
+      if (lane.reservedInUse < lane.reserved) {
+         lane.reservedInUse++;
+         return true;
+      }
+      if (lane.sharedInUse < lane.burst && sharedInUse < capacity - reservedTotal) {
+         lane.sharedInUse++;
+         sharedInUse++;
+         return true;
+      }
+      return false;
+   }
+
+   private void dispatch() {
+      Iterator<Waiter> it = waiters.iterator();
+      while (it.hasNext()) {
+         Waiter waiter = it.next();
+         if (tryGrant(waiter.lane)) {
+            it.remove();
+            waiter.granted = true;
+            waiter.condition.signal();
+         }
+      }
+   }
+
+   /**
+    * @return the number of permits the lane holds, or -1 if there is no such lane.
+    */
+   int getInUse(String name) {
+      lock.lock();
+      try {
+         Lane lane = lanes.get(name);
+         return lane == null ? -1 : lane.reservedInUse + lane.sharedInUse;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return the number of callers waiting in the lane, or -1 if there is no such lane.
+    */
+   int getWaiting(String name) {
+      lock.lock();
+      try {
+         Lane lane = lanes.get(name);
+         return lane == null ? -1 : lane.waiting;
+      } finally {
+         lock.unlock();
+      }
+   }
+}
@@ -0,0 +1,137 @@
+package jdbchelper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with power of two buckets in microseconds. Bucket 0 counts durations
+ * below one microsecond and bucket <code>i</code> counts durations from 2<sup>i-1</sup> up to
+ * 2<sup>i</sup> microseconds, the last bucket also counts everything above.
+ * <p/>
+ * Recording a value only increments atomic counters, and reading never blocks the recording threads.
+ * The counters are striped by thread, so threads recording at the same time rarely share a cache line.
+ * A reading taken while values are being recorded may be off by the values recorded meanwhile.
+ */
+public final class LatencyHistogram {
+   private static final int BUCKETS = 36;   // the last bucket starts at about 9.5 hours
+   private static final int ROW = BUCKETS + 1;   // the bucket counts of a stripe followed by its total
+   private static final int STRIPES;
+
+   static {
+      int stripes = 1;
+      while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 64) {
+         stripes <<= 1;
+      }
+      STRIPES = stripes;
+   }
+
+   private final AtomicLongArray counters = new AtomicLongArray(STRIPES * ROW);
+   private final AtomicLong maxNanos = new AtomicLong();
+
+   /**
+    * Records a duration.
+    *
+    * @param nanos the duration in nanoseconds.
+    */
+   void record(long nanos) {
+      if (nanos < 0) nanos = 0;
+      long micros = nanos / 1000;
+      int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+      int row = stripe() * ROW;
+      counters.incrementAndGet(row + bucket);
+      if (nanos == 0) return;
+      counters.addAndGet(row + BUCKETS, nanos);
+      long max;
+      while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+         // retry
+      }
+   }
+
+   private static int stripe() {
+      return (int) Thread.currentThread().getId() & (STRIPES - 1);
+   }
+
+   /**
+    * @return the number of recorded durations.
+    */
+   public long getCount() {
+      long count = 0;
+      for (long c : getBucketCounts()) {
+         count += c;
+      }
+      return count;
+   }
+
+   /**
+    * @return the sum of all recorded durations in nanoseconds.
+    */
+   public long getTotalNanos() {
+      long total = 0;
+      for (int i = 0; i < STRIPES; i++) {
+         total += counters.get(i * ROW + BUCKETS);
+      }
+      return total;
+   }
+
+   public double getMeanMillis() {
+      long count = getCount();
+      return count == 0 ? 0 : getTotalNanos() / 1e6 / count;
+   }
+
+   public double getMaxMillis() {
+      return maxNanos.get() / 1e6;
+   }
+
+   /**
+    * Returns the upper bound of the bucket that contains the given percentile. The result is at most
+    * twice the exact percentile.
+    *
+    * @param percentile the percentile between 0 and 100.
+    * @return the percentile in milliseconds, 0 if nothing has been recorded.
+    */
+   public double getPercentileMillis(double percentile) {
+      if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Invalid percentile.");
+      long[] counts = getBucketCounts();
+      long count = 0;
+      for (long c : counts) {
+         count += c;
+      }
+      if (count == 0) return 0;
+      long rank = (long) Math.ceil(count * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+         seen += counts[i];
+         if (seen >= rank && seen > 0) {
+            return i == counts.length - 1 ? getMaxMillis() : getBucketUpperBoundMicros(i) / 1000d;
+         }
+      }
+      return getMaxMillis();
+   }
+
+   /**
+    * @return a copy of the bucket counts.
+    */
+   public long[] getBucketCounts() {
+      long[] counts = new long[BUCKETS];
+      for (int i = 0; i < STRIPES; i++) {
+         for (int j = 0; j < BUCKETS; j++) {
+            counts[j] += counters.get(i * ROW + j);
+         }
+      }
+      return counts;
+   }
+
+   /**
+    * @param bucket the index of a bucket.
+    * @return the exclusive upper bound of the bucket in microseconds.
+    */
+   public static long getBucketUpperBoundMicros(int bucket) {
+      return 1L << bucket;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms", getCount(), getMeanMillis(),
+         getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+   }
+}
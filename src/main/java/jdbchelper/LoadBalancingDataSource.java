@@ -3,14 +3,21 @@ package jdbchelper;
 import javax.sql.ConnectionPoolDataSource;
 import javax.sql.DataSource;
 import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * User: erdinc
@@ -19,15 +26,106 @@ import java.util.concurrent.TimeUnit;
  */
 public class LoadBalancingDataSource implements DataSource {
 
+   /**
+    * How {@link LoadBalancingDataSource#getConnection()} chooses the backend of a connection.
+    * All strategies except RANDOM track the response time of every backend, measured from
+    * handing a connection out until the application closes it.
+    */
+   public enum Strategy {
+      /**
+       * A random backend, chosen with a probability proportional to its weight. This is the default.
+       */
+      RANDOM,
+      /**
+       * The backend with the fewest connections in use.
+       */
+      LEAST_ACTIVE,
+      /**
+       * The backend with the lowest exponentially weighted moving average of its response
+       * times, multiplied by one more than its connections in use. The factor makes a fast
+       * backend share load with slower ones once its own queue builds up. The average of a
+       * backend that gets no requests decays over time, so it is eventually tried again.
+       */
+      EWMA_LATENCY,
+      /**
+       * The cheaper of two randomly chosen backends, by the same cost as EWMA_LATENCY.
+       * This avoids sending every request to the same backend between two response time
+       * updates, and scales to many backends because it only looks at two of them.
+       */
+      POWER_OF_TWO_CHOICES
+   }
+
+   /**
+    * The weight of a new response time in the moving average.
+    */
+   static final double EWMA_ALPHA = 0.2;
+
+   /**
+    * The time in which the moving average of a backend that gets no requests decays to half, so that
+    * a backend that was slow once is tried again instead of being avoided forever.
+    */
+   static final long EWMA_HALF_LIFE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+   /**
+    * The share of its weight a backend starts its slow start ramp with, so that it warms up with some traffic.
+    */
+   static final double SLOW_START_MIN_SHARE = 0.1;
+
    static class Pool {
       final String name;
       final ConnectionPool pool;
+      final CircuitBreaker breaker = new CircuitBreaker();
+      final AtomicLong responseEwma = new AtomicLong(-1);   // nanoseconds, -1 until the first response
+      volatile long lastResponse;
+      volatile long lagMillis = -1;   // -1 until the first sample, Long.MAX_VALUE if the last one failed
+      volatile int weight = 1;
+      volatile boolean ramping;
+      volatile long rampStart;
 
       Pool(String name, ConnectionPool pool) {
          this.name = name;
          this.pool = pool;
       }
 
+      void startRamp() {
+         rampStart = System.nanoTime();
+         ramping = true;
+      }
+
+      /**
+       * @return the weight of the backend, reduced while it is in its slow start ramp.
+       */
+      double effectiveWeight(long now, long slowStartNanos) {
+         int w = weight;
+         if (!ramping) return w;
+         long elapsed = now - rampStart;
+         if (elapsed >= slowStartNanos) {
+            ramping = false;
+            return w;
+         }
+         return w * Math.max(SLOW_START_MIN_SHARE, (double) elapsed / slowStartNanos);
+      }
+
+      void recordResponse(long nanos) {
+         while (true) {
+            long prev = responseEwma.get();
+            long next = prev < 0 ? nanos : prev + Math.round((nanos - prev) * EWMA_ALPHA);
+            if (responseEwma.compareAndSet(prev, next)) break;
+         }
+         lastResponse = System.nanoTime();
+      }
+
+      /**
+       * @return the expected cost of sending one more request to this backend. A backend
+       *         without responses yet costs nothing, so it is tried first.
+       */
+      double cost() {
+         long ewma = responseEwma.get();
+         if (ewma < 0) return 0;
+         double idleHalfLives = (double) (System.nanoTime() - lastResponse) / EWMA_HALF_LIFE_NANOS;
+         return ewma * Math.pow(0.5, idleHalfLives) * (pool.getActiveConnections() + 1);
+      }
+
       @Override
       public boolean equals(Object o) {
          if (this == o) return true;
@@ -48,47 +146,283 @@ public class LoadBalancingDataSource implements DataSource {
       }
    }
 
+   // The lists are guarded by this. Every change publishes a new routing snapshot, which is
+   // all that getConnection() reads, so choosing a backend never locks or sees a half made change.
+   // The invalid pools are the backends with an open or half open circuit breaker.
    ArrayList<Pool> connectionPools;
    ArrayList<Pool> invalidConnectionPools;
+   private volatile Pool[] routing = new Pool[0];
+   private volatile Pool[] freshRouting = routing;   // the routed backends within maxLag
+   private volatile Strategy strategy = Strategy.RANDOM;
+   private volatile CircuitBreaker.Settings breakerSettings = new CircuitBreaker.Settings(5, 0.5, 20, 10000, 1000, 60000);
+   private volatile long probeInterval = 1000;
+   private volatile long slowStartNanos;
+   private ScheduledExecutorService probeExecutor;
+   private ScheduledFuture<?> probeTask;
+   private volatile LagProbe lagProbe;
+   private volatile long maxLag;
+   private volatile long lagProbeTimeout = 1000;
+   private ScheduledFuture<?> lagTask;
+
+   private static final ThreadLocal<Long> requiredMaxLag = new ThreadLocal<Long>();
+
+   private static final ThreadLocal<Random> threadRandom = new ThreadLocal<Random>() {
+      @Override
+      protected Random initialValue() {
+         return new Random();
+      }
+   };
 
    public LoadBalancingDataSource() {
       connectionPools = new ArrayList<Pool>();
       invalidConnectionPools = new ArrayList<Pool>();
    }
 
+   private void publishRouting() {
+      Pool[] pools = connectionPools.toArray(new Pool[connectionPools.size()]);
+      routing = pools;
+      freshRouting = maxLag == 0 ? pools : withinLag(pools, maxLag);
+   }
+
+   /**
+    * @return the number of backends connections are currently handed out from.
+    */
+   int getRoutedBackends() {
+      return routing.length;
+   }
+
+   private static Pool[] without(Pool[] pools, Pool excluded) {
+      for (int i = 0; i < pools.length; i++) {
+         if (pools[i] == excluded) {
+            Pool[] rest = new Pool[pools.length - 1];
+            System.arraycopy(pools, 0, rest, 0, i);
+            System.arraycopy(pools, i + 1, rest, i, rest.length - i);
+            return rest;
+         }
+      }
+      return pools;
+   }
+
+   private static Pool[] withinLag(Pool[] pools, long maxLag) {
+      int n = 0;
+      for (Pool p : pools) {
+         if (p.lagMillis <= maxLag) n++;
+      }
+      if (n == pools.length) return pools;
+      Pool[] fresh = new Pool[n];
+      n = 0;
+      for (Pool p : pools) {
+         if (p.lagMillis <= maxLag) fresh[n++] = p;
+      }
+      return fresh;
+   }
+
    public void addDataSource(String name, ConnectionPoolDataSource dataSource, int maxConnections, int timeout) {
-      ConnectionPool pool = new ConnectionPool(dataSource, maxConnections, timeout);
-      connectionPools.add(new Pool(name, pool));
+      addDataSource(name, dataSource, maxConnections, timeout, ConnectionPool.Engine.MONITOR);
+   }
+
+   public void addDataSource(String name, ConnectionPoolDataSource dataSource, int maxConnections, int timeout,
+                             ConnectionPool.Engine engine) {
+      addDataSource(name, dataSource, maxConnections, timeout, engine, 1);
+   }
+
+   /**
+    * Adds a backend that receives a share of the connection requests proportional to its weight.
+    * If a slow start window is set and other backends are already in use, the share of the new
+    * backend ramps up over the window.
+    * @param name The name of the backend
+    * @param dataSource The data source of the backend
+    * @param maxConnections The maximum number of connections to the backend
+    * @param timeout The connection timeout of the backend pool in seconds
+    * @param engine The engine of the backend pool
+    * @param weight The weight of the backend
+    * @see #setWeight(String, int)
+    * @see #setSlowStart(long)
+    */
+   public void addDataSource(String name, ConnectionPoolDataSource dataSource, int maxConnections, int timeout,
+                             ConnectionPool.Engine engine, int weight) {
+      if (weight < 0) throw new IllegalArgumentException("Invalid weight value.");
+      ConnectionPool pool = new ConnectionPool(dataSource, maxConnections, timeout, engine);
+      Pool p = new Pool(name, pool);
+      p.weight = weight;
+      synchronized (this) {
+         if (slowStartNanos > 0 && !connectionPools.isEmpty()) {
+            p.startRamp();
+         }
+         connectionPools.add(p);
+         publishRouting();
+      }
    }
 
    public void addDataSource(String name, ConnectionPoolDataSource dataSource, int maxConnections) {
       addDataSource(name, dataSource, maxConnections, 60);
    }
 
+   /**
+    * Removes a backend. Connections that are already being handed out by other threads
+    * may still come from it.
+    * @param name The name of the backend
+    */
    public synchronized void removeDataSource(String name) {
       connectionPools.remove(new Pool(name, null));
+      invalidConnectionPools.remove(new Pool(name, null));
+      publishRouting();
    }
 
-   Random random = new Random();
+   /**
+    * Sets how backends are chosen for new connections.
+    * @param strategy The balancing strategy
+    */
+   public void setStrategy(Strategy strategy) {
+      if (strategy == null) throw new IllegalArgumentException("Invalid strategy value.");
+      this.strategy = strategy;
+   }
+
+   public Strategy getStrategy() {
+      return strategy;
+   }
 
+   /**
+    * Changes the weight of a backend. Every strategy sends a backend a share of the connection
+    * requests proportional to its weight. A backend with weight 0 only gets requests when all
+    * backends have weight 0. The change takes effect for the next request.
+    * @param name The name of a backend
+    * @param weight The new weight
+    */
+   public void setWeight(String name, int weight) {
+      if (weight < 0) throw new IllegalArgumentException("Invalid weight value.");
+      Pool p = findPool(name);
+      if (p == null) throw new IllegalArgumentException("Invalid name value.");
+      p.weight = weight;
+   }
+
+   /**
+    * @param name The name of a backend
+    * @return Returns the weight of the backend, or -1 if the backend is unknown
+    */
+   public int getWeight(String name) {
+      Pool p = findPool(name);
+      return p == null ? -1 : p.weight;
+   }
+
+   /**
+    * @param name The name of a backend
+    * @return Returns the weight of the backend reduced by its slow start ramp, or -1 if the backend is unknown
+    */
+   public double getEffectiveWeight(String name) {
+      Pool p = findPool(name);
+      return p == null ? -1 : p.effectiveWeight(System.nanoTime(), slowStartNanos);
+   }
+
+   /**
+    * Sets the slow start window. A backend that is added while others are in use, or that recovers
+    * after its circuit breaker opened, starts with a tenth of its weight, which grows linearly to
+    * the full weight over the window. This gives its caches time to warm up.
+    * @param windowMillis The length of the ramp in milliseconds, 0 to disable slow start
+    */
+   public void setSlowStart(long windowMillis) {
+      if (windowMillis < 0) throw new IllegalArgumentException("Invalid windowMillis value.");
+      slowStartNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+   }
+
+   public long getSlowStart() {
+      return TimeUnit.NANOSECONDS.toMillis(slowStartNanos);
+   }
+
+   /**
+    * @param name The name of a backend
+    * @return Returns the moving average of the response times of the backend in milliseconds,
+    * or -1 if the backend is unknown or no response time has been recorded for it yet
+    */
+   public double getResponseTimeMillis(String name) {
+      Pool p = findPool(name);
+      long ewma = p == null ? -1 : p.responseEwma.get();
+      return ewma < 0 ? -1 : ewma / 1000000d;
+   }
+
+   /**
+    * @param name The name of a backend
+    * @return Returns the number of connections of the backend in use, or -1 if the backend is unknown
+    */
+   public int getActiveConnections(String name) {
+      Pool p = findPool(name);
+      return p == null ? -1 : p.pool.getActiveConnections();
+   }
+
+   private synchronized Pool findPool(String name) {
+      for (Pool p : connectionPools) {
+         if (p.name.equals(name)) return p;
+      }
+      for (Pool p : invalidConnectionPools) {
+         if (p.name.equals(name)) return p;
+      }
+      return null;
+   }
+
+   /**
+    * Returns a connection from a backend chosen by the strategy. Backends whose replication lag
+    * exceeds the bound set with {@link #setLagProbe(LagProbe, long, long)} are only used when all backends
+    * do. Within {@link #withMaxLag(long, Callable)}, only backends within the required lag are used.
+    * @return Returns a connection
+    * @throws SQLException If no backend could provide a connection
+    */
    public Connection getConnection() throws SQLException {
+      Long required = requiredMaxLag.get();
+      return getConnection(required == null ? -1 : required);
+   }
+
+   /**
+    * Returns a connection from a backend that is at most <code>maxLagMillis</code> behind its primary,
+    * according to the last sample of the lag probe. A backend that has not been sampled yet counts as fresh.
+    * @param maxLagMillis The maximum replication lag in milliseconds, or -1 for the default behaviour
+    * of {@link #getConnection()}
+    * @return Returns a connection
+    * @throws SQLException If no backend is fresh enough or none could provide a connection
+    */
+   public Connection getConnection(long maxLagMillis) throws SQLException {
+      return getConnection(maxLagMillis, null, null);
+   }
+
+   /**
+    * Told the backend of a connection request before the connection is made, and again for every retry.
+    */
+   interface BackendListener {
+      void selected(Pool backend);
+   }
+
+   /**
+    * Like {@link #getConnection(long)}, used by hedged reads to send the second attempt elsewhere.
+    * @param excluded A backend not to use, or null
+    * @param listener If not null, told the backend of the connection before it is made
+    */
+   Connection getConnection(long maxLagMillis, Pool excluded, BackendListener listener) throws SQLException {
       Exception latestCause = null;
-      for(int i = 0; i < 3 && connectionPools.size() != 0; i++) {
-         Pool p = null;
+      for(int i = 0; i < 3; i++) {
+         Pool[] pools;
+         if (maxLagMillis < 0) {
+            pools = freshRouting;
+            if (pools.length == 0) pools = routing;
+         } else {
+            pools = withinLag(routing, maxLagMillis);
+            if (pools.length == 0 && routing.length != 0) {
+               throw new SQLException("LoadBalancingDataSource: No backend within " + maxLagMillis + "ms replication lag");
+            }
+         }
+         if (excluded != null) pools = without(pools, excluded);
+         if (pools.length == 0) break;
+         Strategy strategy = this.strategy;
+         Pool p = select(pools, strategy, slowStartNanos);
+         if (listener != null) listener.selected(p);
+         Connection con;
          try {
-            p = connectionPools.get(Math.abs(random.nextInt() % connectionPools.size()));
-            return p.pool.getConnection();
-         } catch (IndexOutOfBoundsException e) {
-            latestCause = e;
+            con = p.pool.getConnection();
          } catch (SQLException e) {
-            if(p != null) {
-               p.pool.dispose();
-               connectionPools.remove(p);
-               invalidConnectionPools.add(p);
-            }
-
+            recordFailure(p);
             latestCause = e;
+            continue;
          }
+         p.breaker.recordSuccess();
+         return strategy == Strategy.RANDOM ? con : track(p, con);
       }
 
       if(latestCause != null) {
@@ -102,28 +436,411 @@ public class LoadBalancingDataSource implements DataSource {
       return getConnection();
    }
 
+   /**
+    * Runs the task with every connection this class hands out to the current thread coming from
+    * a backend at most <code>maxLagMillis</code> behind its primary.
+    *
+    * <p>Example:</p>
+    * <pre>
+    * int balance = LoadBalancingDataSource.withMaxLag(100, new Callable&lt;Integer&gt;() {
+    *    public Integer call() {
+    *       return jdbc.queryForInt("select balance from accounts where id = ?", id);
+    *    }
+    * });
+    * </pre>
+    *
+    * @param maxLagMillis The maximum replication lag in milliseconds
+    * @param task The task
+    * @return Returns the value returned by the task
+    * @throws Exception Any exception thrown by the task
+    */
+   public static <T> T withMaxLag(long maxLagMillis, Callable<T> task) throws Exception {
+      if (maxLagMillis < 0) throw new IllegalArgumentException("Invalid maxLagMillis value.");
+      Long previous = requiredMaxLag.get();
+      requiredMaxLag.set(maxLagMillis);
+      try {
+         return task.call();
+      } finally {
+         if (previous == null) {
+            requiredMaxLag.remove();
+         } else {
+            requiredMaxLag.set(previous);
+         }
+      }
+   }
+
+   /**
+    * @return Returns the replication lag required by the current thread, or -1 if it requires none
+    * @see #withMaxLag(long, Callable)
+    */
+   public static long getRequiredMaxLag() {
+      Long required = requiredMaxLag.get();
+      return required == null ? -1 : required;
+   }
+
+   /**
+    * Samples the replication lag of every backend with the given probe every <code>intervalMillis</code>,
+    * in the background and in the maintenance job. Backends more than <code>maxLagMillis</code> behind
+    * are not used while there is a backend within the bound. If the probe fails, the backend counts as
+    * stale until the next sample. If the pool of the backend is too busy to lend a connection within the
+    * lag probe timeout, the previous sample is kept.
+    *
+    * @param probe The lag probe, or null to stop sampling
+    * @param maxLagMillis The staleness bound in milliseconds, 0 for none
+    * @param intervalMillis The sampling interval in milliseconds
+    */
+   public synchronized void setLagProbe(LagProbe probe, long maxLagMillis, long intervalMillis) {
+      if (maxLagMillis < 0) throw new IllegalArgumentException("Invalid maxLagMillis value.");
+      if (probe != null && intervalMillis <= 0) throw new IllegalArgumentException("Invalid intervalMillis value.");
+      if (lagTask != null) {
+         lagTask.cancel(false);
+         lagTask = null;
+      }
+      lagProbe = probe;
+      maxLag = maxLagMillis;
+      if (probe == null) {
+         for (Pool p : connectionPools) {
+            p.lagMillis = -1;
+         }
+         for (Pool p : invalidConnectionPools) {
+            p.lagMillis = -1;
+         }
+      } else {
+         lagTask = getProbeExecutor().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+               sampleReplicationLag();
+            }
+         }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+      }
+      publishRouting();
+   }
+
+   public LagProbe getLagProbe() {
+      return lagProbe;
+   }
+
+   public long getMaxLag() {
+      return maxLag;
+   }
+
+   /**
+    * Sets how long a lag sample waits for a connection from the pool of a backend.
+    *
+    * @param timeoutMillis The timeout in milliseconds
+    * @see #setLagProbe(LagProbe, long, long)
+    */
+   public void setLagProbeTimeout(long timeoutMillis) {
+      if (timeoutMillis <= 0) throw new IllegalArgumentException("Invalid lagProbeTimeout value.");
+      lagProbeTimeout = timeoutMillis;
+   }
+
+   public long getLagProbeTimeout() {
+      return lagProbeTimeout;
+   }
+
+   /**
+    * @param name The name of a backend
+    * @return Returns the last sampled replication lag of the backend in milliseconds, -1 if it is unknown
+    * or has not been sampled yet, or Long.MAX_VALUE if the last sample failed
+    */
+   public long getReplicationLagMillis(String name) {
+      Pool p = findPool(name);
+      return p == null ? -1 : p.lagMillis;
+   }
+
+   /**
+    * Samples the replication lag of the routed backends with the lag probe.
+    */
+   void sampleReplicationLag() {
+      LagProbe probe = lagProbe;
+      if (probe == null) return;
+      // The backends are sampled without holding the lock, a lagging server may be slow to answer
+      for (Pool p : routing) {
+         long lag;
+         Connection con = null;
+         try {
+            con = p.pool.getConnection(lagProbeTimeout, TimeUnit.MILLISECONDS);
+            lag = probe.getLagMillis(con);
+         } catch (ConnectionPool.TimeoutException e) {
+            // A busy backend is not a stale one, the previous sample stands
+            continue;
+         } catch (ConnectionPool.RejectedException e) {
+            continue;
+         } catch (SQLException e) {
+            lag = Long.MAX_VALUE;
+         } catch (RuntimeException e) {
+            lag = Long.MAX_VALUE;
+         } finally {
+            JdbcUtil.close(con);
+         }
+         p.lagMillis = lag;
+      }
+      synchronized (this) {
+         publishRouting();
+      }
+   }
+
+   /**
+    * Sets when the circuit breaker of a backend opens. An open backend receives no connection requests
+    * until a trial connection to it succeeds. Only failures to get a connection count, a timeout waiting
+    * for a busy pool does not.
+    *
+    * @param consecutiveFailures The number of failures in a row that open the breaker
+    * @param failureRate The share of failures within a window that opens the breaker, between 0 and 1
+    * @param minimumRequests The number of requests in a window before the failure rate is considered
+    * @param windowMillis The length of the window in milliseconds
+    */
+   public synchronized void setCircuitBreaker(int consecutiveFailures, double failureRate, int minimumRequests,
+                                              long windowMillis) {
+      if (consecutiveFailures < 1) throw new IllegalArgumentException("Invalid consecutiveFailures value.");
+      if (failureRate <= 0 || failureRate > 1) throw new IllegalArgumentException("Invalid failureRate value.");
+      if (minimumRequests < 1) throw new IllegalArgumentException("Invalid minimumRequests value.");
+      if (windowMillis <= 0) throw new IllegalArgumentException("Invalid windowMillis value.");
+      CircuitBreaker.Settings s = breakerSettings;
+      breakerSettings = new CircuitBreaker.Settings(consecutiveFailures, failureRate, minimumRequests, windowMillis,
+         s.baseBackoffNanos / 1000000, s.maxBackoffNanos / 1000000);
+   }
+
+   /**
+    * Sets how long an open backend waits before a trial connection is made. The backoff starts at
+    * <code>baseMillis</code> and doubles each time a trial fails, up to <code>maxMillis</code>.
+    *
+    * @param baseMillis The backoff after the breaker opens
+    * @param maxMillis The maximum backoff
+    */
+   public synchronized void setBackoff(long baseMillis, long maxMillis) {
+      if (baseMillis <= 0 || maxMillis < baseMillis) throw new IllegalArgumentException("Invalid backoff value.");
+      CircuitBreaker.Settings s = breakerSettings;
+      breakerSettings = new CircuitBreaker.Settings(s.consecutiveFailures, s.failureRate, s.minimumRequests,
+         s.windowNanos / 1000000, baseMillis, maxMillis);
+   }
+
+   /**
+    * Sets how often open backends are checked for an elapsed backoff. The trial connections are made
+    * by a background thread, and each one waits at most this long for a connection.
+    *
+    * @param probeInterval The interval in milliseconds
+    */
+   public synchronized void setProbeInterval(long probeInterval) {
+      if (probeInterval <= 0) throw new IllegalArgumentException("Invalid probeInterval value.");
+      this.probeInterval = probeInterval;
+      if (probeTask != null) {
+         probeTask.cancel(false);
+         probeTask = null;
+         scheduleProbes();
+      }
+   }
+
+   public long getProbeInterval() {
+      return probeInterval;
+   }
+
+   /**
+    * @param name The name of a backend
+    * @return Returns the circuit breaker of the backend, or null if the backend is unknown
+    */
+   public CircuitBreaker getCircuitBreaker(String name) {
+      Pool p = findPool(name);
+      return p == null ? null : p.breaker;
+   }
+
+   private void recordFailure(Pool p) {
+      if (!p.breaker.recordFailure(breakerSettings)) return;
+      synchronized (this) {
+         if (connectionPools.remove(p)) {
+            invalidConnectionPools.add(p);
+            publishRouting();
+         }
+         scheduleProbes();
+      }
+   }
+
+   private synchronized ScheduledExecutorService getProbeExecutor() {
+      if (probeExecutor == null) {
+         probeExecutor = Executors.newSingleThreadScheduledExecutor(
+            ConnectionPool.daemonThreadFactory("LoadBalancingDataSource probe"));
+      }
+      return probeExecutor;
+   }
+
+   private synchronized void scheduleProbes() {
+      if (probeTask != null) return;
+      probeTask = getProbeExecutor().scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            probeOpenBackends();
+         }
+      }, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+   }
+
+   private static Pool select(Pool[] pools, Strategy strategy, long slowStartNanos) {
+      Random random = threadRandom.get();
+      long now = System.nanoTime();
+      int n = pools.length;
+      switch (strategy) {
+         case LEAST_ACTIVE: {
+            // Starting the scan at a random backend spreads the ties
+            int start = random.nextInt(n);
+            Pool best = pools[start];
+            double bestLoad = Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+               Pool p = pools[(start + i) % n];
+               double load = perWeight(p.pool.getActiveConnections() + 1, p.effectiveWeight(now, slowStartNanos));
+               if (load < bestLoad) {
+                  best = p;
+                  bestLoad = load;
+               }
+            }
+            return best;
+         }
+         case EWMA_LATENCY: {
+            int start = random.nextInt(n);
+            Pool best = pools[start];
+            double bestCost = Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+               Pool p = pools[(start + i) % n];
+               double cost = perWeight(p.cost(), p.effectiveWeight(now, slowStartNanos));
+               if (cost < bestCost) {
+                  best = p;
+                  bestCost = cost;
+               }
+            }
+            return best;
+         }
+         case POWER_OF_TWO_CHOICES: {
+            if (n == 1) return pools[0];
+            int a = random.nextInt(n);
+            int b = random.nextInt(n - 1);
+            if (b >= a) b++;
+            Pool first = pools[a];
+            Pool second = pools[b];
+            double firstCost = perWeight(first.cost(), first.effectiveWeight(now, slowStartNanos));
+            double secondCost = perWeight(second.cost(), second.effectiveWeight(now, slowStartNanos));
+            return firstCost <= secondCost ? first : second;
+         }
+         default:
+            return weightedRandom(pools, random, now, slowStartNanos);
+      }
+   }
+
+   private static double perWeight(double load, double weight) {
+      return weight > 0 ? load / weight : Double.MAX_VALUE;
+   }
+
+   /**
+    * @return a random backend, chosen with a probability proportional to its weight.
+    */
+   private static Pool weightedRandom(Pool[] pools, Random random, long now, long slowStartNanos) {
+      int n = pools.length;
+      double total = 0;
+      double first = -1;
+      boolean uniform = true;
+      for (int i = 0; i < n; i++) {
+         double w = pools[i].effectiveWeight(now, slowStartNanos);
+         if (first < 0) first = w;
+         else if (w != first) uniform = false;
+         total += w;
+      }
+      if (uniform || total <= 0) return pools[random.nextInt(n)];
+      double r = random.nextDouble() * total;
+      // A weight may change between the passes, the last backend with a weight then takes the rest
+      Pool last = null;
+      for (int i = 0; i < n; i++) {
+         double w = pools[i].effectiveWeight(now, slowStartNanos);
+         if (w <= 0) continue;
+         last = pools[i];
+         r -= w;
+         if (r < 0) return last;
+      }
+      return last != null ? last : pools[random.nextInt(n)];
+   }
+
+   private static Connection track(Pool p, Connection con) {
+      return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class},
+         new TrackedConnection(p, con));
+   }
+
+   /**
+    * Records the response time of a backend when the application closes a connection of it.
+    */
+   private static final class TrackedConnection implements InvocationHandler {
+      final Pool pool;
+      final Connection con;
+      final long start = System.nanoTime();
+      boolean closed;
+
+      TrackedConnection(Pool pool, Connection con) {
+         this.pool = pool;
+         this.con = con;
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+         String name = method.getName();
+         if (name.equals("close")) {
+            if (!closed) {
+               closed = true;
+               try {
+                  con.close();
+               } finally {
+                  pool.recordResponse(System.nanoTime() - start);
+               }
+            }
+            return null;
+         } else if (name.equals("equals")) {
+            return proxy == args[0];
+         } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+         }
+         try {
+            return method.invoke(con, args);
+         } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+         }
+      }
+   }
+
    public Runnable getMaintenanceJob() {
       return new Runnable() {
          public void run() {
-            checkInvalidPools();
-            for(Pool p : connectionPools) {
+            probeOpenBackends();
+            sampleReplicationLag();
+            for(Pool p : routing) {
                p.pool.freeIdleConnections();
             }
          }
       };
    }
 
-   private void checkInvalidPools() {
-      Iterator<Pool> iterator = invalidConnectionPools.iterator();
-      while(iterator.hasNext()) {
-         Pool p = iterator.next();
+   /**
+    * Makes a trial connection to every open backend whose backoff has elapsed.
+    */
+   void probeOpenBackends() {
+      List<Pool> invalid;
+      synchronized (this) {
+         invalid = new ArrayList<Pool>(invalidConnectionPools);
+      }
+      // The backends are probed without holding the lock, a dead server may take long to answer
+      for (Pool p : invalid) {
+         if (!p.breaker.tryStartTrial(System.nanoTime())) continue;
+         boolean ok = false;
          try {
-            Connection con = p.pool.getConnection();
-            con.close();
-            connectionPools.add(p);
-            iterator.remove();
+            p.pool.getConnection(probeInterval, TimeUnit.MILLISECONDS).close();
+            ok = true;
          } catch (SQLException e) {
-            //
+            // the backend is still failing
+         } catch (RuntimeException e) {
+            // no connection within the probe interval
+         }
+         if (!ok) {
+            p.breaker.trialFailed(breakerSettings);
+            continue;
+         }
+         p.breaker.trialSucceeded();
+         synchronized (this) {
+            if (invalidConnectionPools.remove(p)) {
+               if (slowStartNanos > 0) p.startRamp();
+               connectionPools.add(p);
+               publishRouting();
+            }
          }
       }
    }
@@ -0,0 +1,84 @@
+package jdbchelper;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Declares the {@link ConnectionPool} lane of the connections checked out by the current thread.
+ * The lane applies to everything that runs inside the supplied task, including the calls made through
+ * a {@link JdbcHelper}, and the previous lane is restored when the task returns.
+ *
+ * <p>Example:</p>
+ * <pre>
+ * PoolLane.run("reporting", new Runnable() {
+ *    public void run() {
+ *       jdbc.query("select ...", handler);
+ *    }
+ * });
+ * </pre>
+ *
+ * @see ConnectionPool#addLane(String, int, int, int)
+ */
+public final class PoolLane {
+   /**
+    * The lane of the callers that do not declare one.
+    */
+   public static final String DEFAULT_LANE = "default";
+
+   private static final ThreadLocal<String> current = new ThreadLocal<String>();
+
+   private PoolLane() {
+   }
+
+   /**
+    * @return the lane declared for the current thread, or null if none is declared.
+    */
+   public static String current() {
+      return current.get();
+   }
+
+   /**
+    * Runs the task with connections checked out in the given lane.
+    *
+    * @param lane The lane name
+    * @param task The task
+    */
+   public static void run(String lane, Runnable task) {
+      String previous = enter(lane);
+      try {
+         task.run();
+      } finally {
+         exit(previous);
+      }
+   }
+
+   /**
+    * Calls the task with connections checked out in the given lane.
+    *
+    * @param lane The lane name
+    * @param task The task
+    * @return Returns the value returned by the task
+    * @throws Exception Any exception thrown by the task
+    */
+   public static <T> T call(String lane, Callable<T> task) throws Exception {
+      String previous = enter(lane);
+      try {
+         return task.call();
+      } finally {
+         exit(previous);
+      }
+   }
+
+   static String enter(String lane) {
+      String previous = current.get();
+      current.set(lane);
+      return previous;
+   }
+
+   static void exit(String previous) {
+      if (previous == null) {
+         current.remove();
+      } else {
+         current.set(previous);
+      }
+   }
+}
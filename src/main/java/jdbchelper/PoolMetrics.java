@@ -0,0 +1,134 @@
+package jdbchelper;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of one {@link ConnectionPool}, obtained from {@link ConnectionPool#getMetrics()}.
+ * <p/>
+ * The pool updates the counters and histograms with atomic operations only, so collecting them
+ * adds no locks to the checkout path, and reading them never blocks the pool.
+ */
+public final class PoolMetrics implements ConnectionPoolMXBean {
+   private final ConnectionPool pool;
+   final LatencyHistogram waitTime = new LatencyHistogram();
+   final LatencyHistogram heldTime = new LatencyHistogram();
+   final LatencyHistogram creationTime = new LatencyHistogram();
+   final AtomicLong created = new AtomicLong();
+   final AtomicLong destroyed = new AtomicLong();
+   final AtomicLong validationFailures = new AtomicLong();
+   final AtomicLong timeouts = new AtomicLong();
+   final AtomicLong rejections = new AtomicLong();
+
+   PoolMetrics(ConnectionPool pool) {
+      this.pool = pool;
+   }
+
+   /**
+    * @return the time callers waited for a permit in {@link ConnectionPool#getConnection()},
+    * including the callers that timed out.
+    */
+   public LatencyHistogram getWaitTime() {
+      return waitTime;
+   }
+
+   /**
+    * @return the time between checking out a connection and returning it to the pool.
+    */
+   public LatencyHistogram getHeldTime() {
+      return heldTime;
+   }
+
+   /**
+    * @return the time it took to open physical connections, including the failed attempts.
+    */
+   public LatencyHistogram getCreationTime() {
+      return creationTime;
+   }
+
+   public int getActiveConnections() {
+      return pool.getActiveConnections();
+   }
+
+   public int getIdleConnections() {
+      return pool.getIdleConnections();
+   }
+
+   /**
+    * @return an estimate of the number of threads waiting for a permit.
+    */
+   public int getPendingWaiters() {
+      return pool.getPendingWaiters();
+   }
+
+   public int getPoolSize() {
+      return pool.getPoolSize();
+   }
+
+   /**
+    * @return the number of physical connections that have been opened.
+    */
+   public long getConnectionsCreated() {
+      return created.get();
+   }
+
+   /**
+    * @return the number of physical connections that have been closed.
+    */
+   public long getConnectionsDestroyed() {
+      return destroyed.get();
+   }
+
+   /**
+    * @return the number of validations that found a connection no longer valid.
+    */
+   public long getValidationFailures() {
+      return validationFailures.get();
+   }
+
+   /**
+    * @return the number of {@link ConnectionPool.TimeoutException}s thrown.
+    */
+   public long getTimeouts() {
+      return timeouts.get();
+   }
+
+   /**
+    * @return the number of {@link ConnectionPool.RejectedException}s thrown.
+    */
+   public long getRejections() {
+      return rejections.get();
+   }
+
+   public double getWaitTimeMeanMillis() {
+      return waitTime.getMeanMillis();
+   }
+
+   public double getWaitTime99thPercentileMillis() {
+      return waitTime.getPercentileMillis(99);
+   }
+
+   public double getHeldTimeMeanMillis() {
+      return heldTime.getMeanMillis();
+   }
+
+   public double getHeldTime99thPercentileMillis() {
+      return heldTime.getPercentileMillis(99);
+   }
+
+   public double getCreationTimeMeanMillis() {
+      return creationTime.getMeanMillis();
+   }
+
+   public double getCreationTimeMaxMillis() {
+      return creationTime.getMaxMillis();
+   }
+
+   @Override
+   public String toString() {
+      return "active=" + getActiveConnections() + " idle=" + getIdleConnections() + " waiters=" + getPendingWaiters()
+         + " created=" + getConnectionsCreated() + " destroyed=" + getConnectionsDestroyed()
+         + " validationFailures=" + getValidationFailures() + " timeouts=" + getTimeouts()
+         + " rejections=" + getRejections()
+         + "\n  wait: " + waitTime + "\n  held: " + heldTime + "\n  creation: " + creationTime;
+   }
+}
@@ -25,7 +25,7 @@ public class QueryResult {
       this.sql = sql;
 
       try {
-         con = jdbc.getConnection();
+         con = jdbc.getReadConnection();
 
          if (params.length == 0) {
             stmt = con.createStatement();
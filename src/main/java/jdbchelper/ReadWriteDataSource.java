@@ -0,0 +1,181 @@
+package jdbchelper;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A data source for a primary database and its read replicas. A {@link JdbcHelper} created with it
+ * runs the <code>query</code> and <code>queryFor*</code> methods on a replica, and everything else,
+ * including <code>execute</code>, <code>executeBatch</code>, <code>run</code> and all statements of a
+ * transaction or held connection, on the primary. Connections taken with {@link #getConnection()}
+ * always come from the primary.
+ *
+ * <p>A replica may not have applied a recent write yet. With a stickiness window set, the reads of a
+ * thread go to the primary for that long after it last used a primary connection. Reads that require
+ * a maximum replication lag with {@link LoadBalancingDataSource#withMaxLag(long, java.util.concurrent.Callable)}
+ * also go to the primary when no replica is fresh enough.</p>
+ *
+ * <p>Example:</p>
+ * <pre>
+ * LoadBalancingDataSource replicas = new LoadBalancingDataSource();
+ * replicas.addDataSource("replica1", replica1, 20);
+ * replicas.addDataSource("replica2", replica2, 20);
+ * ReadWriteDataSource ds = new ReadWriteDataSource(primary, replicas);
+ * ds.setStickiness(2000);
+ * JdbcHelper jdbc = new JdbcHelper(ds);
+ * </pre>
+ */
+public class ReadWriteDataSource implements DataSource {
+   final DataSource primary;
+   final LoadBalancingDataSource replicas;
+   private volatile long stickiness;
+   private final ThreadLocal<Long> lastWrite = new ThreadLocal<Long>();
+
+   /**
+    * @param primary The data source of the primary database
+    * @param replicas The replicas of the primary
+    */
+   public ReadWriteDataSource(DataSource primary, LoadBalancingDataSource replicas) {
+      if (primary == null || replicas == null) throw new IllegalArgumentException("Invalid data source value.");
+      this.primary = primary;
+      this.replicas = replicas;
+   }
+
+   /**
+    * Sets how long the reads of a thread go to the primary after the thread last used a primary connection.
+    * @param stickiness The window in milliseconds, 0 to always read from the replicas
+    */
+   public void setStickiness(long stickiness) {
+      if (stickiness < 0) throw new IllegalArgumentException("Invalid stickiness value.");
+      this.stickiness = TimeUnit.MILLISECONDS.toNanos(stickiness);
+   }
+
+   public long getStickiness() {
+      return TimeUnit.NANOSECONDS.toMillis(stickiness);
+   }
+
+   public DataSource getPrimary() {
+      return primary;
+   }
+
+   public LoadBalancingDataSource getReplicas() {
+      return replicas;
+   }
+
+   /**
+    * @return Returns a connection to the primary
+    * @throws SQLException May be thrown by the primary data source
+    */
+   public Connection getConnection() throws SQLException {
+      Connection con = primary.getConnection();
+      if (stickiness == 0) return con;
+      lastWrite.set(System.nanoTime());
+      return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class},
+         new PrimaryConnection(con));
+   }
+
+   public Connection getConnection(String username, String password) throws SQLException {
+      return getConnection();
+   }
+
+   /**
+    * Returns a connection for statements that only read. It comes from a replica, unless the current
+    * thread is within the stickiness window or no replica is available, in which case it comes from the primary.
+    * @return Returns a connection for reading
+    * @throws SQLException May be thrown by the primary data source
+    */
+   public Connection getReadConnection() throws SQLException {
+      if (isSticky()) {
+         return primary.getConnection();
+      }
+      try {
+         return replicas.getConnection();
+      } catch (SQLException e) {
+         return primary.getConnection();
+      }
+   }
+
+   /**
+    * @return Returns the replicas a read of the current thread would go to, or null if it goes to the primary
+    */
+   LoadBalancingDataSource getReadReplicas() {
+      return isSticky() ? null : replicas;
+   }
+
+   private boolean isSticky() {
+      long window = stickiness;
+      if (window == 0) return false;
+      Long written = lastWrite.get();
+      return written != null && System.nanoTime() - written < window;
+   }
+
+   /**
+    * Starts the stickiness window again when a primary connection is closed, so it covers the
+    * whole of a long transaction.
+    */
+   private final class PrimaryConnection implements InvocationHandler {
+      final Connection con;
+      boolean closed;
+
+      PrimaryConnection(Connection con) {
+         this.con = con;
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+         String name = method.getName();
+         if (name.equals("close")) {
+            if (!closed) {
+               closed = true;
+               lastWrite.set(System.nanoTime());
+               con.close();
+            }
+            return null;
+         } else if (name.equals("equals")) {
+            return proxy == args[0];
+         } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+         }
+         try {
+            return method.invoke(con, args);
+         } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+         }
+      }
+   }
+
+   PrintWriter logWriter;
+
+   public PrintWriter getLogWriter() throws SQLException {
+      if (logWriter == null) {
+         logWriter = new PrintWriter(System.out);
+      }
+
+      return logWriter;
+   }
+
+   public void setLogWriter(PrintWriter out) throws SQLException {
+      logWriter = out;
+   }
+
+   public void setLoginTimeout(int seconds) throws SQLException {
+   }
+
+   public int getLoginTimeout() throws SQLException {
+      return 0;
+   }
+
+   public <T> T unwrap(Class<T> iface) throws SQLException {
+      return null;
+   }
+
+   public boolean isWrapperFor(Class<?> iface) throws SQLException {
+      return false;
+   }
+}
@@ -0,0 +1,10 @@
+package jdbchelper;
+
+/**
+ * Returns the shard key of a bean, for routing it to its shard.
+ *
+ * @see ShardedJdbcHelper#executeBatch(String, java.util.Iterator, ShardKeyExtractor, StatementMapper)
+ */
+public interface ShardKeyExtractor<T> {
+   public long getShardKey(T object);
+}
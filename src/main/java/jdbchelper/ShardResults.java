@@ -0,0 +1,278 @@
+package jdbchelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The rows of a query that runs on several shards in parallel, returned by the scatter methods
+ * of {@link ShardedJdbcHelper}.
+ *
+ * The shard queries are already running when this object is returned. Iterating it streams the
+ * rows as the shards answer: without an order, the rows of each shard are returned as soon as that
+ * shard has answered, so a fast shard is not held up by a slow one. With an order, the rows are
+ * merged from the sorted rows of all shards, which requires every shard to have answered first.
+ *
+ * A shard that fails or does not answer within the timeout either fails the whole query or is
+ * left out, depending on the {@link ShardedJdbcHelper.PartialResults} policy. The shards that were
+ * left out are reported by {@link #getFailedShards()} once the rows have been read.
+ *
+ * The rows can be read once, by iterating or with {@link #toList()}, from one thread.
+ */
+public final class ShardResults<T> implements Iterable<T> {
+   /**
+    * The work done on one shard.
+    */
+   interface ShardTask<T> {
+      List<T> run(JdbcHelper shard);
+   }
+
+   private final int[] shards;
+   private final String sql;
+   private final Comparator<? super T> order;
+   private final ShardedJdbcHelper.PartialResults partialResults;
+   private final long deadline;   // System.nanoTime(), 0 for none
+   private final LinkedBlockingQueue<Outcome<T>> outcomes = new LinkedBlockingQueue<Outcome<T>>();
+   private final Future<?>[] futures;
+   private final boolean[] done;
+   private final Map<Integer, Throwable> failedShards = new LinkedHashMap<Integer, Throwable>();
+   private int pending;
+   private int lastShardIndex;
+   private boolean read;
+
+   ShardResults(ShardedJdbcHelper jdbc, ExecutorService executor, int[] shards, String sql, final ShardTask<T> task,
+                Comparator<? super T> order, long timeoutMillis, ShardedJdbcHelper.PartialResults partialResults) {
+      this.shards = shards;
+      this.sql = sql;
+      this.order = order;
+      this.partialResults = partialResults;
+      deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+      futures = new Future<?>[shards.length];
+      done = new boolean[shards.length];
+      pending = shards.length;
+      for (int i = 0; i < shards.length; i++) {
+         final int index = i;
+         final JdbcHelper shard = jdbc.getShardJdbcHelper(shards[i]);
+         futures[i] = executor.submit(new Runnable() {
+            public void run() {
+               Outcome<T> outcome = new Outcome<T>(index);
+               try {
+                  outcome.rows = task.run(shard);
+               } catch (Throwable e) {
+                  outcome.error = e;
+               }
+               outcomes.add(outcome);
+            }
+         });
+      }
+   }
+
+   /**
+    * @return Returns an iterator over the rows of all shards. It may only be requested once
+    * @throws JdbcException From the iterator, if a shard fails and the policy is FAIL
+    */
+   public Iterator<T> iterator() {
+      if (read) throw new IllegalStateException("The shard results have already been read");
+      read = true;
+      return order == null ? new ConcatIterator() : mergeIterator();
+   }
+
+   /**
+    * Reads all rows into a list.
+    * @return Returns the rows of all shards
+    */
+   public List<T> toList() {
+      List<T> rows = new ArrayList<T>();
+      for (T row : this) {
+         rows.add(row);
+      }
+      return rows;
+   }
+
+   /**
+    * @return Returns the shard numbers whose rows were left out, with the error or the
+    * TimeoutException that caused it
+    */
+   public Map<Integer, Throwable> getFailedShards() {
+      return Collections.unmodifiableMap(failedShards);
+   }
+
+   /**
+    * @return Returns true if the rows of some shards were left out
+    */
+   public boolean isPartial() {
+      return !failedShards.isEmpty();
+   }
+
+   /**
+    * Waits for the next shard to answer.
+    *
+    * @return the rows of the shard, or null when all shards have answered or timed out.
+    */
+   private List<T> next() {
+      while (pending > 0) {
+         Outcome<T> outcome;
+         try {
+            if (deadline == 0) {
+               outcome = outcomes.take();
+            } else {
+               outcome = outcomes.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+         } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new JdbcException("Interrupted while waiting for the shards to answer query:\n" + sql, e);
+         }
+
+         if (outcome == null) {
+            timedOut();
+            return null;
+         }
+         pending--;
+         done[outcome.index] = true;
+         if (outcome.error == null) {
+            lastShardIndex = outcome.index;
+            return outcome.rows;
+         }
+         fail(shards[outcome.index], outcome.error);
+      }
+      return null;
+   }
+
+   private void fail(int shard, Throwable error) {
+      if (partialResults == ShardedJdbcHelper.PartialResults.FAIL) {
+         cancel();
+         pending = 0;
+         if (error instanceof JdbcException) {
+            throw (JdbcException) error;
+         }
+         throw new JdbcException("Error running query on shard " + shard + ":\n" + sql + "\n\nError: " + error.getMessage(), error);
+      }
+      failedShards.put(shard, error);
+   }
+
+   private void timedOut() {
+      List<Integer> late = new ArrayList<Integer>();
+      for (int i = 0; i < shards.length; i++) {
+         if (!done[i]) late.add(shards[i]);
+      }
+      cancel();
+      pending = 0;
+      if (partialResults == ShardedJdbcHelper.PartialResults.FAIL) {
+         throw new JdbcException("Timed out waiting for shards " + late + " to answer query:\n" + sql);
+      }
+      for (Integer shard : late) {
+         failedShards.put(shard, new TimeoutException("Shard " + shard + " did not answer in time"));
+      }
+   }
+
+   /**
+    * Cancels the shard queries that are still queued or running. A running query is interrupted,
+    * its connection is returned to the pool when the driver gives up on it.
+    */
+   private void cancel() {
+      for (int i = 0; i < futures.length; i++) {
+         if (!done[i]) futures[i].cancel(true);
+      }
+   }
+
+   private static final class Outcome<T> {
+      final int index;
+      List<T> rows;
+      Throwable error;
+
+      Outcome(int index) {
+         this.index = index;
+      }
+   }
+
+   private final class ConcatIterator implements Iterator<T> {
+      Iterator<T> current = Collections.<T>emptyList().iterator();
+
+      public boolean hasNext() {
+         while (!current.hasNext()) {
+            List<T> rows = ShardResults.this.next();
+            if (rows == null) return false;
+            current = rows.iterator();
+         }
+         return true;
+      }
+
+      public T next() {
+         if (!hasNext()) throw new NoSuchElementException();
+         return current.next();
+      }
+
+      public void remove() {
+         throw new UnsupportedOperationException();
+      }
+   }
+
+   private Iterator<T> mergeIterator() {
+      final PriorityQueue<Cursor<T>> heads = new PriorityQueue<Cursor<T>>(Math.max(1, shards.length), new Comparator<Cursor<T>>() {
+         public int compare(Cursor<T> a, Cursor<T> b) {
+            int c = order.compare(a.head, b.head);
+            return c != 0 ? c : a.shardIndex - b.shardIndex;
+         }
+      });
+      return new Iterator<T>() {
+         boolean started;
+
+         public boolean hasNext() {
+            if (!started) {
+               started = true;
+               List<T> rows;
+               while ((rows = ShardResults.this.next()) != null) {
+                  Iterator<T> it = rows.iterator();
+                  if (it.hasNext()) heads.add(new Cursor<T>(it, lastShardIndex));
+               }
+            }
+            return !heads.isEmpty();
+         }
+
+         public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Cursor<T> cursor = heads.poll();
+            T row = cursor.head;
+            if (cursor.advance()) heads.add(cursor);
+            return row;
+         }
+
+         public void remove() {
+            throw new UnsupportedOperationException();
+         }
+      };
+   }
+
+   /**
+    * The position in the sorted rows of one shard during a k-way merge.
+    */
+   private static final class Cursor<T> {
+      final Iterator<T> rows;
+      final int shardIndex;   // equal rows are returned in the order of the shards
+      T head;
+
+      Cursor(Iterator<T> rows, int shardIndex) {
+         this.rows = rows;
+         this.shardIndex = shardIndex;
+         head = rows.next();
+      }
+
+      boolean advance() {
+         if (!rows.hasNext()) return false;
+         head = rows.next();
+         return true;
+      }
+   }
+}
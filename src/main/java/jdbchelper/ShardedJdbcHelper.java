@@ -0,0 +1,1207 @@
+package jdbchelper;
+
+import javax.sql.DataSource;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A JdbcHelper for a {@link ShardedDataSource}. Every query and execute method of {@link JdbcHelper}
+ * is mirrored here with a shard key as the first argument, which selects the shard the statement runs on.
+ *
+ * Keys are resolved with the consistent hash ring of a {@link ConsistentHashShardedDataSource}, or by
+ * their remainder modulo the shard count for other implementations. One JdbcHelper is created per shard
+ * and reused, so a call allocates no helper. Like with JdbcHelper, transactions and held connections
+ * are bound to the current thread, separately for every shard: a transaction begun with one key covers
+ * the calls with all keys of the same shard, while calls for other shards run outside of it.
+ *
+ * <p>Example:</p>
+ * <pre>
+ * ShardedJdbcHelper jdbc = new ShardedJdbcHelper(shards);
+ * String name = jdbc.queryForString(userId, "select name from users where id = ?", userId);
+ * jdbc.inTransaction(userId, new TransactionCallback&lt;Void&gt;() {
+ *    public Void doInTransaction(JdbcHelper shard) {
+ *       shard.execute("update users set visits = visits + 1 where id = ?", userId);
+ *       shard.execute("insert into visits (user_id) values (?)", userId);
+ *       return null;
+ *    }
+ * });
+ * </pre>
+ *
+ * Queries that need the rows of every shard can be run on all shards, or a subset of them, in parallel
+ * with the scatter methods. They return a {@link ShardResults} that streams the rows as the shards answer.
+ */
+public class ShardedJdbcHelper {
+   /**
+    * What a scatter query does when a shard fails or does not answer within the shard timeout.
+    */
+   public enum PartialResults {
+      /**
+       * The query fails with a JdbcException. This is the default.
+       */
+      FAIL,
+      /**
+       * The rows of the shard are left out and the shard is reported by {@link ShardResults#getFailedShards()}.
+       */
+      SKIP_FAILED_SHARDS
+   }
+
+   private final ShardedDataSource shards;
+   private final ConcurrentMap<DataSource, JdbcHelper> helpers = new ConcurrentHashMap<DataSource, JdbcHelper>();
+   private volatile ExceptionLogger logger;
+   private volatile String lane;
+   private int scatterThreads = 16;
+   private volatile long shardTimeout;
+   private volatile PartialResults partialResults = PartialResults.FAIL;
+   private ThreadPoolExecutor scatterExecutor;
+
+   /**
+    * Creates a new ShardedJdbcHelper for the provided sharded data source
+    * @param shards The sharded data source
+    */
+   public ShardedJdbcHelper(ShardedDataSource shards) {
+      this.shards = shards;
+   }
+
+   public ShardedDataSource getShardedDataSource() {
+      return shards;
+   }
+
+   /**
+    * Sets the logger of the JdbcHelpers of all shards
+    * @param logger Logger
+    * @see JdbcHelper#setLogger(ExceptionLogger)
+    */
+   public synchronized void setLogger(ExceptionLogger logger) {
+      this.logger = logger;
+      for (JdbcHelper jdbc : helpers.values()) {
+         jdbc.setLogger(logger);
+      }
+   }
+
+   /**
+    * Sets the connection pool lane of the JdbcHelpers of all shards
+    * @param lane The lane name, or null to use the lane of the current thread
+    * @see JdbcHelper#setLane(String)
+    */
+   public synchronized void setLane(String lane) {
+      this.lane = lane;
+      for (JdbcHelper jdbc : helpers.values()) {
+         jdbc.setLane(lane);
+      }
+   }
+
+   /**
+    * @param shardKey A shard key
+    * @return Returns the number of the shard the key belongs to
+    */
+   public int getShard(long shardKey) {
+      if (shards instanceof ConsistentHashShardedDataSource) {
+         return ((ConsistentHashShardedDataSource) shards).getShard(shardKey);
+      }
+      int count = shards.getShardCount();
+      int shard = (int) (shardKey % count);
+      return shard < 0 ? shard + count : shard;
+   }
+
+   /**
+    * @param shardKey A shard key
+    * @return Returns the number of the shard the key belongs to
+    */
+   public int getShard(String shardKey) {
+      if (shards instanceof ConsistentHashShardedDataSource) {
+         return ((ConsistentHashShardedDataSource) shards).getShard(shardKey);
+      }
+      return getShard(ConsistentHashShardedDataSource.hash(shardKey));
+   }
+
+   /**
+    * Returns the JdbcHelper of a shard. It can be used for the JdbcHelper methods that are not
+    * mirrored here, and for several statements on the same shard.
+    * @param shardNo The shard number
+    * @return Returns the cached JdbcHelper of the shard
+    */
+   public JdbcHelper getShardJdbcHelper(int shardNo) {
+      if (shardNo < 0 || shardNo >= shards.getShardCount()) throw new IllegalArgumentException("Invalid shardNo value.");
+      DataSource dataSource = shards.getDataSource(shardNo);
+      if (dataSource == null) throw new IllegalArgumentException("Invalid shardNo value.");
+      return getJdbcHelper(dataSource);
+   }
+
+   private JdbcHelper getJdbcHelper(DataSource dataSource) {
+      JdbcHelper jdbc = helpers.get(dataSource);
+      if (jdbc == null) {
+         jdbc = createJdbcHelper(dataSource);
+      }
+      return jdbc;
+   }
+
+   private synchronized JdbcHelper createJdbcHelper(DataSource dataSource) {
+      JdbcHelper jdbc = helpers.get(dataSource);
+      if (jdbc == null) {
+         jdbc = new JdbcHelper(dataSource);
+         jdbc.setLogger(logger);
+         jdbc.setLane(lane);
+         helpers.put(dataSource, jdbc);
+      }
+      return jdbc;
+   }
+
+   /**
+    * @param shardKey A shard key
+    * @return Returns the cached JdbcHelper of the shard the key belongs to
+    */
+   public JdbcHelper getJdbcHelper(long shardKey) {
+      if (shards instanceof ConsistentHashShardedDataSource) {
+         // The key is resolved on one snapshot of the ring, as adding or removing a shard renumbers the shards
+         return getJdbcHelper(((ConsistentHashShardedDataSource) shards).getDataSource(shardKey));
+      }
+      return getShardJdbcHelper(getShard(shardKey));
+   }
+
+   /**
+    * @param shardKey A shard key
+    * @return Returns the cached JdbcHelper of the shard the key belongs to
+    */
+   public JdbcHelper getJdbcHelper(String shardKey) {
+      if (shards instanceof ConsistentHashShardedDataSource) {
+         return getJdbcHelper(((ConsistentHashShardedDataSource) shards).getDataSource(shardKey));
+      }
+      return getShardJdbcHelper(getShard(shardKey));
+   }
+
+   /**
+    * Drops the cached JdbcHelpers of data sources that are no longer shards, after shards were removed.
+    */
+   public synchronized void evictRemovedShards() {
+      Set<DataSource> current = new HashSet<DataSource>();
+      for (int i = 0; i < shards.getShardCount(); i++) {
+         current.add(shards.getDataSource(i));
+      }
+      helpers.keySet().retainAll(current);
+   }
+
+   /**
+    * Sets how scatter queries run. The shard queries run on a pool of at most <code>maxThreads</code>
+    * threads shared by all scatter queries of this instance, further shard queries wait for a thread.
+    * @param maxThreads The maximum number of shard queries running at the same time
+    * @param shardTimeoutMillis How long a scatter query waits for the shards to answer, 0 for no limit
+    * @param partialResults What happens when a shard fails or does not answer in time
+    */
+   public synchronized void setScatterGather(int maxThreads, long shardTimeoutMillis, PartialResults partialResults) {
+      if (maxThreads < 1) throw new IllegalArgumentException("Invalid maxThreads value.");
+      if (shardTimeoutMillis < 0) throw new IllegalArgumentException("Invalid shardTimeoutMillis value.");
+      if (partialResults == null) throw new IllegalArgumentException("Invalid partialResults value.");
+      scatterThreads = maxThreads;
+      shardTimeout = shardTimeoutMillis;
+      this.partialResults = partialResults;
+      if (scatterExecutor != null) {
+         if (maxThreads > scatterExecutor.getMaximumPoolSize()) {
+            scatterExecutor.setMaximumPoolSize(maxThreads);
+            scatterExecutor.setCorePoolSize(maxThreads);
+         } else {
+            scatterExecutor.setCorePoolSize(maxThreads);
+            scatterExecutor.setMaximumPoolSize(maxThreads);
+         }
+      }
+   }
+
+   public synchronized int getScatterThreads() {
+      return scatterThreads;
+   }
+
+   public long getShardTimeout() {
+      return shardTimeout;
+   }
+
+   public PartialResults getPartialResults() {
+      return partialResults;
+   }
+
+   private synchronized ExecutorService getScatterExecutor() {
+      if (scatterExecutor == null) {
+         scatterExecutor = new ThreadPoolExecutor(scatterThreads, scatterThreads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), ConnectionPool.daemonThreadFactory("ShardedJdbcHelper scatter"));
+         scatterExecutor.allowCoreThreadTimeOut(true);
+      }
+      return scatterExecutor;
+   }
+
+   /**
+    * @param shardKeys Shard keys
+    * @return Returns the distinct numbers of the shards the keys belong to, for scattering a query
+    * to only those shards
+    */
+   public int[] getShards(long... shardKeys) {
+      Set<Integer> distinct = new LinkedHashSet<Integer>();
+      for (long key : shardKeys) {
+         distinct.add(getShard(key));
+      }
+      int[] shardNos = new int[distinct.size()];
+      int i = 0;
+      for (Integer shardNo : distinct) {
+         shardNos[i++] = shardNo;
+      }
+      return shardNos;
+   }
+
+   private int[] allShards() {
+      int[] shardNos = new int[shards.getShardCount()];
+      for (int i = 0; i < shardNos.length; i++) {
+         shardNos[i] = i;
+      }
+      return shardNos;
+   }
+
+   /**
+    * Runs a query on all shards in parallel. The rows of every shard are returned as soon as it has
+    * answered, in no particular order between the shards.
+    * @param sql The query
+    * @param beanCreator The bean creator of the rows
+    * @param params The query parameters
+    * @return Returns the rows of all shards
+    * @see #setScatterGather(int, long, PartialResults)
+    */
+   public <T> ShardResults<T> scatter(String sql, BeanCreator<T> beanCreator, Object... params) {
+      return scatter(allShards(), sql, beanCreator, params);
+   }
+
+   /**
+    * Runs a query on the given shards in parallel, like {@link #scatter(String, BeanCreator, Object...)}.
+    * @param shardNos The shard numbers
+    * @param sql The query
+    * @param beanCreator The bean creator of the rows
+    * @param params The query parameters
+    * @return Returns the rows of the shards
+    */
+   public <T> ShardResults<T> scatter(int[] shardNos, String sql, BeanCreator<T> beanCreator, Object... params) {
+      return scatter(shardNos, sql, listTask(sql, beanCreator, params), null);
+   }
+
+   /**
+    * Runs a query on all shards in parallel and merges the rows in the given order. The query must
+    * return the rows of each shard in the same order, with an order by clause.
+    * @param order The order of the rows
+    * @param sql The query
+    * @param beanCreator The bean creator of the rows
+    * @param params The query parameters
+    * @return Returns the rows of all shards in order
+    */
+   public <T> ShardResults<T> scatterSorted(Comparator<? super T> order, String sql, BeanCreator<T> beanCreator,
+                                            Object... params) {
+      return scatterSorted(allShards(), order, sql, beanCreator, params);
+   }
+
+   /**
+    * Runs a query on the given shards in parallel and merges the rows in the given order, like
+    * {@link #scatterSorted(Comparator, String, BeanCreator, Object...)}.
+    * @param shardNos The shard numbers
+    * @param order The order of the rows
+    * @param sql The query
+    * @param beanCreator The bean creator of the rows
+    * @param params The query parameters
+    * @return Returns the rows of the shards in order
+    */
+   public <T> ShardResults<T> scatterSorted(int[] shardNos, Comparator<? super T> order, String sql,
+                                            BeanCreator<T> beanCreator, Object... params) {
+      if (order == null) throw new IllegalArgumentException("Invalid order value.");
+      return scatter(shardNos, sql, listTask(sql, beanCreator, params), order);
+   }
+
+   <T> ShardResults<T> scatter(int[] shardNos, String sql, ShardResults.ShardTask<T> task, Comparator<? super T> order) {
+      return scatter(shardNos, sql, task, order, partialResults);
+   }
+
+   private <T> ShardResults<T> scatter(int[] shardNos, String sql, ShardResults.ShardTask<T> task,
+                                       Comparator<? super T> order, PartialResults partialResults) {
+      return new ShardResults<T>(this, getScatterExecutor(), shardNos, sql, task, order, shardTimeout, partialResults);
+   }
+
+   /**
+    * Runs a query that returns one partial aggregate per shard on all shards in parallel. A shard that fails
+    * or times out always fails an aggregate, since leaving it out would give a wrong result.
+    */
+   private <T> List<T> partials(String sql, final BeanCreator<T> beanCreator, final Object[] params) {
+      return scatter(allShards(), sql, listTask(sql, beanCreator, params), null, PartialResults.FAIL).toList();
+   }
+
+   private static final BeanCreator<Long> LONG_CREATOR = new BeanCreator<Long>() {
+      public Long createBean(ResultSet rs) throws SQLException {
+         return rs.getLong(1);
+      }
+   };
+
+   private static final BeanCreator<BigDecimal> BIG_DECIMAL_CREATOR = new BeanCreator<BigDecimal>() {
+      public BigDecimal createBean(ResultSet rs) throws SQLException {
+         return rs.getBigDecimal(1);
+      }
+   };
+
+   /**
+    * Runs a count query, such as <code>select count(*) from orders where status = ?</code>, on all shards
+    * in parallel and returns the sum of the counts.
+    * @param sql The count query
+    * @param params The query parameters
+    * @return Returns the count over all shards
+    */
+   public long scatterCount(String sql, Object... params) {
+      long count = 0;
+      for (Long shardCount : partials(sql, LONG_CREATOR, params)) {
+         count += shardCount;
+      }
+      return count;
+   }
+
+   /**
+    * Runs a sum query, such as <code>select sum(amount) from orders where user_id = ?</code>, on all shards
+    * in parallel and returns the sum of the sums.
+    * @param sql The sum query
+    * @param params The query parameters
+    * @return Returns the sum over all shards, or null if every shard returned null because it had no rows
+    */
+   public BigDecimal scatterSum(String sql, Object... params) {
+      BigDecimal sum = null;
+      for (BigDecimal shardSum : partials(sql, BIG_DECIMAL_CREATOR, params)) {
+         if (shardSum != null) {
+            sum = sum == null ? shardSum : sum.add(shardSum);
+         }
+      }
+      return sum;
+   }
+
+   /**
+    * Runs a min query, such as <code>select min(created) from orders</code>, on all shards in parallel and
+    * returns the smallest of the minimums.
+    * @param sql The min query
+    * @param beanCreator Reads the minimum of a shard, it may return null for a shard without rows
+    * @param params The query parameters
+    * @return Returns the minimum over all shards, or null if no shard had one
+    */
+   public <T extends Comparable<? super T>> T scatterMin(String sql, BeanCreator<T> beanCreator, Object... params) {
+      T min = null;
+      for (T shardMin : partials(sql, beanCreator, params)) {
+         if (shardMin != null && (min == null || shardMin.compareTo(min) < 0)) {
+            min = shardMin;
+         }
+      }
+      return min;
+   }
+
+   /**
+    * Runs a max query, such as <code>select max(created) from orders</code>, on all shards in parallel and
+    * returns the largest of the maximums.
+    * @param sql The max query
+    * @param beanCreator Reads the maximum of a shard, it may return null for a shard without rows
+    * @param params The query parameters
+    * @return Returns the maximum over all shards, or null if no shard had one
+    */
+   public <T extends Comparable<? super T>> T scatterMax(String sql, BeanCreator<T> beanCreator, Object... params) {
+      T max = null;
+      for (T shardMax : partials(sql, beanCreator, params)) {
+         if (shardMax != null && (max == null || shardMax.compareTo(max) > 0)) {
+            max = shardMax;
+         }
+      }
+      return max;
+   }
+
+   /**
+    * Returns the first <code>n</code> rows over all shards in the given order. The query must return the rows
+    * of a shard in the same order, with an order by clause, and should limit them to <code>n</code>. At most
+    * <code>n</code> rows are read from every shard, and the rows of the shards are merged with a heap until
+    * <code>n</code> rows are found. Like the other aggregates, a failing shard fails the query.
+    * @param n The number of rows
+    * @param order The order of the rows
+    * @param sql The query, ordered by the same order
+    * @param beanCreator The bean creator of the rows
+    * @param params The query parameters
+    * @return Returns the first n rows over all shards in order
+    */
+   public <T> List<T> scatterTop(final int n, Comparator<? super T> order, final String sql,
+                                 final BeanCreator<T> beanCreator, final Object... params) {
+      if (n < 1) throw new IllegalArgumentException("Invalid n value.");
+      if (order == null) throw new IllegalArgumentException("Invalid order value.");
+      ShardResults.ShardTask<T> task = new ShardResults.ShardTask<T>() {
+         public List<T> run(JdbcHelper shard) {
+            final List<T> rows = new ArrayList<T>(Math.min(n, 1024));
+            shard.query(sql, new ResultSetHandler(0, n) {
+               public void processRow(ResultSet rs) throws SQLException {
+                  if (rows.size() < n) rows.add(beanCreator.createBean(rs));
+               }
+            }, params);
+            return rows;
+         }
+      };
+      List<T> top = new ArrayList<T>(Math.min(n, 1024));
+      Iterator<T> merged = scatter(allShards(), sql, task, order, PartialResults.FAIL).iterator();
+      while (top.size() < n && merged.hasNext()) {
+         top.add(merged.next());
+      }
+      return top;
+   }
+
+   private static <T> ShardResults.ShardTask<T> listTask(final String sql, final BeanCreator<T> beanCreator,
+                                                         final Object[] params) {
+      return new ShardResults.ShardTask<T>() {
+         public List<T> run(JdbcHelper shard) {
+            return shard.queryForList(sql, beanCreator, params);
+         }
+      };
+   }
+
+   /**
+    * Executes a batch statement for every bean on the shard of its key, like
+    * {@link #executeBatch(String, Iterator, ShardKeyExtractor, StatementMapper, int)} with batches of 1000.
+    */
+   public <T> int[] executeBatch(String sql, Iterator<T> beans, ShardKeyExtractor<T> shardKey, StatementMapper<T> mapper) {
+      return executeBatch(sql, beans, shardKey, mapper, 1000);
+   }
+
+   /**
+    * Executes a batch statement for every bean on the shard of its key. The beans are collected in a
+    * buffer per shard, and a full buffer is sent to its shard as one batch with
+    * {@link JdbcHelper#executeBatch(String, BatchFeeder)} on the scatter threads, so the shards are written
+    * in parallel while the beans are still being read. A shard has at most one batch running, reading
+    * the beans waits while a shard whose buffer is full is still busy with its previous batch.
+    *
+    * <p>The batches run outside of any transaction of the current thread and are not atomic across shards.
+    * If a batch fails, the batches that are already running are waited for and the error is thrown.</p>
+    *
+    * <p>Example:</p>
+    * <pre>
+    * int[] result = jdbc.executeBatch("insert into orders (order_id, user_id) values (?, ?)", orders.iterator(),
+    *    new ShardKeyExtractor&lt;Order&gt;() {
+    *       public long getShardKey(Order order) {
+    *          return order.getUserId();
+    *       }
+    *    }, Order.getMapper(), 500);
+    * </pre>
+    *
+    * @param sql The sql statement to be executed
+    * @param beans The beans to execute the statement for
+    * @param shardKey Returns the shard key of a bean
+    * @param mapper Sets the statement parameters of a bean
+    * @param batchSize The number of beans sent to a shard in one batch
+    * @return Returns the affected row count of every bean, in the order of the beans
+    */
+   public <T> int[] executeBatch(String sql, Iterator<T> beans, ShardKeyExtractor<T> shardKey,
+                                 StatementMapper<T> mapper, int batchSize) {
+      if (batchSize < 1) throw new IllegalArgumentException("Invalid batchSize value.");
+      ExecutorService executor = getScatterExecutor();
+      Map<JdbcHelper, ShardBatch<T>> batches = new HashMap<JdbcHelper, ShardBatch<T>>();
+      int[] counts = new int[64];
+      int n = 0;
+      try {
+         while (beans.hasNext()) {
+            T bean = beans.next();
+            JdbcHelper shard = getJdbcHelper(shardKey.getShardKey(bean));
+            ShardBatch<T> batch = batches.get(shard);
+            if (batch == null) {
+               batch = new ShardBatch<T>(shard, batchSize);
+               batches.put(shard, batch);
+            }
+            if (n == counts.length) {
+               counts = Arrays.copyOf(counts, n * 2);
+            }
+            batch.add(bean, n++);
+            if (batch.size == batchSize) {
+               batch.flush(executor, sql, mapper, counts);
+            }
+         }
+         for (ShardBatch<T> batch : batches.values()) {
+            if (batch.size > 0) {
+               batch.flush(executor, sql, mapper, counts);
+            }
+         }
+         for (ShardBatch<T> batch : batches.values()) {
+            batch.await(sql, counts);
+         }
+      } catch (RuntimeException e) {
+         for (ShardBatch<T> batch : batches.values()) {
+            batch.awaitQuietly();
+         }
+         throw e;
+      }
+      return Arrays.copyOf(counts, n);
+   }
+
+   /**
+    * The buffered beans of one shard and its running batch, used by the reading thread only.
+    */
+   private static final class ShardBatch<T> {
+      final JdbcHelper shard;
+      final int batchSize;
+      List<T> beans;
+      int[] indexes;   // the input position of every buffered bean
+      int size;
+      Future<int[]> running;
+      int[] runningIndexes;
+
+      ShardBatch(JdbcHelper shard, int batchSize) {
+         this.shard = shard;
+         this.batchSize = batchSize;
+         beans = new ArrayList<T>(Math.min(batchSize, 1024));
+         indexes = new int[Math.min(batchSize, 1024)];
+      }
+
+      void add(T bean, int index) {
+         if (size == indexes.length) {
+            indexes = Arrays.copyOf(indexes, Math.min(size * 2, batchSize));
+         }
+         beans.add(bean);
+         indexes[size++] = index;
+      }
+
+      void flush(ExecutorService executor, final String sql, final StatementMapper<T> mapper, int[] counts) {
+         await(sql, counts);
+         final List<T> batch = beans;
+         running = executor.submit(new Callable<int[]>() {
+            public int[] call() {
+               return shard.executeBatch(sql, new MappingBatchFeeder<T>(batch.iterator(), mapper));
+            }
+         });
+         runningIndexes = indexes;
+         beans = new ArrayList<T>(Math.min(batchSize, 1024));
+         indexes = new int[Math.min(batchSize, 1024)];
+         size = 0;
+      }
+
+      /**
+       * Waits for the running batch and stores its row counts at the input positions of its beans.
+       */
+      void await(String sql, int[] counts) {
+         if (running == null) return;
+         int[] result;
+         try {
+            result = running.get();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JdbcException("Interrupted while executing batch:\n" + sql, e);
+         } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof JdbcException) {
+               throw (JdbcException) cause;
+            }
+            throw new JdbcException("Error executing query:\n" + sql + "\n\nError: " + cause.getMessage(), cause);
+         } finally {
+            running = null;
+         }
+         for (int i = 0; i < result.length; i++) {
+            counts[runningIndexes[i]] = result[i];
+         }
+      }
+
+      void awaitQuietly() {
+         if (running == null) return;
+         try {
+            running.get();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         } catch (ExecutionException e) {
+            // the first error is thrown
+         }
+         running = null;
+      }
+   }
+
+   /**
+    * Begins a transaction on the shard of the key for the current thread. The shard is resolved
+    * again by every call, so a transaction should not span a change of the shards. Use
+    * {@link #inTransaction(long, TransactionCallback)} or {@link #getJdbcHelper(long)} to be safe.
+    * @param shardKey A shard key
+    * @see JdbcHelper#beginTransaction()
+    */
+   public void beginTransaction(long shardKey) {
+      getJdbcHelper(shardKey).beginTransaction();
+   }
+
+   /**
+    * @param shardKey A shard key
+    * @see JdbcHelper#commitTransaction()
+    */
+   public void commitTransaction(long shardKey) {
+      getJdbcHelper(shardKey).commitTransaction();
+   }
+
+   /**
+    * @param shardKey A shard key
+    * @see JdbcHelper#rollbackTransaction()
+    */
+   public void rollbackTransaction(long shardKey) {
+      getJdbcHelper(shardKey).rollbackTransaction();
+   }
+
+   /**
+    * @param shardKey A shard key
+    * @return Returns true if there is a transaction for the current thread on the shard of the key
+    * @see JdbcHelper#isInTransaction()
+    */
+   public boolean isInTransaction(long shardKey) {
+      return getJdbcHelper(shardKey).isInTransaction();
+   }
+
+   /**
+    * Runs the callback in a transaction on the shard of the key.
+    * @param shardKey A shard key
+    * @param callback The work to be done in the transaction
+    * @return Returns the value returned by the callback
+    * @see JdbcHelper#inTransaction(TransactionCallback)
+    */
+   public <T> T inTransaction(long shardKey, TransactionCallback<T> callback) {
+      return getJdbcHelper(shardKey).inTransaction(callback);
+   }
+
+   /**
+    * Runs the callback in a transaction on the shard of the key.
+    * @param shardKey A shard key
+    * @param callback The work to be done in the transaction
+    * @return Returns the value returned by the callback
+    * @see JdbcHelper#inTransaction(TransactionCallback)
+    */
+   public <T> T inTransaction(String shardKey, TransactionCallback<T> callback) {
+      return getJdbcHelper(shardKey).inTransaction(callback);
+   }
+
+   /**
+    * @see JdbcHelper#queryForList(String, BeanCreator, Object...)
+    */
+   public <T> ArrayList<T> queryForList(long shardKey, String sql, BeanCreator<T> beanCreator, Object... params) {
+      return getJdbcHelper(shardKey).queryForList(sql, beanCreator, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForList(String, BeanCreator, StatementPopulator)
+    */
+   public <T> ArrayList<T> queryForList(long shardKey,
+                                        String sql,
+                                        BeanCreator<T> beanCreator,
+                                        StatementPopulator populator) {
+      return getJdbcHelper(shardKey).queryForList(sql, beanCreator, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForIntegerList(String, Object...)
+    */
+   public ArrayList<Integer> queryForIntegerList(long shardKey, String sql, Object... params) {
+      return getJdbcHelper(shardKey).queryForIntegerList(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForIntegerList(String, StatementPopulator)
+    */
+   public ArrayList<Integer> queryForIntegerList(long shardKey, String sql, StatementPopulator populator) {
+      return getJdbcHelper(shardKey).queryForIntegerList(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForStringList(String, Object...)
+    */
+   public ArrayList<String> queryForStringList(long shardKey, String sql, Object... params) {
+      return getJdbcHelper(shardKey).queryForStringList(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForStringList(String, StatementPopulator)
+    */
+   public ArrayList<String> queryForStringList(long shardKey, String sql, StatementPopulator populator) {
+      return getJdbcHelper(shardKey).queryForStringList(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForList(String, BeanCreator, BeanCreator, Object...)
+    */
+   public <X, Y> ArrayList<Tuple<X, Y>> queryForList(long shardKey,
+                                                     String sql,
+                                                     BeanCreator<X> xCreator,
+                                                     BeanCreator<Y> yCreator,
+                                                     Object... params) {
+      return getJdbcHelper(shardKey).queryForList(sql, xCreator, yCreator, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForList(String, BeanCreator, BeanCreator, StatementPopulator)
+    */
+   public <X, Y> ArrayList<Tuple<X, Y>> queryForList(long shardKey,
+                                                     String sql,
+                                                     BeanCreator<X> xCreator,
+                                                     BeanCreator<Y> yCreator,
+                                                     StatementPopulator populator) {
+      return getJdbcHelper(shardKey).queryForList(sql, xCreator, yCreator, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForList(String, BeanCreator, BeanCreator, BeanCreator, Object...)
+    */
+   public <X, Y, Z> ArrayList<Triple<X, Y, Z>> queryForList(long shardKey,
+                                                            String sql,
+                                                            BeanCreator<X> xCreator,
+                                                            BeanCreator<Y> yCreator,
+                                                            BeanCreator<Z> zCreator,
+                                                            Object... params) {
+      return getJdbcHelper(shardKey).queryForList(sql, xCreator, yCreator, zCreator, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForList(String, BeanCreator, BeanCreator, BeanCreator, StatementPopulator)
+    */
+   public <X, Y, Z> ArrayList<Triple<X, Y, Z>> queryForList(long shardKey,
+                                                            String sql,
+                                                            BeanCreator<X> xCreator,
+                                                            BeanCreator<Y> yCreator,
+                                                            BeanCreator<Z> zCreator,
+                                                            StatementPopulator populator) {
+      return getJdbcHelper(shardKey).queryForList(sql, xCreator, yCreator, zCreator, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForList(String, BeanCreator, BeanCreator, BeanCreator, BeanCreator, Object...)
+    */
+   public <X, Y, Z, W> ArrayList<Quadruple<X, Y, Z, W>> queryForList(long shardKey,
+                                                                     String sql,
+                                                                     BeanCreator<X> xCreator,
+                                                                     BeanCreator<Y> yCreator,
+                                                                     BeanCreator<Z> zCreator,
+                                                                     BeanCreator<W> wCreator,
+                                                                     Object... params) {
+      return getJdbcHelper(shardKey).queryForList(sql, xCreator, yCreator, zCreator, wCreator, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForList(String, BeanCreator, BeanCreator, BeanCreator, BeanCreator, StatementPopulator)
+    */
+   public <X, Y, Z, W> ArrayList<Quadruple<X, Y, Z, W>> queryForList(long shardKey,
+                                                                     String sql,
+                                                                     BeanCreator<X> xCreator,
+                                                                     BeanCreator<Y> yCreator,
+                                                                     BeanCreator<Z> zCreator,
+                                                                     BeanCreator<W> wCreator,
+                                                                     StatementPopulator populator) {
+      return getJdbcHelper(shardKey).queryForList(sql, xCreator, yCreator, zCreator, wCreator, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForList(String, BeanCreator, BeanCreator, BeanCreator, BeanCreator, BeanCreator, Object...)
+    */
+   public <X, Y, Z, W, Q> ArrayList<Pentuple<X, Y, Z, W, Q>> queryForList(long shardKey,
+                                                                          String sql,
+                                                                          BeanCreator<X> xCreator,
+                                                                          BeanCreator<Y> yCreator,
+                                                                          BeanCreator<Z> zCreator,
+                                                                          BeanCreator<W> wCreator,
+                                                                          BeanCreator<Q> qCreator,
+                                                                          Object... params) {
+      return getJdbcHelper(shardKey).queryForList(sql, xCreator, yCreator, zCreator, wCreator, qCreator, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForList(String, BeanCreator, BeanCreator, BeanCreator, BeanCreator, BeanCreator, StatementPopulator)
+    */
+   public <X, Y, Z, W, Q> ArrayList<Pentuple<X, Y, Z, W, Q>> queryForList(long shardKey,
+                                                                          String sql,
+                                                                          BeanCreator<X> xCreator,
+                                                                          BeanCreator<Y> yCreator,
+                                                                          BeanCreator<Z> zCreator,
+                                                                          BeanCreator<W> wCreator,
+                                                                          BeanCreator<Q> qCreator,
+                                                                          StatementPopulator populator) {
+      return getJdbcHelper(shardKey).queryForList(sql, xCreator, yCreator, zCreator, wCreator, qCreator, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForMap(String, ResultSetMapper, Object...)
+    */
+   public <K, V> SortedMap<K, V> queryForMap(long shardKey,
+                                             String sql,
+                                             ResultSetMapper<K, V> resultSetMapper,
+                                             Object... params) {
+      return getJdbcHelper(shardKey).queryForMap(sql, resultSetMapper, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForMap(String, ResultSetMapper, StatementPopulator)
+    */
+   public <K, V> SortedMap<K, V> queryForMap(long shardKey,
+                                             String sql,
+                                             ResultSetMapper<K, V> resultSetMapper,
+                                             StatementPopulator populator) {
+      return getJdbcHelper(shardKey).queryForMap(sql, resultSetMapper, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForObject(String, BeanCreator, Object...)
+    */
+   public <T> T queryForObject(long shardKey, String sql, BeanCreator<T> beanCreator, Object... params) {
+      return getJdbcHelper(shardKey).queryForObject(sql, beanCreator, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForObject(String, BeanCreator, StatementPopulator)
+    */
+   public <T> T queryForObject(long shardKey, String sql, BeanCreator<T> beanCreator, StatementPopulator populator) {
+      return getJdbcHelper(shardKey).queryForObject(sql, beanCreator, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForTuple(String, BeanCreator, BeanCreator, Object...)
+    */
+   public <X, Y> Tuple<X, Y> queryForTuple(long shardKey,
+                                           String sql,
+                                           BeanCreator<X> xCreator,
+                                           BeanCreator<Y> yCreator,
+                                           Object... params) {
+      return getJdbcHelper(shardKey).queryForTuple(sql, xCreator, yCreator, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForTuple(String, BeanCreator, BeanCreator, StatementPopulator)
+    */
+   public <X, Y> Tuple<X, Y> queryForTuple(long shardKey,
+                                           String sql,
+                                           BeanCreator<X> xCreator,
+                                           BeanCreator<Y> yCreator,
+                                           StatementPopulator populator) {
+      return getJdbcHelper(shardKey).queryForTuple(sql, xCreator, yCreator, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForTriple(String, BeanCreator, BeanCreator, BeanCreator, Object...)
+    */
+   public <X, Y, Z> Triple<X, Y, Z> queryForTriple(long shardKey,
+                                                   String sql,
+                                                   BeanCreator<X> xCreator,
+                                                   BeanCreator<Y> yCreator,
+                                                   BeanCreator<Z> zCreator,
+                                                   Object... params) {
+      return getJdbcHelper(shardKey).queryForTriple(sql, xCreator, yCreator, zCreator, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForTriple(String, BeanCreator, BeanCreator, BeanCreator, StatementPopulator)
+    */
+   public <X, Y, Z> Triple<X, Y, Z> queryForTriple(long shardKey,
+                                                   String sql,
+                                                   BeanCreator<X> xCreator,
+                                                   BeanCreator<Y> yCreator,
+                                                   BeanCreator<Z> zCreator,
+                                                   StatementPopulator populator) {
+      return getJdbcHelper(shardKey).queryForTriple(sql, xCreator, yCreator, zCreator, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForQuadruple(String, BeanCreator, BeanCreator, BeanCreator, BeanCreator, Object...)
+    */
+   public <X, Y, Z, W> Quadruple<X, Y, Z, W> queryForQuadruple(long shardKey,
+                                                               String sql,
+                                                               BeanCreator<X> xCreator,
+                                                               BeanCreator<Y> yCreator,
+                                                               BeanCreator<Z> zCreator,
+                                                               BeanCreator<W> wCreator,
+                                                               Object... params) {
+      return getJdbcHelper(shardKey).queryForQuadruple(sql, xCreator, yCreator, zCreator, wCreator, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForQuadruple(String, BeanCreator, BeanCreator, BeanCreator, BeanCreator, StatementPopulator)
+    */
+   public <X, Y, Z, W> Quadruple<X, Y, Z, W> queryForQuadruple(long shardKey,
+                                                               String sql,
+                                                               BeanCreator<X> xCreator,
+                                                               BeanCreator<Y> yCreator,
+                                                               BeanCreator<Z> zCreator,
+                                                               BeanCreator<W> wCreator,
+                                                               StatementPopulator populator) {
+      return getJdbcHelper(shardKey).queryForQuadruple(sql, xCreator, yCreator, zCreator, wCreator, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForPentuple(String, BeanCreator, BeanCreator, BeanCreator, BeanCreator, BeanCreator, Object...)
+    */
+   public <X, Y, Z, W, Q> Pentuple<X, Y, Z, W, Q> queryForPentuple(long shardKey,
+                                                                   String sql,
+                                                                   BeanCreator<X> xCreator,
+                                                                   BeanCreator<Y> yCreator,
+                                                                   BeanCreator<Z> zCreator,
+                                                                   BeanCreator<W> wCreator,
+                                                                   BeanCreator<Q> qCreator,
+                                                                   Object... params) {
+      return getJdbcHelper(shardKey).queryForPentuple(sql, xCreator, yCreator, zCreator, wCreator, qCreator, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForPentuple(String, BeanCreator, BeanCreator, BeanCreator, BeanCreator, BeanCreator, StatementPopulator)
+    */
+   public <X, Y, Z, W, Q> Pentuple<X, Y, Z, W, Q> queryForPentuple(long shardKey,
+                                                                   String sql,
+                                                                   BeanCreator<X> xCreator,
+                                                                   BeanCreator<Y> yCreator,
+                                                                   BeanCreator<Z> zCreator,
+                                                                   BeanCreator<W> wCreator,
+                                                                   BeanCreator<Q> qCreator,
+                                                                   StatementPopulator populator) {
+      return getJdbcHelper(shardKey).queryForPentuple(sql, xCreator, yCreator, zCreator, wCreator, qCreator, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForInt(String, Object...)
+    */
+   public int queryForInt(long shardKey, String sql, Object... params) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForInt(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForInt(String, StatementPopulator)
+    */
+   public int queryForInt(long shardKey, String sql, StatementPopulator populator) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForInt(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForString(String, Object...)
+    */
+   public String queryForString(long shardKey, String sql, Object... params) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForString(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForString(String, StatementPopulator)
+    */
+   public String queryForString(long shardKey, String sql, StatementPopulator populator) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForString(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForLong(String, Object...)
+    */
+   public long queryForLong(long shardKey, String sql, Object... params) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForLong(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForLong(String, StatementPopulator)
+    */
+   public long queryForLong(long shardKey, String sql, StatementPopulator populator) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForLong(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForDouble(String, Object...)
+    */
+   public double queryForDouble(long shardKey, String sql, Object... params) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForDouble(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForDouble(String, StatementPopulator)
+    */
+   public double queryForDouble(long shardKey, String sql, StatementPopulator populator) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForDouble(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForFloat(String, Object...)
+    */
+   public float queryForFloat(long shardKey, String sql, Object... params) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForFloat(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForFloat(String, StatementPopulator)
+    */
+   public float queryForFloat(long shardKey, String sql, StatementPopulator populator) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForFloat(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForTimestamp(String, Object...)
+    */
+   public Timestamp queryForTimestamp(long shardKey, String sql, Object... params) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForTimestamp(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForTimestamp(String, StatementPopulator)
+    */
+   public Timestamp queryForTimestamp(long shardKey,
+                                      String sql,
+                                      StatementPopulator populator) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForTimestamp(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForBigDecimal(String, Object...)
+    */
+   public BigDecimal queryForBigDecimal(long shardKey, String sql, Object... params) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForBigDecimal(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForBigDecimal(String, StatementPopulator)
+    */
+   public BigDecimal queryForBigDecimal(long shardKey,
+                                        String sql,
+                                        StatementPopulator populator) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForBigDecimal(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForBytes(String, Object...)
+    */
+   public byte[] queryForBytes(long shardKey, String sql, Object... params) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForBytes(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForBytes(String, StatementPopulator)
+    */
+   public byte[] queryForBytes(long shardKey, String sql, StatementPopulator populator) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForBytes(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForBoolean(String, Object...)
+    */
+   public boolean queryForBoolean(long shardKey, String sql, Object... params) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForBoolean(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForBoolean(String, StatementPopulator)
+    */
+   public boolean queryForBoolean(long shardKey, String sql, StatementPopulator populator) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForBoolean(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForAsciiStream(String, Object...)
+    */
+   public InputStream queryForAsciiStream(long shardKey, String sql, Object... params) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForAsciiStream(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForAsciiStream(String, StatementPopulator)
+    */
+   public InputStream queryForAsciiStream(long shardKey,
+                                          String sql,
+                                          StatementPopulator populator) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForAsciiStream(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForBinaryStream(String, Object...)
+    */
+   public InputStream queryForBinaryStream(long shardKey, String sql, Object... params) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForBinaryStream(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForBinaryStream(String, StatementPopulator)
+    */
+   public InputStream queryForBinaryStream(long shardKey,
+                                           String sql,
+                                           StatementPopulator populator) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForBinaryStream(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#queryForCharacterStream(String, Object...)
+    */
+   public Reader queryForCharacterStream(long shardKey, String sql, Object... params) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForCharacterStream(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#queryForCharacterStream(String, StatementPopulator)
+    */
+   public Reader queryForCharacterStream(long shardKey,
+                                         String sql,
+                                         StatementPopulator populator) throws NoResultException {
+      return getJdbcHelper(shardKey).queryForCharacterStream(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#query(String, ResultSetHandler, Object...)
+    */
+   public boolean query(long shardKey, String sql, ResultSetHandler handler, Object... params) {
+      return getJdbcHelper(shardKey).query(sql, handler, params);
+   }
+
+   /**
+    * @see JdbcHelper#query(String, ResultSetHandler, StatementPopulator)
+    */
+   public boolean query(long shardKey, String sql, ResultSetHandler handler, StatementPopulator populator) {
+      return getJdbcHelper(shardKey).query(sql, handler, populator);
+   }
+
+   /**
+    * @see JdbcHelper#query(String, Object...)
+    */
+   public QueryResult query(long shardKey, String sql, Object... params) {
+      return getJdbcHelper(shardKey).query(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#execute(String, Object...)
+    */
+   public int execute(long shardKey, String sql, Object... params) {
+      return getJdbcHelper(shardKey).execute(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#execute(String, Object, StatementMapper)
+    */
+   public <T> int execute(long shardKey, String sql, T bean, StatementMapper<T> mapper) {
+      return getJdbcHelper(shardKey).execute(sql, bean, mapper);
+   }
+
+   /**
+    * @see JdbcHelper#execute(String, StatementPopulator)
+    */
+   public int execute(long shardKey, String sql, StatementPopulator populator) {
+      return getJdbcHelper(shardKey).execute(sql, populator);
+   }
+
+   /**
+    * @see JdbcHelper#run(String, Object...)
+    */
+   public void run(long shardKey, String sql, Object... params) {
+      getJdbcHelper(shardKey).run(sql, params);
+   }
+
+   /**
+    * @see JdbcHelper#prepareStatement(String)
+    */
+   public ExecutableStatement prepareStatement(long shardKey, String sql) {
+      return getJdbcHelper(shardKey).prepareStatement(sql);
+   }
+
+   /**
+    * @see JdbcHelper#executeBatch(String, BatchFeeder)
+    */
+   public int[] executeBatch(long shardKey, String sql, BatchFeeder feeder) {
+      return getJdbcHelper(shardKey).executeBatch(sql, feeder);
+   }
+}
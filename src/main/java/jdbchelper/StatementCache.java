@@ -0,0 +1,360 @@
+package jdbchelper;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least recently used cache of the prepared statements of one pooled physical connection,
+ * keyed by their sql text.
+ *
+ * The cache is used by {@link ConnectionPool} when a statement cache size is set. The pool then keeps
+ * one logical connection handle open for the lifetime of the physical connection and hands out a
+ * wrapper of it. Calling <code>prepareStatement(String)</code> on the wrapper returns a cached statement
+ * if there is one, and closing such a statement puts it back to the cache. Closing the wrapper puts back
+ * the statements the application left open and returns the connection to the pool without closing the
+ * logical handle, so the cached statements stay usable. Every checkout of a statement gets its own proxy,
+ * so a proxy that was kept after closing it cannot use the statement of the next borrower.
+ */
+class StatementCache {
+   private final int maxSize;
+   private final AtomicLong hits;
+   private final AtomicLong misses;
+   private final LinkedHashMap<String, CachedStatement> statements;
+   private CachedStatement pendingEviction;   // set by removeEldestEntry, evicted by add() after releasing the lock
+
+   StatementCache(int maxSize, AtomicLong hits, AtomicLong misses) {
+      this.maxSize = maxSize;
+      this.hits = hits;
+      this.misses = misses;
+      statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+         private static final long serialVersionUID = 1;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+            if (size() <= StatementCache.this.maxSize) return false;
+            pendingEviction = eldest.getValue();
+            return true;
+         }
+      };
+   }
+
+   /**
+    * Wraps a logical connection handle for one checkout.
+    *
+    * @param handle    the logical connection handle of the pooled connection.
+    * @param pooledCon the pooled connection the handle belongs to.
+    * @param listener  the pool listener that is notified when the wrapper is closed.
+    * @return the connection to be handed out to the application.
+    */
+   Connection wrap(Connection handle, PooledConnection pooledCon, ConnectionEventListener listener) {
+      CachingConnection wrapper = new CachingConnection(handle, pooledCon, listener);
+      wrapper.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+         new Class[]{Connection.class}, wrapper);
+      return wrapper.proxy;
+   }
+
+   /**
+    * @return the number of statements in the cache.
+    */
+   synchronized int size() {
+      return statements.size();
+   }
+
+   /**
+    * Closes and removes all cached statements.
+    */
+   void close() {
+      List<CachedStatement> all;
+      synchronized (this) {
+         all = new ArrayList<CachedStatement>(statements.values());
+         statements.clear();
+      }
+      for (CachedStatement cs : all) {
+         cs.evict();
+      }
+   }
+
+   private synchronized CachedStatement checkOut(String sql, CachingConnection owner) {
+      CachedStatement cs = statements.get(sql);
+      if (cs != null && !cs.inUse) {
+         hits.incrementAndGet();
+         cs.borrow(owner);
+         return cs;
+      }
+      misses.incrementAndGet();
+      return null;
+   }
+
+   private CachedStatement add(String sql, PreparedStatement stmt, CachingConnection owner) {
+      CachedStatement cs;
+      CachedStatement eldest;
+      synchronized (this) {
+         // The same sql may be prepared again while the cached statement is still open.
+         // Such a statement is not cached and really closed when the application closes it.
+         boolean cached = !statements.containsKey(sql);
+         cs = new CachedStatement(sql, stmt, cached);
+         cs.borrow(owner);
+         if (cached) {
+            statements.put(sql, cs);
+         }
+         eldest = pendingEviction;
+         pendingEviction = null;
+      }
+      if (eldest != null) eldest.evict();
+      return cs;
+   }
+
+   private synchronized void remove(CachedStatement cs) {
+      if (statements.get(cs.sql) == cs) {
+         statements.remove(cs.sql);
+      }
+   }
+
+   private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+      try {
+         return method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+         throw e.getTargetException();
+      }
+   }
+
+   private class CachingConnection implements InvocationHandler {
+      final Connection handle;
+      final PooledConnection pooledCon;
+      final ConnectionEventListener listener;
+      final List<Statement> uncachedStatements = new ArrayList<Statement>();
+      final Set<CachedStatement> borrowed = new HashSet<CachedStatement>();   // guarded by the cache
+      Connection proxy;
+      int pruneAt = 16;
+      boolean closed;
+
+      CachingConnection(Connection handle, PooledConnection pooledCon, ConnectionEventListener listener) {
+         this.handle = handle;
+         this.pooledCon = pooledCon;
+         this.listener = listener;
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+         String name = method.getName();
+         if (name.equals("equals")) {
+            return proxy == args[0];
+         } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+         } else if (name.equals("toString")) {
+            return "Pooled " + handle;
+         } else if (name.equals("isClosed")) {
+            return closed;
+         } else if (name.equals("close")) {
+            close();
+            return null;
+         }
+
+         if (closed) throw new SQLException("Connection is closed.");
+
+         if (name.equals("prepareStatement") && args.length == 1) {
+            String sql = (String) args[0];
+            CachedStatement cs = checkOut(sql, this);
+            if (cs == null) {
+               cs = add(sql, handle.prepareStatement(sql), this);
+            }
+            return cs.proxy;
+         }
+
+         Object result = StatementCache.invoke(handle, method, args);
+         if (result instanceof Statement) {
+            track((Statement) result);
+         }
+         return result;
+      }
+
+      /**
+       * Remembers a statement that is not cached, so that it is closed with the connection. The statements
+       * the application has closed already are dropped now and then, so a long checkout does not pile them up.
+       */
+      private void track(Statement stmt) {
+         if (uncachedStatements.size() >= pruneAt) {
+            Iterator<Statement> it = uncachedStatements.iterator();
+            while (it.hasNext()) {
+               try {
+                  if (it.next().isClosed()) it.remove();
+               } catch (SQLException e) {
+                  // closed with the connection
+               }
+            }
+            pruneAt = Math.max(16, 2 * uncachedStatements.size());
+         }
+         uncachedStatements.add(stmt);
+      }
+
+      private void close() {
+         if (closed) return;
+         closed = true;
+         // The statements left open go back to the cache before the connection goes back to the pool
+         List<CachedStatement> open;
+         synchronized (StatementCache.this) {
+            open = new ArrayList<CachedStatement>(borrowed);
+         }
+         for (CachedStatement cs : open) {
+            cs.release();
+         }
+         for (Statement stmt : uncachedStatements) {
+            JdbcUtil.close(stmt);
+         }
+         uncachedStatements.clear();
+         try {
+            if (!handle.getAutoCommit()) {
+               handle.rollback();
+               handle.setAutoCommit(true);
+            }
+         } catch (SQLException e) {
+            listener.connectionErrorOccurred(new ConnectionEvent(pooledCon, e));
+            return;
+         }
+         listener.connectionClosed(new ConnectionEvent(pooledCon));
+      }
+   }
+
+   private class CachedStatement implements InvocationHandler {
+      final String sql;
+      final PreparedStatement stmt;
+      final boolean cached;
+      volatile PreparedStatement proxy;   // the proxy of the current checkout, null when not in use
+      volatile CachingConnection owner;
+      boolean inUse;
+      boolean releasing;
+      boolean evicted;
+      boolean modified;
+
+      CachedStatement(String sql, PreparedStatement stmt, boolean cached) {
+         this.sql = sql;
+         this.stmt = stmt;
+         this.cached = cached;
+      }
+
+      /**
+       * Hands the statement to a connection wrapper. The caller holds the cache lock.
+       */
+      private void borrow(CachingConnection owner) {
+         inUse = true;
+         this.owner = owner;
+         owner.borrowed.add(this);
+         proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+            new Class[]{PreparedStatement.class}, this);
+      }
+
+      /**
+       * Ends the current checkout. The caller holds the cache lock.
+       */
+      private void giveBack() {
+         inUse = false;
+         owner.borrowed.remove(this);
+         owner = null;
+         proxy = null;
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+         String name = method.getName();
+         if (name.equals("equals")) {
+            return proxy == args[0];
+         } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+         } else if (name.equals("toString")) {
+            return stmt.toString();
+         }
+
+         // A proxy of an earlier checkout stays closed, even when the statement has been borrowed again
+         CachingConnection borrower = owner;
+         boolean current = proxy == this.proxy;
+         if (name.equals("close")) {
+            if (current) release();
+            return null;
+         } else if (name.equals("isClosed")) {
+            return !current;
+         }
+
+         if (!current) throw new SQLException("Statement is closed.");
+
+         if (name.equals("getConnection")) {
+            return borrower.proxy;
+         } else if (name.equals("setMaxRows") || name.equals("setFetchSize") || name.equals("setQueryTimeout")) {
+            modified = true;
+         }
+         return StatementCache.invoke(stmt, method, args);
+      }
+
+      private void release() {
+         // The statement is reset before it is handed back, so no driver call is made under the cache lock
+         boolean close;
+         synchronized (StatementCache.this) {
+            if (!inUse || releasing) return;
+            close = !cached || evicted;
+            releasing = !close;
+            if (close) {
+               giveBack();
+            }
+         }
+         if (close) {
+            JdbcUtil.close(stmt);
+            return;
+         }
+         try {
+            // An abandoned batch or result set must not leak into the next borrower of the statement
+            JdbcUtil.close(stmt.getResultSet());
+            stmt.clearParameters();
+            stmt.clearBatch();
+            stmt.clearWarnings();
+            if (modified) {
+               stmt.setMaxRows(0);
+               stmt.setFetchSize(0);
+               stmt.setQueryTimeout(0);
+               modified = false;
+            }
+         } catch (SQLException e) {
+            close = true;
+         }
+         synchronized (StatementCache.this) {
+            releasing = false;
+            giveBack();
+            if (close) {
+               remove(this);
+            }
+            close = close || evicted;
+         }
+         if (close) {
+            JdbcUtil.close(stmt);
+         }
+      }
+
+      /**
+       * Marks the statement as removed from the cache. It is closed right away, or when the application
+       * closes it if it is still in use.
+       */
+      private void evict() {
+         boolean close;
+         synchronized (StatementCache.this) {
+            evicted = true;
+            close = !inUse;
+         }
+         if (close) {
+            JdbcUtil.close(stmt);
+         }
+      }
+   }
+}
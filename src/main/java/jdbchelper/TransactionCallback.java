@@ -0,0 +1,15 @@
+package jdbchelper;
+
+/**
+ * The work to be done in a transaction started by {@link JdbcHelper#inTransaction(TransactionCallback)}.
+ */
+public interface TransactionCallback<T> {
+   /**
+    * Performs the work of the transaction. All calls made with the supplied JdbcHelper from the
+    * current thread use the connection of the transaction.
+    *
+    * @param jdbc The JdbcHelper that started the transaction
+    * @return The result of the work, returned from inTransaction
+    */
+   public T doInTransaction(JdbcHelper jdbc);
+}
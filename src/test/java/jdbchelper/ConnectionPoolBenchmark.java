@@ -0,0 +1,86 @@
+package jdbchelper;
+
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares checkout throughput of the {@link ConnectionPool} engines under contention.
+ * Every thread checks out a connection and returns it immediately, so the numbers show the
+ * cost of the pool bookkeeping rather than the cost of a database round trip.
+ *
+ * <pre>
+ * java jdbchelper.ConnectionPoolBenchmark [secondsPerRun] [maxConnections]
+ * </pre>
+ */
+public class ConnectionPoolBenchmark {
+   static final int[] THREAD_COUNTS = {1, 8, 64, 256};
+
+   static volatile boolean stopped;
+
+   public static void main(String[] args) throws Exception {
+      int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+      int maxConnections = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+      // Warm up both engines so the JIT does not favour whichever runs last
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         run(engine, 8, maxConnections, 1000);
+      }
+
+      System.out.println("maxConnections = " + maxConnections + ", " + seconds + "s per run");
+      System.out.println(String.format("%-12s %8s %16s %14s", "engine", "threads", "checkouts/s", "avg wait us"));
+      for (int threads : THREAD_COUNTS) {
+         for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+            long[] r = run(engine, threads, maxConnections, seconds * 1000L);
+            System.out.println(String.format("%-12s %8d %16d %14.2f", engine, threads,
+               r[0] * 1000L / (seconds * 1000L), r[0] == 0 ? 0d : r[1] / 1000d / r[0]));
+         }
+      }
+   }
+
+   /**
+    * @return the number of checkouts and the total nanoseconds spent in getConnection()
+    */
+   static long[] run(ConnectionPool.Engine engine, int threads, int maxConnections, long millis) throws Exception {
+      final ConnectionPool pool = new ConnectionPool(new StubConnectionPoolDataSource(), maxConnections, 60, engine);
+      final AtomicLong checkouts = new AtomicLong();
+      final AtomicLong waitNanos = new AtomicLong();
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(threads);
+      stopped = false;
+
+      for (int i = 0; i < threads; i++) {
+         Thread t = new Thread() {
+            public void run() {
+               long count = 0;
+               long wait = 0;
+               try {
+                  start.await();
+                  while (!stopped) {
+                     long t0 = System.nanoTime();
+                     Connection con = pool.getConnection();
+                     wait += System.nanoTime() - t0;
+                     con.close();
+                     count++;
+                  }
+               } catch (Exception e) {
+                  e.printStackTrace();
+               } finally {
+                  checkouts.addAndGet(count);
+                  waitNanos.addAndGet(wait);
+                  done.countDown();
+               }
+            }
+         };
+         t.setDaemon(true);
+         t.start();
+      }
+
+      start.countDown();
+      Thread.sleep(millis);
+      stopped = true;
+      done.await();
+      pool.dispose();
+      return new long[]{checkouts.get(), waitNanos.get()};
+   }
+}
@@ -0,0 +1,757 @@
+package jdbchelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the connection pool against an in-memory ConnectionPoolDataSource.
+ */
+public class ConnectionPoolTest {
+
+   @Test
+   public void testSlowCreationDoesNotBlockReturnsAndReuse() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         StubConnectionPoolDataSource ds = new StubConnectionPoolDataSource();
+         final ConnectionPool pool = new ConnectionPool(ds, 4, 10, engine);
+         Connection first = pool.getConnection();
+
+         ds.createDelay = 2000;
+         Thread slow = new Thread() {
+            public void run() {
+               try {
+                  pool.getConnection().close();
+               } catch (Exception e) {
+                  throw new RuntimeException(e);
+               }
+            }
+         };
+         slow.start();
+         while (ds.creating.get() == 0) {
+            Thread.sleep(5);
+         }
+
+         long start = System.currentTimeMillis();
+         first.close();
+         Connection reused = pool.getConnection();
+         reused.close();
+         long elapsed = System.currentTimeMillis() - start;
+
+         assertTrue(engine + ": return and reuse took " + elapsed + "ms", elapsed < 500);
+         assertEquals(1, ds.creating.get());
+
+         slow.join();
+         assertEquals(0, pool.getActiveConnections());
+         assertEquals(2, pool.getIdleConnections());
+         pool.dispose();
+      }
+   }
+
+   @Test
+   public void testConcurrentCreationsAreBounded() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         StubConnectionPoolDataSource ds = new StubConnectionPoolDataSource();
+         ds.createDelay = 100;
+         final ConnectionPool pool = new ConnectionPool(ds, 8, 10, engine);
+         pool.setMaxConcurrentCreations(2);
+
+         final List<Connection> connections = new ArrayList<Connection>();
+         List<Thread> threads = new ArrayList<Thread>();
+         for (int i = 0; i < 6; i++) {
+            Thread t = new Thread() {
+               public void run() {
+                  try {
+                     Connection con = pool.getConnection();
+                     synchronized (connections) {
+                        connections.add(con);
+                     }
+                  } catch (Exception e) {
+                     throw new RuntimeException(e);
+                  }
+               }
+            };
+            t.start();
+            threads.add(t);
+         }
+         for (Thread t : threads) {
+            t.join();
+         }
+
+         assertEquals(6, connections.size());
+         assertEquals(6, ds.created.get());
+         assertEquals(2, ds.maxCreating.get());
+         for (Connection con : connections) {
+            con.close();
+         }
+         assertEquals(0, pool.getActiveConnections());
+         pool.dispose();
+      }
+   }
+
+   @Test
+   public void testInitialSizeAndMinIdleFillThePoolWithinItsLimit() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         StubConnectionPoolDataSource ds = new StubConnectionPoolDataSource();
+         ds.createDelay = 20;
+         ConnectionPool pool = new ConnectionPool(ds, 4, 10, engine);
+         pool.setMaxConcurrentCreations(2);
+         pool.setInitialSize(3);
+         assertTrue(pool.awaitWarmUp(5, TimeUnit.SECONDS));
+         assertEquals(3, pool.getIdleConnections());
+         assertEquals(3, ds.created.get());
+         assertTrue(pool.getWarmUpTime() >= 0);
+         assertTrue(ds.maxCreating.get() <= 2);
+         try {
+            pool.setMinIdle(5);
+            throw new AssertionError("Expected minIdle to be bounded by maxConnections");
+         } catch (IllegalArgumentException e) {
+            // expected
+         }
+
+         // Checkouts do not top the pool up
+         pool.setMinIdle(2);
+         List<Connection> connections = new ArrayList<Connection>();
+         for (int i = 0; i < 3; i++) {
+            connections.add(pool.getConnection());
+         }
+         Thread.sleep(50);
+         assertEquals(0, pool.getIdleConnections());
+         assertEquals(3, ds.created.get());
+
+         // A connection the pool closes is replaced up to minIdle
+         ds.lastCreated.fail();
+         while (pool.getIdleConnections() < 2) {
+            Thread.sleep(5);
+         }
+         assertEquals(5, ds.created.get());
+         assertEquals(1, ds.closed.get());
+
+         // ... but never past maxConnections
+         for (int i = 0; i < 2; i++) {
+            connections.add(pool.getConnection());
+         }
+         ds.lastCreated.fail();
+         while (pool.getIdleConnections() < 1) {
+            Thread.sleep(5);
+         }
+         Thread.sleep(100);
+         assertEquals(1, pool.getIdleConnections());
+         assertEquals(3, pool.getActiveConnections());
+         assertEquals(4, ds.created.get() - ds.closed.get());
+
+         for (Connection con : connections) {
+            con.close();
+         }
+         assertEquals(0, pool.getActiveConnections());
+         pool.dispose();
+      }
+   }
+
+   @Test
+   public void testIdleTimeoutAndMaxLifetimeRetireConnections() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         StubConnectionPoolDataSource ds = new StubConnectionPoolDataSource();
+         ConnectionPool pool = new ConnectionPool(ds, 10, 10, engine);
+
+         // Idle connections are closed once they have been idle for longer than the timeout
+         pool.setIdleTimeout(100);
+         Connection a = pool.getConnection();
+         Connection b = pool.getConnection();
+         a.close();
+         b.close();
+         pool.freeIdleConnections();
+         assertEquals(2, pool.getIdleConnections());
+         Thread.sleep(150);
+         pool.freeIdleConnections();
+         assertEquals(0, pool.getIdleConnections());
+         assertEquals(2, ds.closed.get());
+
+         // The jitter retires a connection early, but never before maxLifetime - jitter
+         pool.setIdleTimeout(0);
+         pool.setMaxLifetime(400, 200);
+         long opened = System.currentTimeMillis();
+         List<Connection> connections = new ArrayList<Connection>();
+         for (int i = 0; i < 10; i++) {
+            connections.add(pool.getConnection());
+         }
+         for (Connection con : connections) {
+            con.close();
+         }
+         Thread.sleep(150 - (System.currentTimeMillis() - opened));
+         pool.freeIdleConnections();
+         assertEquals(10, pool.getIdleConnections());
+         Thread.sleep(450 - (System.currentTimeMillis() - opened));
+         pool.freeIdleConnections();
+         assertEquals(0, pool.getIdleConnections());
+         assertEquals(12, ds.closed.get());
+
+         // A connection past its lifetime is closed when it is returned instead of being pooled again
+         pool.setMaxLifetime(100, 0);
+         Connection old = pool.getConnection();
+         Thread.sleep(150);
+         old.close();
+         assertEquals(0, pool.getIdleConnections());
+         assertEquals(13, ds.closed.get());
+         pool.getConnection().close();
+         assertEquals(14, ds.created.get());
+         assertEquals(1, pool.getIdleConnections());
+         assertEquals(0, pool.getActiveConnections());
+         pool.dispose();
+      }
+   }
+
+   @Test
+   public void testValidationPolicies() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         StubConnectionPoolDataSource ds = new StubConnectionPoolDataSource();
+         ConnectionPool pool = new ConnectionPool(ds, 2, 10, engine);
+
+         // ALWAYS validates new and reused connections
+         assertEquals(ConnectionPool.ValidationPolicy.ALWAYS, pool.getValidationPolicy());
+         pool.getConnection().close();
+         pool.getConnection().close();
+         assertEquals(2, pool.getValidationsPerformed());
+         assertEquals(0, pool.getValidationsSkipped());
+
+         // IDLE_TIME validates a connection that has been idle for longer than the interval
+         pool.setValidationPolicy(ConnectionPool.ValidationPolicy.IDLE_TIME, 100);
+         pool.getConnection().close();
+         assertEquals(2, pool.getValidationsPerformed());
+         assertEquals(1, pool.getValidationsSkipped());
+         Thread.sleep(150);
+         pool.getConnection().close();
+         assertEquals(3, pool.getValidationsPerformed());
+         assertEquals(1, pool.getValidationsSkipped());
+
+         // ON_ERROR validates the connections returned before the last connection error
+         pool.setValidationPolicy(ConnectionPool.ValidationPolicy.ON_ERROR);
+         Connection reused = pool.getConnection();
+         Connection opened = pool.getConnection();
+         assertEquals(3, pool.getValidationsSkipped());
+         reused.close();
+         ds.lastCreated.fail();
+         Thread.sleep(5);
+         pool.getConnection().close();
+         assertEquals(4, pool.getValidationsPerformed());
+         pool.getConnection().close();
+         assertEquals(4, pool.getValidationsPerformed());
+         assertEquals(4, pool.getValidationsSkipped());
+         assertEquals(4, ds.validations.get());
+         opened.close();
+
+         // BACKGROUND never validates on checkout, the idle connections are validated periodically instead
+         pool.setValidationPolicy(ConnectionPool.ValidationPolicy.BACKGROUND, 50);
+         pool.getConnection().close();
+         assertEquals(5, pool.getValidationsSkipped());
+         Thread.sleep(200);
+         assertTrue(pool.getValidationsPerformed() > 4);
+         assertTrue(ds.validations.get() > 4);
+         pool.dispose();
+      }
+   }
+
+   @Test
+   public void testReuseOrder() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         for (ConnectionPool.ReuseOrder order : new ConnectionPool.ReuseOrder[]{ConnectionPool.ReuseOrder.LIFO, ConnectionPool.ReuseOrder.FIFO}) {
+            ConnectionPool pool = new ConnectionPool(new StubConnectionPoolDataSource(), 3, 10, engine);
+            pool.setReuseOrder(order);
+            List<String> returned = new ArrayList<String>();
+            List<Connection> connections = new ArrayList<Connection>();
+            for (int i = 0; i < 3; i++) {
+               connections.add(pool.getConnection());
+            }
+            for (Connection con : connections) {
+               returned.add(con.toString());
+               con.close();
+            }
+
+            // The monitor engine keeps the exact order of the returns
+            if (engine == ConnectionPool.Engine.MONITOR) {
+               Connection next = pool.getConnection();
+               assertEquals(returned.get(order == ConnectionPool.ReuseOrder.LIFO ? 2 : 0), next.toString());
+               next.close();
+            }
+
+            // LIFO keeps reusing one hot connection, FIFO uses all of them in turn
+            Set<String> used = new HashSet<String>();
+            for (int i = 0; i < 6; i++) {
+               Connection con = pool.getConnection();
+               used.add(con.toString());
+               con.close();
+            }
+            assertEquals(engine + " " + order, order == ConnectionPool.ReuseOrder.LIFO ? 1 : 3, used.size());
+            assertEquals(3, pool.getIdleConnections());
+            pool.dispose();
+         }
+      }
+   }
+
+   @Test
+   public void testStatementCache() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         StubConnectionPoolDataSource ds = new StubConnectionPoolDataSource();
+         ConnectionPool pool = new ConnectionPool(ds, 1, 10, engine);
+         pool.setStatementCacheSize(2);
+
+         Connection con = pool.getConnection();
+         PreparedStatement ps = con.prepareStatement("select a");
+         assertTrue(ps.getConnection() == con);
+         ps.close();
+         con.close();
+
+         con = pool.getConnection();
+         con.prepareStatement("select a").close();
+         assertEquals(1, ds.prepared.get());
+         assertEquals(1, pool.getStatementCacheHits());
+         assertEquals(1, pool.getStatementCacheMisses());
+
+         // The least recently used statement is closed when the cache is full
+         con.prepareStatement("select b").close();
+         con.prepareStatement("select c").close();
+         assertEquals(3, ds.prepared.get());
+         assertEquals(1, ds.statementsClosed.get());
+
+         // A driver error discards the physical connection together with its cached statements
+         ds.lastCreated.fail();
+         assertEquals(3, ds.statementsClosed.get());
+         assertEquals(1, ds.closed.get());
+         assertEquals(0, pool.getActiveConnections());
+
+         con = pool.getConnection();
+         con.prepareStatement("select b").close();
+         con.close();
+         assertEquals(4, ds.prepared.get());
+
+         // An abandoned batch and result set do not reach the next user of the statement
+         con = pool.getConnection();
+         ps = con.prepareStatement("select b");
+         ResultSet rs = ps.executeQuery();
+         ps.addBatch();
+         ps.addBatch();
+         ps.close();
+         assertTrue(rs.isClosed());
+         ps = con.prepareStatement("select b");
+         ps.addBatch();
+         assertEquals(1, ps.executeBatch().length);
+         ps.close();
+         con.close();
+         assertEquals(4, ds.prepared.get());
+
+         // Closing the connection puts back a statement the borrower left open, and closes its proxy
+         con = pool.getConnection();
+         PreparedStatement leaked = con.prepareStatement("select b");
+         con.close();
+         assertTrue(leaked.isClosed());
+         long hits = pool.getStatementCacheHits();
+         con = pool.getConnection();
+         ps = con.prepareStatement("select b");
+         assertEquals(hits + 1, pool.getStatementCacheHits());
+         assertTrue(leaked.isClosed());
+         try {
+            leaked.executeQuery();
+            throw new AssertionError("Expected the leaked statement to stay closed");
+         } catch (SQLException e) {
+            // expected
+         }
+         leaked.close();
+         assertTrue(!ps.isClosed());
+         ps.close();
+         con.close();
+         assertEquals(4, ds.prepared.get());
+         assertEquals(2, ds.created.get());
+         assertEquals(0, pool.getActiveConnections());
+         pool.dispose();
+      }
+   }
+
+   @Test
+   public void testLeakedConnectionIsReportedAndReclaimed() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         StubConnectionPoolDataSource ds = new StubConnectionPoolDataSource();
+         ConnectionPool pool = new ConnectionPool(ds, 1, 1, engine);
+         final List<Throwable> sites = new ArrayList<Throwable>();
+         pool.setLeakListener(new ConnectionPool.LeakListener() {
+            public void connectionLeaked(long heldMillis, Throwable checkoutSite, boolean reclaimed) {
+               assertTrue(heldMillis >= 50);
+               assertTrue(reclaimed);
+               sites.add(checkoutSite);
+            }
+         });
+         pool.setLeakDetection(50, 1, true);
+
+         Connection returned = pool.getConnection();
+         returned.close();
+         Connection leaked = pool.getConnection();
+         Thread.sleep(100);
+         pool.detectLeakedConnections();
+
+         assertEquals(1, sites.size());
+         assertNotNull(sites.get(0));
+         assertEquals("testLeakedConnectionIsReportedAndReclaimed", sites.get(0).getStackTrace()[0].getMethodName());
+         assertEquals(1, pool.getLeaksReclaimed());
+         assertEquals(0, pool.getActiveConnections());
+         assertEquals(1, ds.closed.get());
+
+         // The reclaimed permit is available again and a late close of the leaked connection is ignored
+         Connection con = pool.getConnection();
+         try {
+            leaked.close();
+         } catch (SQLException e) {
+            // the physical connection is gone
+         }
+         assertEquals(1, pool.getActiveConnections());
+         con.close();
+         assertEquals(0, pool.getActiveConnections());
+         pool.dispose();
+      }
+   }
+
+   @Test
+   public void testLeakIsReportedOnceWithoutReclaim() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         ConnectionPool pool = new ConnectionPool(new StubConnectionPoolDataSource(), 2, 1, engine);
+         pool.setLeakDetection(20, 0, false);
+
+         Connection con = pool.getConnection();
+         Thread.sleep(150);
+         pool.detectLeakedConnections();
+         assertEquals(1, pool.getLeaksDetected());
+         assertEquals(0, pool.getLeaksReclaimed());
+         assertEquals(1, pool.getActiveConnections());
+
+         con.close();
+         assertEquals(0, pool.getActiveConnections());
+         pool.dispose();
+      }
+   }
+
+   @Test
+   public void testAdaptiveSizingShrinksWhenIdleAndGrowsUnderWaits() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         final ConnectionPool pool = new ConnectionPool(new StubConnectionPoolDataSource(), 8, 10, engine);
+         pool.setAdaptiveSizing(2, 60000, 1);
+
+         Connection con = pool.getConnection();
+         con.close();
+         for (int i = 0; i < 5; i++) {
+            pool.adjustPoolSize();
+         }
+         assertEquals(2, pool.getPoolSize());
+         assertEquals("utilization", pool.getSizingHistory().get(0).getReason());
+
+         final Connection first = pool.getConnection();
+         Connection second = pool.getConnection();
+         Thread waiter = new Thread() {
+            public void run() {
+               try {
+                  pool.getConnection().close();
+               } catch (Exception e) {
+                  throw new RuntimeException(e);
+               }
+            }
+         };
+         waiter.start();
+         while (waiter.getState() != Thread.State.TIMED_WAITING && waiter.getState() != Thread.State.WAITING) {
+            Thread.sleep(5);
+         }
+         ConnectionPool.SizingDecision decision = pool.adjustPoolSize();
+         assertEquals("wait", decision.getReason());
+         assertEquals(3, pool.getPoolSize());
+         waiter.join(5000);
+         assertTrue(!waiter.isAlive());
+
+         first.close();
+         second.close();
+         assertEquals(0, pool.getActiveConnections());
+         assertTrue(pool.getIdleConnections() <= pool.getPoolSize());
+
+         pool.setAdaptiveSizing(2, 0, 1);
+         assertEquals(8, pool.getPoolSize());
+         pool.dispose();
+      }
+   }
+
+   @Test
+   public void testMetrics() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         StubConnectionPoolDataSource ds = new StubConnectionPoolDataSource();
+         ds.createDelay = 20;
+         ConnectionPool pool = new ConnectionPool(ds, 1, 1, engine);
+         PoolMetrics metrics = pool.getMetrics();
+
+         Connection con = pool.getConnection();
+         Thread.sleep(10);
+         con.close();
+         con = pool.getConnection();
+         try {
+            pool.getConnection();
+            throw new AssertionError("Expected a timeout");
+         } catch (ConnectionPool.TimeoutException e) {
+            // expected
+         }
+         con.close();
+
+         assertEquals(1, metrics.getConnectionsCreated());
+         assertEquals(1, metrics.getTimeouts());
+         assertEquals(3, metrics.getWaitTime().getCount());
+         assertTrue(metrics.getWaitTime().getMaxMillis() >= 1000);
+         assertEquals(2, metrics.getHeldTime().getCount());
+         assertTrue(metrics.getHeldTime().getMaxMillis() >= 10);
+         assertTrue(metrics.getCreationTime().getMeanMillis() >= 20);
+         assertEquals(1, metrics.getIdleConnections());
+         assertEquals(0, metrics.getPendingWaiters());
+
+         ds.valid = false;
+         try {
+            pool.getConnection();
+            throw new AssertionError("Expected invalid connections");
+         } catch (SQLException e) {
+            // expected
+         }
+         assertEquals(3, metrics.getValidationFailures());
+         assertEquals(3, metrics.getConnectionsDestroyed());
+         assertEquals(3, metrics.getConnectionsCreated());
+
+         String name = "jdbchelper:type=ConnectionPool,name=test" + engine;
+         pool.registerMBean(name);
+         assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(name), "Timeouts"));
+         pool.dispose();
+         assertTrue(!ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(name)));
+      }
+   }
+
+   @Test
+   public void testLanesReserveAndBoundPermitsAndServeByPriority() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         final ConnectionPool pool = new ConnectionPool(new StubConnectionPoolDataSource(), 4, 1, engine);
+         pool.addLane("oltp", 1, 0, 10);
+         pool.addLane("reporting", 0, 2, 0);
+         pool.addLane("batch", 0, 3, 5);
+
+         List<Connection> reports = new ArrayList<Connection>();
+         for (int i = 0; i < 2; i++) {
+            reports.add(getConnection(pool, "reporting"));
+         }
+         try {
+            getConnection(pool, "reporting");
+            throw new AssertionError("Expected the reporting lane to be full");
+         } catch (ConnectionPool.TimeoutException e) {
+            // expected
+         }
+         JdbcHelper jdbc = new JdbcHelper(new PooledDataSource(pool));
+         jdbc.setLane("oltp");
+         Connection oltp = jdbc.getConnection();
+         Connection other = pool.getConnection();
+         assertEquals(2, pool.getLaneActiveConnections("reporting"));
+         assertEquals(1, pool.getLaneActiveConnections("oltp"));
+         assertEquals(1, pool.getLaneActiveConnections(PoolLane.DEFAULT_LANE));
+
+         final List<String> served = new ArrayList<String>();
+         Thread low = laneWaiter(pool, PoolLane.DEFAULT_LANE, served);
+         while (pool.getLaneWaiters(PoolLane.DEFAULT_LANE) == 0) {
+            Thread.sleep(5);
+         }
+         Thread high = laneWaiter(pool, "batch", served);
+         while (pool.getLaneWaiters("batch") == 0) {
+            Thread.sleep(5);
+         }
+         other.close();
+         high.join();
+         reports.get(0).close();
+         low.join();
+         assertEquals("[batch, default]", served.toString());
+
+         oltp.close();
+         reports.get(1).close();
+         assertEquals(0, pool.getActiveConnections());
+         assertEquals(0, pool.getLaneActiveConnections("reporting"));
+         pool.dispose();
+      }
+   }
+
+   @Test
+   public void testLanePriorityChangeKeepsQueuedWaitersInOrder() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         final ConnectionPool pool = new ConnectionPool(new StubConnectionPoolDataSource(), 1, 60, engine);
+         pool.addLane("a", 0, 1, 0);
+         pool.addLane("b", 0, 1, 0);
+         Connection con = pool.getConnection();
+
+         final List<String> served = new ArrayList<String>();
+         Thread first = laneWaiter(pool, "a", served);
+         while (pool.getLaneWaiters("a") < 1) {
+            Thread.sleep(5);
+         }
+         Thread second = laneWaiter(pool, "a", served);
+         while (pool.getLaneWaiters("a") < 2) {
+            Thread.sleep(5);
+         }
+         Thread late = new Thread() {
+            public void run() {
+               try {
+                  PoolLane.call("b", new java.util.concurrent.Callable<Connection>() {
+                     public Connection call() throws Exception {
+                        return pool.getConnection(300, TimeUnit.MILLISECONDS);
+                     }
+                  });
+                  throw new AssertionError("Expected a timeout");
+               } catch (ConnectionPool.TimeoutException e) {
+                  // expected
+               } catch (Exception e) {
+                  throw new RuntimeException(e);
+               }
+            }
+         };
+         late.start();
+         while (pool.getLaneWaiters("b") == 0) {
+            Thread.sleep(5);
+         }
+
+         // The waiter of lane b moves ahead of the others, and must still be found when it gives up
+         pool.addLane("b", 0, 1, 10);
+         late.join();
+         assertEquals(0, pool.getLaneWaiters("b"));
+
+         con.close();
+         first.join();
+         second.join();
+         assertEquals("[a, a]", served.toString());
+         assertEquals(0, pool.getLaneActiveConnections("a"));
+         assertEquals(engine + ": a permit leaked to a waiter that timed out", 0, pool.getLaneActiveConnections("b"));
+         getConnection(pool, "b").close();
+         assertEquals(0, pool.getActiveConnections());
+         pool.dispose();
+      }
+   }
+
+   @Test
+   public void testMaxWaitersRejectsAndDeadlineBoundsTheWait() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         final ConnectionPool pool = new ConnectionPool(new StubConnectionPoolDataSource(), 1, 60, engine);
+         pool.setMaxWaiters(1);
+         Connection con = pool.getConnection();
+
+         final List<Connection> waited = new ArrayList<Connection>();
+         Thread waiter = new Thread() {
+            public void run() {
+               try {
+                  waited.add(pool.getConnection(5, TimeUnit.SECONDS));
+               } catch (Exception e) {
+                  throw new RuntimeException(e);
+               }
+            }
+         };
+         waiter.start();
+         while (pool.getPendingWaiters() == 0) {
+            Thread.sleep(5);
+         }
+
+         long start = System.currentTimeMillis();
+         for (int i = 0; i < 2; i++) {
+            try {
+               pool.getConnection(50, TimeUnit.MILLISECONDS);
+               throw new AssertionError("Expected a rejection");
+            } catch (ConnectionPool.RejectedException e) {
+               // expected
+            }
+         }
+         assertTrue(engine + ": rejection took " + (System.currentTimeMillis() - start) + "ms",
+            System.currentTimeMillis() - start < 50);
+
+         con.close();
+         waiter.join();
+         assertEquals(1, waited.size());
+         start = System.currentTimeMillis();
+         try {
+            pool.getConnection(100, TimeUnit.MILLISECONDS);
+            throw new AssertionError("Expected a timeout");
+         } catch (ConnectionPool.TimeoutException e) {
+            // expected
+         }
+         long elapsed = System.currentTimeMillis() - start;
+         assertTrue(engine + ": deadline wait took " + elapsed + "ms", elapsed >= 90 && elapsed < 1000);
+         assertEquals(2, pool.getMetrics().getRejections());
+         assertEquals(1, pool.getMetrics().getTimeouts());
+         assertEquals(0, pool.getPendingWaiters());
+
+         waited.get(0).close();
+         pool.dispose();
+      }
+   }
+
+   @Test
+   public void testMaxWaitersOnlyCountsCallersThatWaitForALane() throws Exception {
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         final ConnectionPool pool = new ConnectionPool(new StubConnectionPoolDataSource(), 3, 60, engine);
+         pool.addLane("a", 0, 1, 0);
+         pool.addLane("b", 0, 2, 0);
+         pool.setMaxWaiters(1);
+         Connection a = getConnection(pool, "a");
+
+         final List<String> served = new ArrayList<String>();
+         Thread waiter = laneWaiter(pool, "a", served);
+         while (pool.getPendingWaiters() == 0) {
+            Thread.sleep(5);
+         }
+
+         // Lane b and the pool both have free permits, so the full wait queue does not matter
+         Connection b = getConnection(pool, "b");
+         try {
+            getConnection(pool, "a");
+            throw new AssertionError("Expected a rejection");
+         } catch (ConnectionPool.RejectedException e) {
+            // expected
+         }
+         assertEquals(engine + ": a rejected caller kept its lane permit", 1, pool.getLaneActiveConnections("a"));
+         assertEquals(1, pool.getMetrics().getRejections());
+
+         a.close();
+         waiter.join();
+         b.close();
+         assertEquals("[a]", served.toString());
+         assertEquals(0, pool.getActiveConnections());
+         assertEquals(0, pool.getPendingWaiters());
+         pool.dispose();
+      }
+   }
+
+   private static Connection getConnection(final ConnectionPool pool, String lane) throws Exception {
+      return PoolLane.call(lane, new java.util.concurrent.Callable<Connection>() {
+         public Connection call() throws Exception {
+            return pool.getConnection();
+         }
+      });
+   }
+
+   private static Thread laneWaiter(final ConnectionPool pool, final String lane, final List<String> served) {
+      Thread t = new Thread() {
+         public void run() {
+            try {
+               Connection con = getConnection(pool, lane);
+               synchronized (served) {
+                  served.add(lane);
+               }
+               con.close();
+            } catch (Exception e) {
+               throw new RuntimeException(e);
+            }
+         }
+      };
+      t.start();
+      return t;
+   }
+}
@@ -0,0 +1,78 @@
+package jdbchelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ConsistentHashShardedDataSourceTest {
+   private static final int KEYS = 100000;
+
+   @Test
+   public void testAddingAShardMovesAboutOneNthOfTheKeys() {
+      ConsistentHashShardedDataSource shards = new ConsistentHashShardedDataSource();
+      for (int i = 0; i < 4; i++) {
+         shards.addShard("shard-" + i, new LoadBalancingDataSource());
+      }
+      int[] before = new int[KEYS];
+      int[] sizes = new int[4];
+      for (int key = 0; key < KEYS; key++) {
+         before[key] = shards.getShard(key);
+         sizes[before[key]]++;
+      }
+      for (int size : sizes) {
+         assertTrue("Unbalanced shard of " + size + " keys", Math.abs(size - KEYS / 4) < KEYS / 4 * 0.2);
+      }
+
+      LoadBalancingDataSource added = new LoadBalancingDataSource();
+      shards.addShard("shard-4", added);
+      int moved = 0;
+      for (int key = 0; key < KEYS; key++) {
+         int shard = shards.getShard(key);
+         if (shard != before[key]) {
+            // A key only ever moves to the new shard
+            assertEquals(4, shard);
+            assertSame(added, shards.getDataSource((long) key));
+            moved++;
+         }
+      }
+      assertTrue("Moved " + moved + " keys", moved > KEYS / 5 * 0.8 && moved < KEYS / 5 * 1.2);
+
+      // Removing the shard gives the keys back to their old shards
+      assertSame(added, shards.removeShard("shard-4"));
+      for (int key = 0; key < KEYS; key++) {
+         assertEquals(before[key], shards.getShard(key));
+      }
+   }
+
+   @Test
+   public void testStringKeysAndShardNumbers() {
+      ConsistentHashShardedDataSource shards = new ConsistentHashShardedDataSource(50);
+      LoadBalancingDataSource first = new LoadBalancingDataSource();
+      LoadBalancingDataSource second = new LoadBalancingDataSource();
+      shards.addShard("first", first);
+      shards.addShard("second", second);
+      assertEquals(2, shards.getShardCount());
+      assertSame(second, shards.getDataSource(1));
+      assertEquals("second", shards.getShardName(1));
+
+      int onFirst = 0;
+      for (int i = 0; i < 1000; i++) {
+         String key = "user" + i;
+         int shard = shards.getShard(key);
+         assertSame(shards.getDataSource(shard), shards.getDataSource(key));
+         if (shard == 0) onFirst++;
+      }
+      assertTrue(onFirst > 300 && onFirst < 700);
+
+      shards.removeShard("first");
+      assertSame(second, shards.getDataSource(0));
+      assertSame(second, shards.getDataSource("user1"));
+      try {
+         shards.addShard("second", first);
+         throw new AssertionError("Expected a duplicate name to be rejected");
+      } catch (IllegalArgumentException e) {
+         // expected
+      }
+   }
+}
@@ -0,0 +1,90 @@
+package jdbchelper;
+
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures what the leak detection of {@link ConnectionPool} costs on the checkout path.
+ * Every thread checks out a connection and returns it immediately, with the leak detection
+ * disabled, tracking checkout times only, sampling one stack in 100 checkouts and capturing
+ * the stack of every checkout.
+ *
+ * <pre>
+ * java jdbchelper.LeakDetectionBenchmark [secondsPerRun] [threads]
+ * </pre>
+ */
+public class LeakDetectionBenchmark {
+   static final String[] MODES = {"disabled", "no stacks", "stack 1/100", "every stack"};
+   static final int[] SAMPLE_RATES = {-1, 0, 100, 1};
+
+   static volatile boolean stopped;
+
+   public static void main(String[] args) throws Exception {
+      int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+      int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         for (int sampleRate : SAMPLE_RATES) {
+            run(engine, sampleRate, threads, 500);
+         }
+      }
+
+      System.out.println(threads + " threads, " + seconds + "s per run");
+      System.out.println(String.format("%-12s %-12s %16s %10s", "engine", "tracking", "checkouts/s", "vs off"));
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         long disabled = 0;
+         for (int i = 0; i < MODES.length; i++) {
+            long rate = run(engine, SAMPLE_RATES[i], threads, seconds * 1000L) / seconds;
+            if (i == 0) disabled = rate;
+            System.out.println(String.format("%-12s %-12s %16d %9.1f%%", engine, MODES[i], rate,
+               disabled == 0 ? 0d : 100d * rate / disabled));
+         }
+      }
+   }
+
+   /**
+    * @param sampleRate the stack sample rate, -1 to disable the leak detection.
+    * @return the number of checkouts.
+    */
+   static long run(ConnectionPool.Engine engine, int sampleRate, int threads, long millis) throws Exception {
+      final ConnectionPool pool = new ConnectionPool(new StubConnectionPoolDataSource(), threads, 60, engine);
+      if (sampleRate >= 0) {
+         pool.setLeakDetection(60000, sampleRate, false);
+      }
+      final AtomicLong checkouts = new AtomicLong();
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(threads);
+      stopped = false;
+
+      for (int i = 0; i < threads; i++) {
+         Thread t = new Thread() {
+            public void run() {
+               long count = 0;
+               try {
+                  start.await();
+                  while (!stopped) {
+                     Connection con = pool.getConnection();
+                     con.close();
+                     count++;
+                  }
+               } catch (Exception e) {
+                  e.printStackTrace();
+               } finally {
+                  checkouts.addAndGet(count);
+                  done.countDown();
+               }
+            }
+         };
+         t.setDaemon(true);
+         t.start();
+      }
+
+      start.countDown();
+      Thread.sleep(millis);
+      stopped = true;
+      done.await();
+      pool.dispose();
+      return checkouts.get();
+   }
+}
@@ -0,0 +1,82 @@
+package jdbchelper;
+
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simulates a {@link LoadBalancingDataSource} in front of heterogeneous backends and compares the
+ * balancing strategies. Two backends answer a query in <code>fastMillis</code>, the third one is five
+ * times slower, and every client thread runs queries back to back.
+ *
+ * <pre>
+ * java jdbchelper.LoadBalancingBenchmark [threads] [queriesPerThread] [fastMillis]
+ * </pre>
+ */
+public class LoadBalancingBenchmark {
+   public static void main(String[] args) throws Exception {
+      int threads = args.length > 0 ? Integer.parseInt(args[0]) : 24;
+      int queries = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+      long fast = args.length > 2 ? Long.parseLong(args[2]) : 2;
+
+      System.out.println(threads + " threads x " + queries + " queries, backends at " + fast + "/" + fast + "/"
+         + (5 * fast) + "ms");
+      System.out.println(String.format("%-22s %10s %10s %10s %10s   %s", "strategy", "millis", "queries/s",
+         "mean ms", "p99 ms", "share fast1/fast2/slow"));
+      for (LoadBalancingDataSource.Strategy strategy : LoadBalancingDataSource.Strategy.values()) {
+         run(strategy, threads, queries / 10, fast, false);
+         run(strategy, threads, queries, fast, true);
+      }
+   }
+
+   static void run(LoadBalancingDataSource.Strategy strategy, int threads, final int queries, long fast,
+                   boolean print) throws Exception {
+      StubConnectionPoolDataSource[] backends = new StubConnectionPoolDataSource[3];
+      LoadBalancingDataSource lbDs = new LoadBalancingDataSource();
+      lbDs.setStrategy(strategy);
+      String[] names = {"fast1", "fast2", "slow"};
+      for (int i = 0; i < backends.length; i++) {
+         backends[i] = new StubConnectionPoolDataSource();
+         backends[i].queryDelay = i == 2 ? 5 * fast : fast;
+         lbDs.addDataSource(names[i], backends[i], 10, 60, ConnectionPool.Engine.CONCURRENT);
+      }
+
+      final LoadBalancingDataSource ds = lbDs;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicInteger failures = new AtomicInteger();
+      final CountDownLatch done = new CountDownLatch(threads);
+      long start = System.nanoTime();
+      for (int t = 0; t < threads; t++) {
+         new Thread() {
+            public void run() {
+               try {
+                  for (int i = 0; i < queries; i++) {
+                     long begin = System.nanoTime();
+                     Connection con = ds.getConnection();
+                     try {
+                        con.prepareStatement("select 1").execute();
+                     } finally {
+                        con.close();
+                     }
+                     latency.record(System.nanoTime() - begin);
+                  }
+               } catch (Exception e) {
+                  failures.incrementAndGet();
+               } finally {
+                  done.countDown();
+               }
+            }
+         }.start();
+      }
+      done.await();
+      long millis = (System.nanoTime() - start) / 1000000;
+
+      if (print) {
+         int total = threads * queries;
+         System.out.println(String.format("%-22s %10d %10d %10.2f %10.2f   %d%%/%d%%/%d%%%s", strategy, millis,
+            total * 1000L / Math.max(1, millis), latency.getMeanMillis(), latency.getPercentileMillis(99),
+            100 * backends[0].executed.get() / total, 100 * backends[1].executed.get() / total,
+            100 * backends[2].executed.get() / total, failures.get() == 0 ? "" : "  failures=" + failures.get()));
+      }
+   }
+}
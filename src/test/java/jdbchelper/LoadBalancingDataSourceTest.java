@@ -3,6 +3,17 @@ package jdbchelper;
 import org.junit.Test;
 import com.mysql.jdbc.jdbc2.optional.MysqlConnectionPoolDataSource;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * User: erdinc
@@ -40,4 +51,363 @@ public class LoadBalancingDataSourceTest {
          assertEquals(1, jdbc.queryForInt("select 1"));
       }
    }
+
+   @Test
+   public void testLeastActiveSpreadsConnections() throws Exception {
+      LoadBalancingDataSource lbDs = new LoadBalancingDataSource();
+      lbDs.setStrategy(LoadBalancingDataSource.Strategy.LEAST_ACTIVE);
+      lbDs.addDataSource("first", new StubConnectionPoolDataSource(), 10);
+      lbDs.addDataSource("second", new StubConnectionPoolDataSource(), 10);
+
+      Connection[] connections = new Connection[4];
+      for (int i = 0; i < connections.length; i++) {
+         connections[i] = lbDs.getConnection();
+      }
+      assertEquals(2, lbDs.getActiveConnections("first"));
+      assertEquals(2, lbDs.getActiveConnections("second"));
+      for (Connection con : connections) {
+         con.close();
+      }
+      assertEquals(0, lbDs.getActiveConnections("first"));
+      assertTrue(lbDs.getResponseTimeMillis("first") >= 0);
+   }
+
+   @Test
+   public void testLatencyAwareStrategiesAvoidSlowBackend() throws Exception {
+      LoadBalancingDataSource.Strategy[] strategies = {
+         LoadBalancingDataSource.Strategy.EWMA_LATENCY, LoadBalancingDataSource.Strategy.POWER_OF_TWO_CHOICES};
+      for (LoadBalancingDataSource.Strategy strategy : strategies) {
+         StubConnectionPoolDataSource fast = new StubConnectionPoolDataSource();
+         StubConnectionPoolDataSource slow = new StubConnectionPoolDataSource();
+         slow.queryDelay = 50;
+         LoadBalancingDataSource lbDs = new LoadBalancingDataSource();
+         lbDs.setStrategy(strategy);
+         lbDs.addDataSource("fast", fast, 10);
+         lbDs.addDataSource("slow", slow, 10);
+
+         JdbcHelper jdbc = new JdbcHelper(lbDs);
+         for (int i = 0; i < 200; i++) {
+            jdbc.execute("update t set x = 1");
+         }
+         // The first response of the fast backend includes loading classes, so the slow one may be tried again
+         assertTrue(strategy + ": " + slow.executed.get() + " queries on the slow backend", slow.executed.get() <= 3);
+         assertTrue(lbDs.getResponseTimeMillis("slow") >= 50);
+         assertEquals(-1.0, lbDs.getResponseTimeMillis("unknown"));
+      }
+   }
+
+   @Test
+   public void testSelectionIsSafeUnderConcurrentMembershipChanges() throws Exception {
+      final LoadBalancingDataSource lbDs = new LoadBalancingDataSource();
+      lbDs.addDataSource("base", new StubConnectionPoolDataSource(), 50, 60, ConnectionPool.Engine.CONCURRENT);
+      final AtomicBoolean stop = new AtomicBoolean();
+      final AtomicInteger requests = new AtomicInteger();
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < 8; t++) {
+         threads.add(new Thread() {
+            public void run() {
+               try {
+                  while (!stop.get()) {
+                     lbDs.getConnection().close();
+                     requests.incrementAndGet();
+                  }
+               } catch (Throwable e) {
+                  failure.compareAndSet(null, e);
+               }
+            }
+         });
+      }
+      threads.add(new Thread() {
+         public void run() {
+            LoadBalancingDataSource.Strategy[] strategies = LoadBalancingDataSource.Strategy.values();
+            try {
+               for (int i = 0; !stop.get(); i++) {
+                  lbDs.setStrategy(strategies[i % strategies.length]);
+                  for (int j = 0; j < 4; j++) {
+                     lbDs.addDataSource("extra" + j, new StubConnectionPoolDataSource(), 10, 60,
+                        ConnectionPool.Engine.CONCURRENT);
+                  }
+                  for (int j = 0; j < 4; j++) {
+                     lbDs.removeDataSource("extra" + j);
+                  }
+               }
+            } catch (Throwable e) {
+               failure.compareAndSet(null, e);
+            }
+         }
+      });
+      for (Thread t : threads) {
+         t.start();
+      }
+      Thread.sleep(1000);
+      stop.set(true);
+      for (Thread t : threads) {
+         t.join();
+      }
+
+      if (failure.get() != null) throw new AssertionError(failure.get());
+      assertTrue(requests.get() > 0);
+      assertEquals(0, lbDs.getActiveConnections("base"));
+   }
+
+   @Test
+   public void testCircuitBreakerOpensBacksOffAndCloses() throws Exception {
+      StubConnectionPoolDataSource failing = new StubConnectionPoolDataSource();
+      StubConnectionPoolDataSource healthy = new StubConnectionPoolDataSource();
+      LoadBalancingDataSource lbDs = new LoadBalancingDataSource();
+      lbDs.setCircuitBreaker(3, 0.5, 100, 10000);
+      lbDs.setBackoff(100, 400);
+      lbDs.setProbeInterval(20);
+      lbDs.addDataSource("failing", failing, 10);
+      lbDs.addDataSource("healthy", healthy, 10);
+      CircuitBreaker breaker = lbDs.getCircuitBreaker("failing");
+
+      failing.down = true;
+      for (int i = 0; i < 20; i++) {
+         try {
+            lbDs.getConnection().close();
+         } catch (SQLException e) {
+            // all tries of this request went to the failing backend
+         }
+      }
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+      assertEquals(1, breaker.getTimesOpened());
+      assertTrue(breaker.getRemainingBackoffMillis() > 0);
+      for (int i = 0; i < 20; i++) {
+         lbDs.getConnection().close();
+      }
+
+      // The trials fail while the backend is down, each one doubling the backoff
+      Thread.sleep(400);
+      assertTrue(breaker.getTimesOpened() >= 2);
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+      failing.down = false;
+      long deadline = System.currentTimeMillis() + 2000;
+      while (breaker.getState() != CircuitBreaker.State.CLOSED && System.currentTimeMillis() < deadline) {
+         Thread.sleep(10);
+      }
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+      assertEquals(0, breaker.getConsecutiveFailures());
+      lbDs.setStrategy(LoadBalancingDataSource.Strategy.LEAST_ACTIVE);
+      Connection first = lbDs.getConnection();
+      Connection second = lbDs.getConnection();
+      assertEquals(1, lbDs.getActiveConnections("failing"));
+      first.close();
+      second.close();
+   }
+
+   @Test
+   public void testCircuitBreakerOpensOnFailureRate() {
+      CircuitBreaker.Settings settings = new CircuitBreaker.Settings(100, 0.5, 10, 10000, 1000, 1000);
+      CircuitBreaker breaker = new CircuitBreaker();
+      for (int i = 0; i < 4; i++) {
+         breaker.recordSuccess();
+         assertTrue(!breaker.recordFailure(settings));
+      }
+      breaker.recordSuccess();
+      assertTrue(breaker.recordFailure(settings));
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+      assertEquals(0.5, breaker.getFailureRate());
+
+      assertTrue(!breaker.tryStartTrial(System.nanoTime()));
+      assertTrue(breaker.tryStartTrial(System.nanoTime() + 1000000000L));
+      assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+      breaker.trialSucceeded();
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+      assertEquals(0.0, breaker.getFailureRate());
+   }
+
+   @Test
+   public void testLaggingReplicasAreAvoided() throws Exception {
+      StubConnectionPoolDataSource current = new StubConnectionPoolDataSource();
+      StubConnectionPoolDataSource lagging = new StubConnectionPoolDataSource();
+      current.replicationLag = 10;
+      lagging.replicationLag = 5000;
+      final LoadBalancingDataSource lbDs = new LoadBalancingDataSource();
+      lbDs.setStrategy(LoadBalancingDataSource.Strategy.LEAST_ACTIVE);
+      lbDs.addDataSource("current", current, 10);
+      lbDs.addDataSource("lagging", lagging, 10);
+      lbDs.setLagProbe(new HeartbeatLagProbe("select lag_ms from heartbeat"), 1000, 60000);
+      long deadline = System.currentTimeMillis() + 2000;
+      while (lbDs.getReplicationLagMillis("lagging") < 0 && System.currentTimeMillis() < deadline) {
+         Thread.sleep(5);
+      }
+      assertEquals(10, lbDs.getReplicationLagMillis("current"));
+      assertEquals(5000, lbDs.getReplicationLagMillis("lagging"));
+
+      List<Connection> connections = new ArrayList<Connection>();
+      for (int i = 0; i < 4; i++) {
+         connections.add(lbDs.getConnection());
+      }
+      assertEquals(4, lbDs.getActiveConnections("current"));
+      connections.add(lbDs.getConnection(10000));
+      assertEquals(1, lbDs.getActiveConnections("lagging"));
+      try {
+         LoadBalancingDataSource.withMaxLag(5, new java.util.concurrent.Callable<Connection>() {
+            public Connection call() throws Exception {
+               return lbDs.getConnection();
+            }
+         });
+         throw new AssertionError("Expected no backend to be fresh enough");
+      } catch (SQLException e) {
+         // expected
+      }
+
+      // When every backend is stale, they are all used
+      current.replicationLag = 2000;
+      lbDs.sampleReplicationLag();
+      connections.add(lbDs.getConnection());
+      assertEquals(6, lbDs.getActiveConnections("current") + lbDs.getActiveConnections("lagging"));
+      assertEquals(2, lbDs.getActiveConnections("lagging"));
+      for (Connection con : connections) {
+         con.close();
+      }
+   }
+
+   @Test
+   public void testBusyReplicaKeepsItsLagSample() throws Exception {
+      StubConnectionPoolDataSource replica = new StubConnectionPoolDataSource();
+      replica.replicationLag = 10;
+      LoadBalancingDataSource lbDs = new LoadBalancingDataSource();
+      lbDs.addDataSource("replica", replica, 1);
+      lbDs.setLagProbeTimeout(20);
+      final AtomicBoolean probeFails = new AtomicBoolean();
+      final LagProbe heartbeat = new HeartbeatLagProbe("select lag_ms from heartbeat");
+      lbDs.setLagProbe(new LagProbe() {
+         public long getLagMillis(Connection con) throws SQLException {
+            if (probeFails.get()) throw new SQLException("Simulated probe failure");
+            return heartbeat.getLagMillis(con);
+         }
+      }, 1000, 60000);
+      long deadline = System.currentTimeMillis() + 2000;
+      while (lbDs.getReplicationLagMillis("replica") < 0 && System.currentTimeMillis() < deadline) {
+         Thread.sleep(5);
+      }
+      assertEquals(10, lbDs.getReplicationLagMillis("replica"));
+
+      Connection con = lbDs.getConnection();
+      replica.replicationLag = 20;
+      lbDs.sampleReplicationLag();
+      assertEquals(10, lbDs.getReplicationLagMillis("replica"));
+      con.close();
+      lbDs.sampleReplicationLag();
+      assertEquals(20, lbDs.getReplicationLagMillis("replica"));
+
+      probeFails.set(true);
+      lbDs.sampleReplicationLag();
+      assertEquals(Long.MAX_VALUE, lbDs.getReplicationLagMillis("replica"));
+   }
+
+   @Test
+   public void testHedgedReadsCutTheTail() throws Exception {
+      StubConnectionPoolDataSource steady = new StubConnectionPoolDataSource();
+      StubConnectionPoolDataSource stalling = new StubConnectionPoolDataSource();
+      steady.queryDelay = 1;
+      stalling.queryDelay = 1;
+      stalling.slowQueryEvery = 10;
+      stalling.slowQueryDelay = 500;
+      steady.queryResult = 7;
+      stalling.queryResult = 7;
+      LoadBalancingDataSource lbDs = new LoadBalancingDataSource();
+      lbDs.addDataSource("steady", steady, 10);
+      lbDs.addDataSource("stalling", stalling, 10);
+
+      JdbcHelper jdbc = new JdbcHelper(lbDs);
+      jdbc.setHedgedReads(80, 0.5);
+      for (int i = 0; i < 200; i++) {
+         assertEquals(7, jdbc.queryForInt("select 7"));
+      }
+      assertTrue(jdbc.getHedgeDelayMillis() >= 0);
+
+      long slowest = 0;
+      for (int i = 0; i < 200; i++) {
+         long start = System.nanoTime();
+         assertEquals(7, jdbc.queryForInt("select ?", 7));
+         slowest = Math.max(slowest, System.nanoTime() - start);
+      }
+      assertTrue(jdbc.getHedgesFired() > 0);
+      assertTrue(jdbc.getHedgesWon() > 0);
+      assertTrue(stalling.cancelled.get() > 0);
+      assertTrue(jdbc.getHedgesFired() <= 400 * 0.5 + HedgedReads.BURST);
+      assertTrue("Slowest read took " + slowest / 1000000 + "ms", slowest < 250 * 1000000L);
+
+      // Lists are never hedged, so a stalled read is waited for
+      long fired = jdbc.getHedgesFired();
+      for (int i = 0; i < 20; i++) {
+         assertEquals(1, jdbc.queryForList("select 7", new BeanCreator<Integer>() {
+            public Integer createBean(java.sql.ResultSet rs) throws SQLException {
+               return rs.getInt(1);
+            }
+         }).size());
+      }
+      assertEquals(fired, jdbc.getHedgesFired());
+      jdbc.setHedgedReads(0, 0);
+   }
+
+   @Test
+   public void testWeightsAndSlowStartShapeTheShares() throws Exception {
+      LoadBalancingDataSource lbDs = new LoadBalancingDataSource();
+      lbDs.addDataSource("heavy", new StubConnectionPoolDataSource(), 10, 60, ConnectionPool.Engine.MONITOR, 3);
+      lbDs.addDataSource("light", new StubConnectionPoolDataSource(), 10);
+      assertEquals(3, lbDs.getWeight("heavy"));
+
+      Map<String, Integer> shares = shares(lbDs, 2000);
+      assertTrue("" + shares, shares.get("heavy") > 1300 && shares.get("heavy") < 1700);
+
+      // A weight change takes effect right away
+      lbDs.setWeight("light", 0);
+      assertEquals(null, shares(lbDs, 200).get("light"));
+      lbDs.setWeight("light", 1);
+
+      // A new backend ramps up from a tenth of its weight
+      lbDs.setSlowStart(60000);
+      lbDs.addDataSource("cold", new StubConnectionPoolDataSource(), 10, 60, ConnectionPool.Engine.MONITOR, 4);
+      assertTrue(lbDs.getEffectiveWeight("cold") < 0.5);
+      Integer cold = shares(lbDs, 2000).get("cold");
+      assertTrue("" + cold, cold != null && cold < 300);
+      lbDs.setSlowStart(50);
+      Thread.sleep(60);
+      assertEquals(4.0, lbDs.getEffectiveWeight("cold"));
+
+      // So does a backend that recovers from an open circuit breaker
+      lbDs.setSlowStart(60000);
+      lbDs.setCircuitBreaker(1, 1, 100, 10000);
+      lbDs.setBackoff(1, 1);
+      StubConnectionPoolDataSource flaky = new StubConnectionPoolDataSource();
+      lbDs.addDataSource("flaky", flaky, 10, 60, ConnectionPool.Engine.MONITOR, 1);
+      lbDs.setSlowStart(0);
+      assertEquals(1.0, lbDs.getEffectiveWeight("flaky"));
+      lbDs.setSlowStart(60000);
+      flaky.down = true;
+      for (int i = 0; i < 50 && lbDs.getCircuitBreaker("flaky").getState() == CircuitBreaker.State.CLOSED; i++) {
+         try {
+            lbDs.getConnection().close();
+         } catch (SQLException e) {
+            // all tries went to the flaky backend
+         }
+      }
+      assertEquals(CircuitBreaker.State.OPEN, lbDs.getCircuitBreaker("flaky").getState());
+      flaky.down = false;
+      Thread.sleep(5);
+      lbDs.probeOpenBackends();
+      assertEquals(CircuitBreaker.State.CLOSED, lbDs.getCircuitBreaker("flaky").getState());
+      assertTrue(lbDs.getEffectiveWeight("flaky") < 0.2);
+   }
+
+   private static Map<String, Integer> shares(LoadBalancingDataSource lbDs, int requests) throws SQLException {
+      final Map<String, Integer> shares = new HashMap<String, Integer>();
+      LoadBalancingDataSource.BackendListener counter = new LoadBalancingDataSource.BackendListener() {
+         public void selected(LoadBalancingDataSource.Pool backend) {
+            Integer n = shares.get(backend.name);
+            shares.put(backend.name, n == null ? 1 : n + 1);
+         }
+      };
+      for (int i = 0; i < requests; i++) {
+         lbDs.getConnection(-1, null, counter).close();
+      }
+      return shares;
+   }
 }
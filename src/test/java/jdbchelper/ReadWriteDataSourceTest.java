@@ -0,0 +1,83 @@
+package jdbchelper;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+import java.sql.Connection;
+
+/**
+ * Tests the routing of JdbcHelper calls between a primary and its replicas.
+ */
+public class ReadWriteDataSourceTest {
+   private final StubConnectionPoolDataSource primary = new StubConnectionPoolDataSource();
+   private final StubConnectionPoolDataSource replica = new StubConnectionPoolDataSource();
+
+   private ReadWriteDataSource newDataSource() {
+      primary.queryResult = 1;
+      replica.queryResult = 2;
+      LoadBalancingDataSource replicas = new LoadBalancingDataSource();
+      replicas.addDataSource("replica", replica, 10);
+      return new ReadWriteDataSource(new PooledDataSource(new ConnectionPool(primary, 10)), replicas);
+   }
+
+   @Test
+   public void testReadsGoToReplicasAndWritesToPrimary() throws Exception {
+      JdbcHelper jdbc = new JdbcHelper(newDataSource());
+      assertEquals(2, jdbc.queryForInt("select x from t"));
+      QueryResult result = jdbc.query("select x from t");
+      result.next();
+      assertEquals(2, result.getInt(1));
+      result.close();
+      jdbc.execute("update t set x = 1");
+      jdbc.run("create table u (x int)");
+      jdbc.executeBatch("insert into t values (1)", new BatchFeeder() {
+         boolean fed;
+
+         public boolean hasNext() {
+            return !fed;
+         }
+
+         public boolean feedStatement(java.sql.PreparedStatement stmt) {
+            fed = true;
+            return true;
+         }
+      });
+      assertEquals(2, replica.executed.get());
+      assertEquals(3, primary.executed.get());
+
+      jdbc.beginTransaction();
+      assertEquals(1, jdbc.queryForInt("select x from t"));
+      jdbc.execute("update t set x = 2");
+      jdbc.commitTransaction();
+      assertEquals(2, replica.executed.get());
+      assertEquals(5, primary.executed.get());
+   }
+
+   @Test
+   public void testReadsStickToPrimaryAfterWrite() throws Exception {
+      ReadWriteDataSource ds = newDataSource();
+      ds.setStickiness(200);
+      JdbcHelper jdbc = new JdbcHelper(ds);
+      assertEquals(2, jdbc.queryForInt("select x from t"));
+      jdbc.execute("update t set x = 1");
+      assertEquals(1, jdbc.queryForInt("select x from t"));
+
+      final int[] read = new int[1];
+      final JdbcHelper other = jdbc;
+      Thread t = new Thread() {
+         public void run() {
+            read[0] = other.queryForInt("select x from t");
+         }
+      };
+      t.start();
+      t.join();
+      assertEquals("another thread reads from the replica", 2, read[0]);
+
+      Thread.sleep(250);
+      assertEquals(2, jdbc.queryForInt("select x from t"));
+
+      Connection con = ds.getConnection();
+      assertEquals(1, jdbc.queryForInt("select x from t"));
+      con.close();
+   }
+}
@@ -0,0 +1,122 @@
+package jdbchelper;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Shows how the {@link ConnectionPool.ReuseOrder} affects the number of open connections and the checkout
+ * latency when the load follows a sine wave. Each worker checks out a connection, holds it for a short
+ * simulated query and returns it. Idle connections are closed after one second, so a reuse order that
+ * concentrates the work on a few connections lets the pool shrink during the quiet phases.
+ *
+ * <pre>
+ * java jdbchelper.ReuseOrderBenchmark [periodSeconds] [periods]
+ * </pre>
+ */
+public class ReuseOrderBenchmark {
+   static final int MAX_WORKERS = 32;
+
+   static volatile boolean stopped;
+   static volatile int load;
+
+   public static void main(String[] args) throws Exception {
+      int periodSeconds = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+      int periods = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+      System.out.println("sine load between 1 and " + MAX_WORKERS + " workers, period " + periodSeconds + "s");
+      System.out.println(String.format("%-12s %-14s %10s %10s %10s %10s %10s", "engine", "order",
+         "avg open", "min open", "opened", "avg us", "p99 us"));
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         for (ConnectionPool.ReuseOrder order : ConnectionPool.ReuseOrder.values()) {
+            run(engine, order, periodSeconds * 1000L, periods);
+         }
+      }
+   }
+
+   static void run(ConnectionPool.Engine engine, ConnectionPool.ReuseOrder order, final long period, int periods)
+      throws Exception {
+      StubConnectionPoolDataSource ds = new StubConnectionPoolDataSource();
+      ds.createDelay = 5;
+      final ConnectionPool pool = new ConnectionPool(ds, MAX_WORKERS, 60, engine);
+      pool.setReuseOrder(order);
+      pool.setIdleTimeout(1000);
+      pool.setMaintenanceInterval(100);
+
+      stopped = false;
+      load = 1;
+      final List<long[]> latencies = new ArrayList<long[]>();
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int i = 0; i < MAX_WORKERS; i++) {
+         final int worker = i;
+         final long[] samples = new long[200000];
+         latencies.add(samples);
+         Thread t = new Thread() {
+            public void run() {
+               int n = 0;
+               try {
+                  while (!stopped) {
+                     if (worker >= load) {
+                        Thread.sleep(5);
+                        continue;
+                     }
+                     long t0 = System.nanoTime();
+                     Connection con = pool.getConnection();
+                     if (n < samples.length) samples[n++] = System.nanoTime() - t0;
+                     Thread.sleep(2);
+                     con.close();
+                  }
+               } catch (Exception e) {
+                  e.printStackTrace();
+               }
+            }
+         };
+         t.setDaemon(true);
+         t.start();
+         workers.add(t);
+      }
+
+      long start = System.currentTimeMillis();
+      long end = start + period * periods;
+      long openSum = 0;
+      int openMin = Integer.MAX_VALUE;
+      int ticks = 0;
+      while (System.currentTimeMillis() < end) {
+         double phase = 2 * Math.PI * (System.currentTimeMillis() - start) / period;
+         load = 1 + (int) Math.round((MAX_WORKERS - 1) * (0.5 - 0.5 * Math.cos(phase)));
+         Thread.sleep(50);
+         int open = pool.getActiveConnections() + pool.getIdleConnections();
+         openSum += open;
+         openMin = Math.min(openMin, open);
+         ticks++;
+      }
+      stopped = true;
+      for (Thread t : workers) {
+         t.join();
+      }
+      pool.dispose();
+
+      int count = 0;
+      for (long[] samples : latencies) {
+         for (long l : samples) {
+            if (l != 0) count++;
+         }
+      }
+      long[] all = new long[count];
+      int k = 0;
+      long total = 0;
+      for (long[] samples : latencies) {
+         for (long l : samples) {
+            if (l != 0) {
+               all[k++] = l;
+               total += l;
+            }
+         }
+      }
+      Arrays.sort(all);
+      System.out.println(String.format("%-12s %-14s %10.1f %10d %10d %10.1f %10.1f", engine, order,
+         (double) openSum / ticks, openMin, ds.created.get(),
+         count == 0 ? 0d : total / 1000d / count, count == 0 ? 0d : all[(int) (count * 0.99)] / 1000d));
+   }
+}
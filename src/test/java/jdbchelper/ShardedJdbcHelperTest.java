@@ -0,0 +1,277 @@
+package jdbchelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+
+public class ShardedJdbcHelperTest {
+   private static ConsistentHashShardedDataSource shards(int count) {
+      ConsistentHashShardedDataSource shards = new ConsistentHashShardedDataSource();
+      for (int i = 0; i < count; i++) {
+         StubConnectionPoolDataSource stub = new StubConnectionPoolDataSource();
+         stub.queryResult = i;
+         LoadBalancingDataSource lbDs = new LoadBalancingDataSource();
+         lbDs.addDataSource("replica", stub, 10);
+         shards.addShard("shard-" + i, lbDs);
+      }
+      return shards;
+   }
+
+   @Test
+   public void testStatementsRunOnTheShardOfTheKey() {
+      ConsistentHashShardedDataSource shards = shards(3);
+      ShardedJdbcHelper jdbc = new ShardedJdbcHelper(shards);
+      for (long key = 0; key < 100; key++) {
+         assertEquals(shards.getShard(key), jdbc.queryForInt(key, "select shard"));
+         assertEquals(shards.getShard("user" + key), jdbc.getJdbcHelper("user" + key).queryForInt("select shard"));
+      }
+      assertSame(jdbc.getJdbcHelper(1L), jdbc.getJdbcHelper(1L));
+      assertSame(jdbc.getShardJdbcHelper(shards.getShard(1L)), jdbc.getJdbcHelper(1L));
+      for (int shardNo : new int[]{-1, 3}) {
+         try {
+            jdbc.getShardJdbcHelper(shardNo);
+            throw new AssertionError("Expected shard " + shardNo + " to be rejected");
+         } catch (IllegalArgumentException e) {
+            // expected
+         }
+      }
+
+      ShardedJdbcHelper modulo = new ShardedJdbcHelper(new ArrayShardedDataSource(
+         shards.getDataSource(0), shards.getDataSource(1), shards.getDataSource(2)));
+      assertEquals(2, modulo.queryForInt(5L, "select shard"));
+      assertEquals(1, modulo.queryForInt(-5L, "select shard"));
+   }
+
+   @Test
+   public void testTransactionsAreScopedPerShard() {
+      ConsistentHashShardedDataSource shards = shards(2);
+      ShardedJdbcHelper jdbc = new ShardedJdbcHelper(shards);
+      long first = 0;
+      long second = 1;
+      while (shards.getShard(second) == shards.getShard(first)) {
+         second++;
+      }
+      long sameShard = second + 1;
+      while (shards.getShard(sameShard) != shards.getShard(first)) {
+         sameShard++;
+      }
+
+      jdbc.beginTransaction(first);
+      assertTrue(jdbc.isInTransaction(first));
+      assertTrue(jdbc.isInTransaction(sameShard));
+      assertFalse(jdbc.isInTransaction(second));
+      jdbc.commitTransaction(first);
+      assertFalse(jdbc.isInTransaction(first));
+
+      final long other = second;
+      int value = jdbc.inTransaction(first, new TransactionCallback<Integer>() {
+         public Integer doInTransaction(JdbcHelper shard) {
+            assertTrue(shard.isInTransaction());
+            return shard.queryForInt("select shard");
+         }
+      });
+      assertEquals(shards.getShard(first), value);
+      assertFalse(jdbc.isInTransaction(other));
+
+      LoadBalancingDataSource removed = shards.removeShard(shards.getShardName(shards.getShard(second)));
+      JdbcHelper remaining = jdbc.getJdbcHelper(second);
+      assertNotSame(removed, remaining.dataSource);
+      jdbc.evictRemovedShards();
+      assertSame(remaining, jdbc.getJdbcHelper(second));
+   }
+
+   private static final BeanCreator<Integer> INT = new BeanCreator<Integer>() {
+      public Integer createBean(java.sql.ResultSet rs) throws java.sql.SQLException {
+         return rs.getInt(1);
+      }
+   };
+
+   private static ArrayShardedDataSource shards(StubConnectionPoolDataSource... stubs) {
+      LoadBalancingDataSource[] dataSources = new LoadBalancingDataSource[stubs.length];
+      for (int i = 0; i < stubs.length; i++) {
+         dataSources[i] = new LoadBalancingDataSource();
+         dataSources[i].addDataSource("replica", stubs[i], 10);
+      }
+      return new ArrayShardedDataSource(dataSources);
+   }
+
+   private static StubConnectionPoolDataSource stub(long queryDelay, Object... rows) {
+      StubConnectionPoolDataSource stub = new StubConnectionPoolDataSource();
+      stub.queryDelay = queryDelay;
+      stub.queryResult = rows;
+      return stub;
+   }
+
+   private static CountDownLatch gate(int count, StubConnectionPoolDataSource... stubs) {
+      CountDownLatch gate = new CountDownLatch(count);
+      for (StubConnectionPoolDataSource stub : stubs) {
+         stub.executeGate = gate;
+      }
+      return gate;
+   }
+
+   @Test
+   public void testScatterRunsShardsInParallelAndMerges() {
+      StubConnectionPoolDataSource[] stubs = {stub(0, 0, 3, 6), stub(0, 1, 4, 7), stub(0, 2, 5, 8)};
+      // No shard answers before every shard has received the query
+      gate(stubs.length, stubs);
+      ShardedJdbcHelper jdbc = new ShardedJdbcHelper(shards(stubs));
+      List<Integer> merged = jdbc.scatterSorted(new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            return a.compareTo(b);
+         }
+      }, "select n from t order by n", INT).toList();
+      assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8), merged);
+
+      List<Integer> subset = jdbc.scatter(new int[]{0, 2}, "select n from t", INT).toList();
+      Collections.sort(subset);
+      assertEquals(Arrays.asList(0, 2, 3, 5, 6, 8), subset);
+   }
+
+   @Test
+   public void testUnorderedScatterStreamsTheFastShardsFirst() {
+      StubConnectionPoolDataSource slow = stub(0, 1);
+      // The slow shard answers only once the row of the fast shard has been read
+      CountDownLatch gate = gate(2, slow);
+      ShardedJdbcHelper jdbc = new ShardedJdbcHelper(shards(slow, stub(0, 2)));
+      Iterator<Integer> rows = jdbc.scatter("select n from t", INT).iterator();
+      assertEquals(2, (int) rows.next());
+      gate.countDown();
+      assertEquals(1, (int) rows.next());
+      assertFalse(rows.hasNext());
+   }
+
+   @Test
+   public void testScatterTimeoutAndFailurePolicies() {
+      StubConnectionPoolDataSource down = stub(0, 3);
+      down.down = true;
+      // The slow shard answers only after the scatter query has given up on it
+      StubConnectionPoolDataSource slow = stub(0, 2);
+      CountDownLatch gate = gate(2, slow);
+      ShardedJdbcHelper jdbc = new ShardedJdbcHelper(shards(stub(0, 1), slow, down));
+      jdbc.setScatterGather(4, 100, ShardedJdbcHelper.PartialResults.SKIP_FAILED_SHARDS);
+      ShardResults<Integer> results = jdbc.scatter("select n from t", INT);
+      assertEquals(Arrays.asList(1), results.toList());
+      gate.countDown();
+      assertTrue(results.isPartial());
+      assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), results.getFailedShards().keySet());
+      assertTrue(results.getFailedShards().get(1) instanceof TimeoutException);
+      assertTrue(results.getFailedShards().get(2) instanceof JdbcException);
+
+      jdbc.setScatterGather(4, 100, ShardedJdbcHelper.PartialResults.FAIL);
+      gate = gate(2, slow);
+      try {
+         jdbc.scatter(new int[]{0, 1}, "select n from t", INT).toList();
+         throw new AssertionError("Expected the slow shard to fail the query");
+      } catch (JdbcException e) {
+         assertTrue(e.getMessage(), e.getMessage().startsWith("Timed out waiting for shards [1]"));
+      } finally {
+         gate.countDown();
+      }
+      try {
+         jdbc.scatter(new int[]{0, 2}, "select n from t", INT).toList();
+         throw new AssertionError("Expected the failing shard to fail the query");
+      } catch (JdbcException e) {
+         // expected
+      }
+   }
+
+   @Test
+   public void testAggregatesCombineThePartialsOfTheShards() {
+      ShardedJdbcHelper jdbc = new ShardedJdbcHelper(shards(stub(0, 5), stub(0, 7), stub(0, 11)));
+      assertEquals(23, jdbc.scatterCount("select count(*) from t"));
+      assertEquals(new BigDecimal("23"), jdbc.scatterSum("select sum(n) from t"));
+      assertEquals(5, (int) jdbc.scatterMin("select min(n) from t", INT));
+      assertEquals(11, (int) jdbc.scatterMax("select max(n) from t", INT));
+
+      ShardedJdbcHelper empty = new ShardedJdbcHelper(shards(stub(0), stub(0)));
+      assertEquals(null, empty.scatterSum("select sum(n) from t"));
+      assertEquals(null, empty.scatterMax("select max(n) from t", INT));
+
+      StubConnectionPoolDataSource[] stubs = {stub(0, 9, 3, 0), stub(0, 8, 7, 4, 1), stub(0, 6, 5, 2)};
+      ShardedJdbcHelper top = new ShardedJdbcHelper(shards(stubs));
+      List<Integer> largest = top.scatterTop(4, Collections.<Integer>reverseOrder(),
+         "select n from t order by n desc limit 4", INT);
+      assertEquals(Arrays.asList(9, 8, 7, 6), largest);
+      assertEquals(Arrays.asList(9), top.scatterTop(1, Collections.<Integer>reverseOrder(),
+         "select n from t order by n desc limit 1", INT));
+      assertEquals(Arrays.asList(9, 8, 7, 6, 5, 4, 3, 2, 1, 0), top.scatterTop(20, Collections.<Integer>reverseOrder(),
+         "select n from t order by n desc limit 20", INT));
+
+      StubConnectionPoolDataSource down = stub(0, 1);
+      down.down = true;
+      ShardedJdbcHelper failing = new ShardedJdbcHelper(shards(stub(0, 1), down));
+      failing.setScatterGather(4, 0, ShardedJdbcHelper.PartialResults.SKIP_FAILED_SHARDS);
+      try {
+         failing.scatterCount("select count(*) from t");
+         throw new AssertionError("Expected a failing shard to fail the count");
+      } catch (JdbcException e) {
+         // expected
+      }
+   }
+
+   @Test
+   public void testBatchIsSplitByShardAndCountsKeepTheInputOrder() {
+      StubConnectionPoolDataSource[] stubs = {stub(0), stub(0), stub(0)};
+      for (int i = 0; i < stubs.length; i++) {
+         stubs[i].batchUpdateCount = i + 1;
+      }
+      // No shard finishes its first batch before every shard has started one
+      gate(stubs.length, stubs);
+      ShardedJdbcHelper jdbc = new ShardedJdbcHelper(shards(stubs));
+      List<Long> ids = new ArrayList<Long>();
+      for (long id = 0; id < 1000; id++) {
+         ids.add(id);
+      }
+
+      int[] counts = jdbc.executeBatch("insert into t (id) values (?)", ids.iterator(), new ShardKeyExtractor<Long>() {
+         public long getShardKey(Long id) {
+            return id;
+         }
+      }, new StatementMapper<Long>() {
+         public void mapStatement(java.sql.PreparedStatement stmt, Long id) throws java.sql.SQLException {
+            stmt.setLong(1, id);
+         }
+      }, 100);
+
+      assertEquals(1000, counts.length);
+      for (int i = 0; i < counts.length; i++) {
+         assertEquals(i % 3 + 1, counts[i]);
+      }
+      for (StubConnectionPoolDataSource stub : stubs) {
+         assertEquals(334, stub.batched.get(), 1);
+         assertEquals(4, stub.executed.get());
+      }
+
+      StubConnectionPoolDataSource down = stub(0);
+      down.down = true;
+      ShardedJdbcHelper failing = new ShardedJdbcHelper(shards(stub(0), down));
+      try {
+         failing.executeBatch("insert into t (id) values (?)", ids.iterator(), new ShardKeyExtractor<Long>() {
+            public long getShardKey(Long id) {
+               return id;
+            }
+         }, new StatementMapper<Long>() {
+            public void mapStatement(java.sql.PreparedStatement stmt, Long id) {
+            }
+         });
+         throw new AssertionError("Expected the failing shard to fail the batch");
+      } catch (JdbcException e) {
+         // expected
+      }
+   }
+}
@@ -0,0 +1,333 @@
+package jdbchelper;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEventListener;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory ConnectionPoolDataSource for exercising the pool classes without a database server.
+ * Creating and validating connections and executing statements can be slowed down to simulate a remote server.
+ */
+class StubConnectionPoolDataSource implements ConnectionPoolDataSource {
+   volatile long createDelay;
+   volatile long validateDelay;
+   volatile long queryDelay;
+   volatile int slowQueryEvery;   // every slowQueryEvery-th statement takes slowQueryDelay instead, 0 for never
+   volatile long slowQueryDelay;
+   volatile Object queryResult;   // the value of the single row every query returns, one row per element of an Object[], no rows if null
+   volatile long replicationLag;   // returned by queries on a heartbeat table
+   volatile int batchUpdateCount = 1;   // the update count of every statement of a batch
+   volatile boolean valid = true;
+   volatile boolean down;
+   volatile CountDownLatch executeGate;   // every statement counts it down, then waits for it to open
+
+   final AtomicInteger created = new AtomicInteger();
+   final AtomicInteger closed = new AtomicInteger();
+   final AtomicInteger validations = new AtomicInteger();
+   final AtomicInteger creating = new AtomicInteger();
+   final AtomicInteger maxCreating = new AtomicInteger();
+   final AtomicInteger prepared = new AtomicInteger();
+   final AtomicInteger statementsClosed = new AtomicInteger();
+   final AtomicInteger executed = new AtomicInteger();
+   final AtomicInteger cancelled = new AtomicInteger();
+   final AtomicInteger batched = new AtomicInteger();
+   final AtomicInteger commits = new AtomicInteger();
+   final AtomicInteger rollbacks = new AtomicInteger();
+   volatile StubPooledConnection lastCreated;
+
+   public PooledConnection getPooledConnection() throws SQLException {
+      if (down) throw new SQLException("Simulated outage");
+      int n = creating.incrementAndGet();
+      while (n > maxCreating.get()) {
+         if (maxCreating.compareAndSet(maxCreating.get(), n)) break;
+      }
+      try {
+         pause(createDelay);
+      } finally {
+         creating.decrementAndGet();
+      }
+      created.incrementAndGet();
+      lastCreated = new StubPooledConnection();
+      return lastCreated;
+   }
+
+   public PooledConnection getPooledConnection(String user, String password) throws SQLException {
+      return getPooledConnection();
+   }
+
+   static void pause(long millis) {
+      if (millis <= 0) return;
+      try {
+         Thread.sleep(millis);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   static Object defaultValue(Class<?> type) {
+      if (type == boolean.class) return false;
+      if (type == int.class) return 0;
+      if (type == long.class) return 0L;
+      if (type == double.class) return 0d;
+      if (type == float.class) return 0f;
+      if (type == short.class) return (short) 0;
+      if (type == byte.class) return (byte) 0;
+      return null;
+   }
+
+   class StubPooledConnection implements PooledConnection {
+      final List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<ConnectionEventListener>();
+      volatile boolean physicalClosed;
+
+      public Connection getConnection() throws SQLException {
+         if (physicalClosed) throw new SQLException("Physical connection is closed");
+         return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[]{Connection.class}, new LogicalConnection(this));
+      }
+
+      public void close() throws SQLException {
+         if (!physicalClosed) {
+            physicalClosed = true;
+            closed.incrementAndGet();
+         }
+      }
+
+      /**
+       * Simulates a fatal driver error on this connection.
+       */
+      void fail() {
+         ConnectionEvent event = new ConnectionEvent(this, new SQLException("Simulated failure"));
+         for (ConnectionEventListener l : listeners) {
+            l.connectionErrorOccurred(event);
+         }
+      }
+
+      void fireClosed() {
+         ConnectionEvent event = new ConnectionEvent(this);
+         for (ConnectionEventListener l : listeners) {
+            l.connectionClosed(event);
+         }
+      }
+
+      public void addConnectionEventListener(ConnectionEventListener listener) {
+         listeners.add(listener);
+      }
+
+      public void removeConnectionEventListener(ConnectionEventListener listener) {
+         listeners.remove(listener);
+      }
+
+      public void addStatementEventListener(StatementEventListener listener) {
+      }
+
+      public void removeStatementEventListener(StatementEventListener listener) {
+      }
+   }
+
+   class LogicalConnection implements InvocationHandler {
+      final StubPooledConnection pooledConnection;
+      boolean closed;
+
+      LogicalConnection(StubPooledConnection pooledConnection) {
+         this.pooledConnection = pooledConnection;
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+         String name = method.getName();
+         if (name.equals("close")) {
+            if (!closed) {
+               closed = true;
+               pooledConnection.fireClosed();
+            }
+            return null;
+         } else if (name.equals("isClosed")) {
+            return closed;
+         } else if (name.equals("isValid")) {
+            validations.incrementAndGet();
+            pause(validateDelay);
+            return valid && !pooledConnection.physicalClosed;
+         } else if (name.equals("getAutoCommit")) {
+            return true;
+         } else if (name.equals("commit")) {
+            commits.incrementAndGet();
+            return null;
+         } else if (name.equals("rollback")) {
+            rollbacks.incrementAndGet();
+            return null;
+         } else if (name.equals("prepareStatement")) {
+            prepared.incrementAndGet();
+            return Proxy.newProxyInstance(getClass().getClassLoader(),
+               new Class[]{PreparedStatement.class}, new StubStatement());
+         } else if (name.equals("createStatement")) {
+            return Proxy.newProxyInstance(getClass().getClassLoader(),
+               new Class[]{Statement.class}, new StubStatement());
+         } else if (name.equals("equals")) {
+            return proxy == args[0];
+         } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+         } else if (name.equals("toString")) {
+            // Named after the physical connection, so the handles of one physical connection look the same
+            return "StubConnection@" + Integer.toHexString(System.identityHashCode(pooledConnection));
+         }
+         return defaultValue(method.getReturnType());
+      }
+   }
+
+   class StubStatement implements InvocationHandler {
+      volatile boolean closed;
+      Thread executing;   // guarded by this
+      int batchSize;
+      Object resultSet;
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+         String name = method.getName();
+         if (name.equals("close")) {
+            if (!closed) {
+               closed = true;
+               statementsClosed.incrementAndGet();
+            }
+            return null;
+         } else if (name.equals("isClosed")) {
+            return closed;
+         } else if (name.equals("equals")) {
+            return proxy == args[0];
+         } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+         } else if (name.equals("cancel")) {
+            synchronized (this) {
+               if (executing != null) {
+                  cancelled.incrementAndGet();
+                  executing.interrupt();
+               }
+            }
+            return null;
+         }
+         if (closed) throw new SQLException("Statement is closed");
+         if (name.equals("addBatch")) {
+            batchSize++;
+            batched.incrementAndGet();
+            return null;
+         } else if (name.equals("clearBatch")) {
+            batchSize = 0;
+            return null;
+         } else if (name.equals("getResultSet")) {
+            return resultSet;
+         }
+         if (name.startsWith("execute")) {
+            int n = executed.incrementAndGet();
+            int slowEvery = slowQueryEvery;
+            synchronized (this) {
+               executing = Thread.currentThread();
+            }
+            try {
+               passGate();
+               pause(slowEvery > 0 && n % slowEvery == 0 ? slowQueryDelay : queryDelay);
+            } finally {
+               synchronized (this) {
+                  executing = null;
+               }
+            }
+            if (Thread.interrupted()) throw new SQLException("Statement cancelled");
+            if (name.equals("executeQuery")) {
+               boolean heartbeat = args != null && ((String) args[0]).contains("heartbeat");
+               resultSet = Proxy.newProxyInstance(getClass().getClassLoader(),
+                  new Class[]{ResultSet.class}, new StubResultSet(heartbeat ? replicationLag : queryResult));
+               return resultSet;
+            } else if (name.equals("executeBatch")) {
+               int[] counts = new int[batchSize];
+               Arrays.fill(counts, batchUpdateCount);
+               batchSize = 0;
+               return counts;
+            }
+         }
+         return defaultValue(method.getReturnType());
+      }
+   }
+
+   private void passGate() throws SQLException {
+      CountDownLatch gate = executeGate;
+      if (gate == null) return;
+      gate.countDown();
+      try {
+         if (!gate.await(10, TimeUnit.SECONDS)) throw new SQLException("Execute gate did not open");
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   class StubResultSet implements InvocationHandler {
+      final Object[] rows;
+      Object value;
+      int row;
+      boolean closed;
+
+      StubResultSet(Object result) {
+         rows = result == null ? new Object[0] : result instanceof Object[] ? (Object[]) result : new Object[]{result};
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+         String name = method.getName();
+         if (name.equals("close")) {
+            closed = true;
+            return null;
+         } else if (name.equals("isClosed")) {
+            return closed;
+         } else if (name.equals("next")) {
+            if (row == rows.length) return false;
+            value = rows[row++];
+            return true;
+         } else if (name.equals("getObject")) {
+            return value;
+         } else if (name.equals("getString")) {
+            return String.valueOf(value);
+         } else if (name.equals("getInt")) {
+            return ((Number) value).intValue();
+         } else if (name.equals("getLong")) {
+            return ((Number) value).longValue();
+         } else if (name.equals("getBigDecimal")) {
+            return value == null ? null : new java.math.BigDecimal(value.toString());
+         } else if (name.equals("equals")) {
+            return proxy == args[0];
+         } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+         }
+         return defaultValue(method.getReturnType());
+      }
+   }
+
+   public PrintWriter getLogWriter() throws SQLException {
+      return null;
+   }
+
+   public void setLogWriter(PrintWriter out) throws SQLException {
+   }
+
+   public void setLoginTimeout(int seconds) throws SQLException {
+   }
+
+   public int getLoginTimeout() throws SQLException {
+      return 0;
+   }
+
+   public Logger getParentLogger() {
+      return null;
+   }
+}
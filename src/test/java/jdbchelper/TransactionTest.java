@@ -0,0 +1,137 @@
+package jdbchelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests the thread bound transactions of JdbcHelper against an in-memory ConnectionPoolDataSource.
+ */
+public class TransactionTest {
+   private final StubConnectionPoolDataSource ds = new StubConnectionPoolDataSource();
+   private final ConnectionPool pool = new ConnectionPool(ds, 4);
+   private final JdbcHelper jdbc = new JdbcHelper(new PooledDataSource(pool));
+
+   @Test
+   public void testNestedTransactionJoinsTheOuterOne() throws Exception {
+      final Connection[] inner = new Connection[1];
+      Connection outer = jdbc.inTransaction(new TransactionCallback<Connection>() {
+         public Connection doInTransaction(JdbcHelper jdbc) {
+            try {
+               Connection con = jdbc.getConnection();
+               inner[0] = jdbc.inTransaction(new TransactionCallback<Connection>() {
+                  public Connection doInTransaction(JdbcHelper jdbc) {
+                     try {
+                        return jdbc.getConnection();
+                     } catch (SQLException e) {
+                        throw new JdbcException(e);
+                     }
+                  }
+               });
+               // The inner transaction is committed by the outer one
+               assertTrue(jdbc.isInTransaction());
+               assertEquals(0, ds.commits.get());
+               return con;
+            } catch (SQLException e) {
+               throw new JdbcException(e);
+            }
+         }
+      });
+      assertTrue(outer == inner[0]);
+      assertEquals(1, ds.commits.get());
+      assertEquals(0, ds.rollbacks.get());
+      assertEquals(1, ds.created.get());
+      assertTrue(!jdbc.isConnectionHeld());
+      assertEquals(0, pool.getActiveConnections());
+   }
+
+   @Test
+   public void testExceptionRollsBackAndIsRethrown() throws Exception {
+      final IllegalStateException failure = new IllegalStateException("boom");
+      try {
+         jdbc.inTransaction(new TransactionCallback<Void>() {
+            public Void doInTransaction(JdbcHelper jdbc) {
+               throw failure;
+            }
+         });
+         throw new AssertionError("Expected the exception of the callback");
+      } catch (IllegalStateException e) {
+         assertTrue(e == failure);
+      }
+      assertEquals(0, ds.commits.get());
+      assertEquals(1, ds.rollbacks.get());
+      assertTrue(!jdbc.isConnectionHeld());
+      assertEquals(0, pool.getActiveConnections());
+
+      // An exception from a nested transaction rolls back the outer one it propagates through
+      try {
+         jdbc.inTransaction(new TransactionCallback<Void>() {
+            public Void doInTransaction(JdbcHelper jdbc) {
+               return jdbc.inTransaction(new TransactionCallback<Void>() {
+                  public Void doInTransaction(JdbcHelper jdbc) {
+                     throw failure;
+                  }
+               });
+            }
+         });
+         throw new AssertionError("Expected the exception of the callback");
+      } catch (IllegalStateException e) {
+         assertTrue(e == failure);
+      }
+      assertEquals(0, ds.commits.get());
+      assertEquals(2, ds.rollbacks.get());
+      assertTrue(!jdbc.isConnectionHeld());
+      assertEquals(0, pool.getActiveConnections());
+   }
+
+   @Test
+   public void testTransactionIsBoundToItsThread() throws Exception {
+      final CountDownLatch begun = new CountDownLatch(1);
+      final CountDownLatch checked = new CountDownLatch(1);
+      final List<Throwable> errors = new ArrayList<Throwable>();
+      Thread other = new Thread() {
+         public void run() {
+            try {
+               jdbc.beginTransaction();
+               begun.countDown();
+               checked.await();
+               assertTrue(jdbc.isInTransaction());
+               jdbc.commitTransaction();
+               assertTrue(!jdbc.isConnectionHeld());
+            } catch (Throwable e) {
+               synchronized (errors) {
+                  errors.add(e);
+               }
+            }
+         }
+      };
+      other.start();
+      begun.await();
+
+      // Another thread holding a transaction does not put this one in it
+      assertTrue(!jdbc.isConnectionHeld());
+      assertTrue(!jdbc.isInTransaction());
+      jdbc.inTransaction(new TransactionCallback<Void>() {
+         public Void doInTransaction(JdbcHelper jdbc) {
+            assertTrue(jdbc.isInTransaction());
+            assertEquals(2, pool.getActiveConnections());
+            return null;
+         }
+      });
+      assertTrue(!jdbc.isConnectionHeld());
+      assertEquals(1, pool.getActiveConnections());
+      checked.countDown();
+      other.join();
+
+      assertEquals("[]", errors.toString());
+      assertEquals(2, ds.commits.get());
+      assertTrue(!jdbc.isConnectionHeld());
+      assertEquals(0, pool.getActiveConnections());
+   }
+}
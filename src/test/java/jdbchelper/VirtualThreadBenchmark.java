@@ -0,0 +1,109 @@
+package jdbchelper;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many concurrent request handlers against a bounded {@link ConnectionPool}, one thread per request.
+ * Every request runs a {@link JdbcHelper} transaction that looks up its connection twice and waits
+ * for a simulated database round trip. Opening and validating connections also take a while, so a pool
+ * that did I/O while holding a monitor would block the carrier threads of the virtual threads.
+ * <p/>
+ * The requests run on virtual threads when the JVM supports them (Java 21 or later). Otherwise they fall
+ * back to platform threads, which only shows the pool handling the same number of concurrent callers.
+ * Run with <code>-Djdk.tracePinnedThreads=full</code> to have the JVM report pinned virtual threads.
+ *
+ * <pre>
+ * java jdbchelper.VirtualThreadBenchmark [requests] [maxConnections] [roundTripMillis]
+ * </pre>
+ */
+public class VirtualThreadBenchmark {
+   public static void main(String[] args) throws Exception {
+      int requests = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+      int maxConnections = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+      long roundTrip = args.length > 2 ? Long.parseLong(args[2]) : 2;
+
+      ExecutorService probe = newExecutor(true);
+      boolean virtual = probe != null;
+      if (virtual) probe.shutdown();
+      System.out.println(requests + " requests on " + (virtual ? "virtual" : "platform (no virtual thread support)")
+         + " threads, maxConnections = " + maxConnections + ", round trip " + roundTrip + "ms");
+      System.out.println(String.format("%-12s %10s %14s %14s %10s", "engine", "millis", "requests/s", "wait p99 ms", "timeouts"));
+      for (ConnectionPool.Engine engine : ConnectionPool.Engine.values()) {
+         run(engine, requests / 10, maxConnections, roundTrip, false);
+         run(engine, requests, maxConnections, roundTrip, true);
+      }
+   }
+
+   static void run(ConnectionPool.Engine engine, int requests, int maxConnections, final long roundTrip,
+                   boolean print) throws Exception {
+      StubConnectionPoolDataSource ds = new StubConnectionPoolDataSource();
+      ds.createDelay = 20;
+      ds.validateDelay = 1;
+      final ConnectionPool pool = new ConnectionPool(ds, maxConnections, 60, engine);
+      final JdbcHelper jdbc = new JdbcHelper(new PooledDataSource(pool));
+      final AtomicInteger failures = new AtomicInteger();
+      final CountDownLatch done = new CountDownLatch(requests);
+
+      ExecutorService executor = newExecutor(false);
+      long start = System.nanoTime();
+      for (int i = 0; i < requests; i++) {
+         executor.execute(new Runnable() {
+            public void run() {
+               try {
+                  jdbc.inTransaction(new TransactionCallback<Object>() {
+                     public Object doInTransaction(JdbcHelper jdbc) {
+                        try {
+                           Connection first = jdbc.getConnection();
+                           Thread.sleep(roundTrip);
+                           Connection second = jdbc.getConnection();
+                           if (first != second) throw new IllegalStateException("Transaction lost its connection");
+                           jdbc.freeConnection(first);
+                           return null;
+                        } catch (SQLException e) {
+                           throw new JdbcException(e);
+                        } catch (InterruptedException e) {
+                           throw new IllegalStateException(e);
+                        }
+                     }
+                  });
+               } catch (RuntimeException e) {
+                  failures.incrementAndGet();
+               } finally {
+                  done.countDown();
+               }
+            }
+         });
+      }
+      done.await();
+      long millis = (System.nanoTime() - start) / 1000000L;
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+      PoolMetrics metrics = pool.getMetrics();
+      if (print) {
+         System.out.println(String.format("%-12s %10d %14d %14.2f %10d", engine, millis,
+            millis == 0 ? 0 : requests * 1000L / millis, metrics.getWaitTime99thPercentileMillis(),
+            metrics.getTimeouts()));
+      }
+      if (failures.get() > 0) System.out.println("  " + failures.get() + " requests failed");
+      pool.dispose();
+   }
+
+   /**
+    * @param probe true to only find out if virtual threads are available.
+    * @return an executor starting a virtual thread per task, or a thread per task executor of
+    * platform threads if virtual threads are not available. Null if probing and not available.
+    */
+   static ExecutorService newExecutor(boolean probe) {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (Exception e) {
+         return probe ? null : Executors.newCachedThreadPool();
+      }
+   }
+}